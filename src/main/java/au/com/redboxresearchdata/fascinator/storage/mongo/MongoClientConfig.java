@@ -0,0 +1,429 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCompressor;
+import com.mongodb.MongoCredential;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.TagSet;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * The connection settings of 'storage.mongo.client': servers, credentials,
+ * pool, timeouts, wire compression and the default read preference and read
+ * and write concerns, with overrides of these per {@link Operation}.
+ *
+ * Objects are always read from the primary unless their own operation
+ * settings say otherwise, so objects loaded for editing are never stale.
+ *
+ * The servers are a 'connectionString', whose options take precedence over
+ * the block's, or a 'seeds' list of host:port. Without either, the legacy
+ * 'host', 'port', 'sslEnable', 'username' and 'password' of 'storage.mongo'
+ * apply.
+ */
+public class MongoClientConfig {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoClientConfig.class);
+
+    /**
+     * Classes of operation whose settings can be set apart from the
+     * defaults, under 'storage.mongo.client.operations.&lt;name&gt;'.
+     */
+    public enum Operation {
+        /** loading, saving and removing objects, e.g. workflow transitions */
+        OBJECTS("objects"),
+        /** paged queries, aggregations, searches and streams */
+        QUERY("query"),
+        /** exports and parallel scans */
+        EXPORT("export"),
+        /** bulk loads through importFrom */
+        INGEST("ingest");
+
+        private final String configName;
+
+        Operation(String configName) {
+            this.configName = configName;
+        }
+
+        public String getConfigName() {
+            return configName;
+        }
+    }
+
+    /**
+     * Settings of one class of operation, null where the default applies.
+     */
+    public static class OperationSettings {
+        private final WriteConcern writeConcern;
+        private final ReadConcern readConcern;
+        private final ReadPreference readPreference;
+
+        OperationSettings(WriteConcern writeConcern, ReadConcern readConcern,
+                ReadPreference readPreference) {
+            this.writeConcern = writeConcern;
+            this.readConcern = readConcern;
+            this.readPreference = readPreference;
+        }
+
+        public WriteConcern getWriteConcern() {
+            return writeConcern;
+        }
+
+        public ReadConcern getReadConcern() {
+            return readConcern;
+        }
+
+        public ReadPreference getReadPreference() {
+            return readPreference;
+        }
+
+        MongoDatabase apply(MongoDatabase db) {
+            if (writeConcern != null) {
+                db = db.withWriteConcern(writeConcern);
+            }
+            if (readConcern != null) {
+                db = db.withReadConcern(readConcern);
+            }
+            if (readPreference != null) {
+                db = db.withReadPreference(readPreference);
+            }
+            return db;
+        }
+    }
+
+    private static final Object[] CLIENT = { "storage", "mongo", "client" };
+
+    protected List<ServerAddress> seeds = new ArrayList<ServerAddress>();
+    protected List<MongoCredential> credentials = new ArrayList<MongoCredential>();
+    protected MongoClientOptions options;
+    protected Map<Operation, OperationSettings> operations = new EnumMap<Operation, OperationSettings>(
+            Operation.class);
+    protected boolean causalConsistency;
+
+    /**
+     * @param db - the storage database, where the legacy credentials are
+     *            defined
+     */
+    public MongoClientConfig(JsonSimple config, String db)
+            throws StorageException {
+        MongoClientOptions.Builder builder = getOptionsBuilder(config);
+        String connectionString = config.getString(null, path("connectionString"));
+        if (connectionString != null) {
+            MongoClientURI uri;
+            try {
+                uri = new MongoClientURI(connectionString, builder);
+            } catch (IllegalArgumentException e) {
+                throw new StorageException("Invalid MongoDB connection string",
+                        e);
+            }
+            for (String host : uri.getHosts()) {
+                seeds.add(new ServerAddress(host));
+            }
+            if (uri.getCredentials() != null) {
+                credentials.add(uri.getCredentials());
+            }
+            options = uri.getOptions();
+        } else {
+            List<String> hosts = config.getStringList(path("seeds"));
+            if (hosts != null && !hosts.isEmpty()) {
+                for (String host : hosts) {
+                    seeds.add(new ServerAddress(host));
+                }
+            } else {
+                seeds.add(new ServerAddress(
+                        config.getString("localhost", "storage", "mongo",
+                                "host"),
+                        config.getInteger(27017, "storage", "mongo", "port")
+                                .intValue()));
+            }
+            String username = config.getString(null, "storage", "mongo",
+                    "username");
+            if (username != null) {
+                String password = config.getString("", "storage", "mongo",
+                        "password");
+                credentials.add(MongoCredential.createCredential(username, db,
+                        password.toCharArray()));
+            }
+            options = builder.build();
+        }
+        JsonObject overrides = config.getObject(path("operations"));
+        for (Operation operation : Operation.values()) {
+            Object settings = overrides == null ? null
+                    : overrides.get(operation.getConfigName());
+            if (settings instanceof JsonObject) {
+                JsonObject block = (JsonObject) settings;
+                operations.put(operation, new OperationSettings(
+                        toWriteConcern(block.get("writeConcern")),
+                        toReadConcern(block.get("readConcern")),
+                        toReadPreference(block.get("readPreference"),
+                                block.get("maxStalenessSeconds"))));
+            }
+        }
+        OperationSettings objects = operations.get(Operation.OBJECTS);
+        if (objects == null || objects.getReadPreference() == null) {
+            operations.put(Operation.OBJECTS, new OperationSettings(
+                    objects == null ? null : objects.getWriteConcern(),
+                    objects == null ? null : objects.getReadConcern(),
+                    ReadPreference.primary()));
+        }
+        causalConsistency = config.getBoolean(false, path("causalConsistency"));
+    }
+
+    private MongoClientOptions.Builder getOptionsBuilder(JsonSimple config)
+            throws StorageException {
+        MongoClientOptions.Builder builder = MongoClientOptions.builder();
+        boolean legacySsl = config.getBoolean(false, "storage", "mongo",
+                "sslEnable");
+        builder.sslEnabled(config.getBoolean(legacySsl, path("ssl")));
+        String applicationName = config.getString(null,
+                path("applicationName"));
+        if (applicationName != null) {
+            builder.applicationName(applicationName);
+        }
+        String replicaSet = config.getString(null, path("replicaSet"));
+        if (replicaSet != null) {
+            builder.requiredReplicaSetName(replicaSet);
+        }
+        Integer value = config.getInteger(null, path("minPoolSize"));
+        if (value != null) {
+            builder.minConnectionsPerHost(value);
+        }
+        value = config.getInteger(null, path("maxPoolSize"));
+        if (value != null) {
+            builder.connectionsPerHost(value);
+        }
+        value = config.getInteger(null, path("waitQueueMultiple"));
+        if (value != null) {
+            builder.threadsAllowedToBlockForConnectionMultiplier(value);
+        }
+        value = config.getInteger(null, path("waitQueueTimeoutMS"));
+        if (value != null) {
+            builder.maxWaitTime(value);
+        }
+        value = config.getInteger(null, path("connectTimeoutMS"));
+        if (value != null) {
+            builder.connectTimeout(value);
+        }
+        value = config.getInteger(null, path("socketTimeoutMS"));
+        if (value != null) {
+            builder.socketTimeout(value);
+        }
+        value = config.getInteger(null, path("serverSelectionTimeoutMS"));
+        if (value != null) {
+            builder.serverSelectionTimeout(value);
+        }
+        value = config.getInteger(null, path("maxIdleTimeMS"));
+        if (value != null) {
+            builder.maxConnectionIdleTime(value);
+        }
+        value = config.getInteger(null, path("heartbeatFrequencyMS"));
+        if (value != null) {
+            builder.heartbeatFrequency(value);
+        }
+        List<String> compressors = config.getStringList(path("compressors"));
+        if (compressors != null && !compressors.isEmpty()) {
+            builder.compressorList(toCompressors(compressors));
+        }
+        JsonObject client = config.getObject(CLIENT);
+        if (client != null) {
+            WriteConcern writeConcern = toWriteConcern(
+                    client.get("writeConcern"));
+            if (writeConcern != null) {
+                builder.writeConcern(writeConcern);
+            }
+            ReadConcern readConcern = toReadConcern(client.get("readConcern"));
+            if (readConcern != null) {
+                builder.readConcern(readConcern);
+            }
+            ReadPreference readPreference = toReadPreference(
+                    client.get("readPreference"),
+                    client.get("maxStalenessSeconds"));
+            if (readPreference != null) {
+                builder.readPreference(readPreference);
+            }
+        }
+        return builder;
+    }
+
+    private List<MongoCompressor> toCompressors(List<String> names)
+            throws StorageException {
+        List<MongoCompressor> compressors = new ArrayList<MongoCompressor>();
+        for (String name : names) {
+            if ("snappy".equalsIgnoreCase(name)) {
+                compressors.add(MongoCompressor.createSnappyCompressor());
+            } else if ("zlib".equalsIgnoreCase(name)) {
+                compressors.add(MongoCompressor.createZlibCompressor());
+            } else if ("zstd".equalsIgnoreCase(name)) {
+                log.warn("The MongoDB driver in use has no zstd compressor, "
+                        + "ignoring it");
+            } else {
+                throw new StorageException("Unknown wire compressor: " + name);
+            }
+        }
+        return compressors;
+    }
+
+    /**
+     * @param value - a name such as "majority" or "w1", a number of nodes,
+     *            or an object with 'w', 'j' and 'wtimeoutMS'
+     */
+    static WriteConcern toWriteConcern(Object value) throws StorageException {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return new WriteConcern(((Number) value).intValue());
+        }
+        if (value instanceof String) {
+            WriteConcern named = WriteConcern
+                    .valueOf(((String) value).toUpperCase());
+            if (named == null) {
+                throw new StorageException("Unknown write concern: " + value);
+            }
+            return named;
+        }
+        if (value instanceof Map) {
+            Map<?, ?> settings = (Map<?, ?>) value;
+            Object w = settings.get("w");
+            WriteConcern writeConcern;
+            if (w instanceof Number) {
+                writeConcern = new WriteConcern(((Number) w).intValue());
+            } else if (w instanceof String) {
+                writeConcern = new WriteConcern((String) w);
+            } else {
+                writeConcern = WriteConcern.ACKNOWLEDGED;
+            }
+            Object wtimeout = settings.get("wtimeoutMS");
+            if (wtimeout instanceof Number) {
+                writeConcern = writeConcern.withWTimeout(
+                        ((Number) wtimeout).longValue(),
+                        TimeUnit.MILLISECONDS);
+            }
+            Object journal = settings.get("j");
+            if (journal instanceof Boolean) {
+                writeConcern = writeConcern.withJournal((Boolean) journal);
+            }
+            return writeConcern;
+        }
+        throw new StorageException("Invalid write concern: " + value);
+    }
+
+    /**
+     * @param value - a level such as "local" or "majority", or "default"
+     */
+    static ReadConcern toReadConcern(Object value) throws StorageException {
+        if (value == null) {
+            return null;
+        }
+        if ("default".equals(value)) {
+            return ReadConcern.DEFAULT;
+        }
+        try {
+            return new ReadConcern(ReadConcernLevel.fromString((String) value));
+        } catch (RuntimeException e) {
+            throw new StorageException("Invalid read concern: " + value, e);
+        }
+    }
+
+    /**
+     * @param mode - a read preference mode such as "secondaryPreferred"
+     * @param maxStalenessSeconds - how far behind the primary a secondary may
+     *            be to serve reads, at least 90; not allowed with "primary"
+     */
+    static ReadPreference toReadPreference(Object mode,
+            Object maxStalenessSeconds) throws StorageException {
+        if (mode == null) {
+            return null;
+        }
+        try {
+            if (maxStalenessSeconds instanceof Number) {
+                return ReadPreference.valueOf((String) mode,
+                        Collections.<TagSet> emptyList(),
+                        ((Number) maxStalenessSeconds).longValue(),
+                        TimeUnit.SECONDS);
+            }
+            return ReadPreference.valueOf((String) mode);
+        } catch (RuntimeException e) {
+            throw new StorageException("Invalid read preference: " + mode, e);
+        }
+    }
+
+    private static Object[] path(String name) {
+        Object[] path = new Object[CLIENT.length + 1];
+        System.arraycopy(CLIENT, 0, path, 0, CLIENT.length);
+        path[CLIENT.length] = name;
+        return path;
+    }
+
+    public List<ServerAddress> getSeeds() {
+        return seeds;
+    }
+
+    public List<MongoCredential> getCredentials() {
+        return credentials;
+    }
+
+    public MongoClientOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return true if each thread's reads should see its own earlier writes,
+     *         through a causally consistent session
+     */
+    public boolean isCausalConsistency() {
+        return causalConsistency;
+    }
+
+    /**
+     * @return the overrides of the operation, or null if it uses the
+     *         defaults
+     */
+    public OperationSettings getOperationSettings(Operation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return the database with the operation's settings applied
+     */
+    public MongoDatabase apply(MongoDatabase db, Operation operation) {
+        OperationSettings settings = operations.get(operation);
+        return settings == null ? db : settings.apply(db);
+    }
+
+}
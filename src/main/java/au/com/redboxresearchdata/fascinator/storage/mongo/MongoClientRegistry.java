@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+
+/**
+ * Shares MongoClients between the storage instances of a JVM.
+ *
+ * A MongoClient holds a connection pool and monitor threads, and ReDBox runs
+ * several storage instances against the same server. Instances asking for a
+ * client with equal settings get the same one, which is closed when the
+ * last of them releases it.
+ */
+public class MongoClientRegistry {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoClientRegistry.class);
+
+    private static class Entry {
+        final List<Object> key;
+        final MongoClient client;
+        int references;
+
+        Entry(List<Object> key, MongoClient client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    private static final Map<List<Object>, Entry> entries = new HashMap<List<Object>, Entry>();
+    private static final Map<MongoClient, Entry> entriesByClient = new IdentityHashMap<MongoClient, Entry>();
+
+    private MongoClientRegistry() {
+    }
+
+    /**
+     * @param seeds - servers to connect to
+     * @param credentials - may be empty
+     * @param options - client settings
+     * @return a client with these settings, to be given back with
+     *         {@link #release(MongoClient)} rather than closed
+     */
+    public static synchronized MongoClient acquire(List<ServerAddress> seeds,
+            List<MongoCredential> credentials, MongoClientOptions options) {
+        List<Object> key = Arrays.<Object> asList(
+                new ArrayList<ServerAddress>(seeds),
+                new ArrayList<MongoCredential>(credentials), options);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            MongoClient client = newClient(seeds, credentials, options);
+            entry = new Entry(key, client);
+            entries.put(key, entry);
+            entriesByClient.put(client, entry);
+            log.debug("Created a MongoClient for " + seeds);
+        }
+        entry.references++;
+        return entry.client;
+    }
+
+    /**
+     * A single seed is connected to directly, unless it names a replica set
+     * whose other members should be discovered.
+     *
+     * @throws IllegalArgumentException if there's more than one credential
+     */
+    private static MongoClient newClient(List<ServerAddress> seeds,
+            List<MongoCredential> credentials, MongoClientOptions options) {
+        if (credentials.size() > 1) {
+            throw new IllegalArgumentException(
+                    "A MongoClient takes at most one credential");
+        }
+        boolean direct = seeds.size() == 1
+                && options.getRequiredReplicaSetName() == null;
+        if (credentials.isEmpty()) {
+            return direct ? new MongoClient(seeds.get(0), options)
+                    : new MongoClient(seeds, options);
+        }
+        MongoCredential credential = credentials.get(0);
+        return direct ? new MongoClient(seeds.get(0), credential, options)
+                : new MongoClient(seeds, credential, options);
+    }
+
+    /**
+     * Gives back a client, closing it if no one else is using it.
+     */
+    public static synchronized void release(MongoClient client) {
+        Entry entry = entriesByClient.get(client);
+        if (entry == null) {
+            log.warn("Releasing a MongoClient not from the registry, closing it");
+            client.close();
+            return;
+        }
+        if (--entry.references == 0) {
+            entries.remove(entry.key);
+            entriesByClient.remove(client);
+            client.close();
+            log.debug("Closed the MongoClient for " + entry.key.get(0));
+        }
+    }
+
+    /**
+     * @return number of storage instances using the client, 0 if it's not
+     *         from the registry or already closed
+     */
+    public static synchronized int getReferences(MongoClient client) {
+        Entry entry = entriesByClient.get(client);
+        return entry == null ? 0 : entry.references;
+    }
+
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Counts the documents matching a filter for the 'numFound' of paged
+ * queries, trading accuracy for speed as the {@link Mode} asks.
+ */
+public class MongoCounter {
+
+    private static Logger log = LoggerFactory.getLogger(MongoCounter.class);
+
+    /** Most filters whose counts are remembered */
+    static int MAX_CACHED_COUNTS = 1000;
+
+    public enum Mode {
+        /** counts every match */
+        EXACT,
+        /** reuses an exact count of the same filter for a while */
+        CACHED,
+        /**
+         * reads the collection's document count from its statistics; only
+         * possible for a collection queried without a filter, otherwise falls
+         * back to CACHED
+         */
+        ESTIMATED,
+        /** counts matches up to the cap only */
+        CAPPED
+    }
+
+    /**
+     * A count, with how it was arrived at.
+     */
+    public static class Result {
+        private final long count;
+        private final Mode mode;
+        private final boolean capped;
+
+        Result(long count, Mode mode, boolean capped) {
+            this.count = count;
+            this.mode = mode;
+            this.capped = capped;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mode that produced the count, which differs from the
+         *         requested mode after a fallback
+         */
+        public Mode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return true if there are more matches than the count
+         */
+        public boolean isCapped() {
+            return capped;
+        }
+    }
+
+    private static class CachedCount {
+        final long count;
+        final long expires;
+
+        CachedCount(long count, long expires) {
+            this.count = count;
+            this.expires = expires;
+        }
+    }
+
+    protected MongoDatabase mongoDb;
+    protected MongoQueryGuard queryGuard;
+    protected long cacheTtlMillis;
+    protected int cap;
+    protected MongoSessions sessions = new MongoSessions(null);
+    private final Map<String, CachedCount> cache = new ConcurrentHashMap<String, CachedCount>();
+
+    /**
+     * @param queryGuard - applies the default time limit to counts
+     */
+    public MongoCounter(MongoDatabase mongoDb, MongoQueryGuard queryGuard,
+            long cacheTtlMillis, int cap) {
+        this.mongoDb = mongoDb;
+        this.queryGuard = queryGuard;
+        this.cacheTtlMillis = cacheTtlMillis;
+        this.cap = cap;
+    }
+
+    /**
+     * @param sessions - lets counts see the unit of work's earlier writes
+     */
+    public void setSessions(MongoSessions sessions) {
+        this.sessions = sessions;
+    }
+
+    public Result count(String collection, BsonDocument filter, Mode mode) {
+        return count(collection, filter, mode, null);
+    }
+
+    /**
+     * @param options - time limit and cancellation handle of the query the
+     *            count is for, may be null
+     * @throws java.util.concurrent.CancellationException if the handle
+     *             cancelled the query
+     */
+    public Result count(String collection, BsonDocument filter, Mode mode,
+            MongoQueryOptions options) {
+        queryGuard.checkCancelled(options);
+        switch (mode) {
+        case CAPPED:
+            long count = countMatches(collection, filter, cap + 1, options);
+            return new Result(Math.min(count, cap), Mode.CAPPED, count > cap);
+        case ESTIMATED:
+            if (filter.isEmpty()) {
+                Long estimate = getStatsCount(collection);
+                if (estimate != null) {
+                    return new Result(estimate, Mode.ESTIMATED, false);
+                }
+            }
+            return count(collection, filter, Mode.CACHED, options);
+        case CACHED:
+            String key = collection + '\u0000' + filter.toJson();
+            CachedCount cached = cache.get(key);
+            if (cached == null
+                    || cached.expires < System.currentTimeMillis()) {
+                cached = new CachedCount(
+                        countMatches(collection, filter, 0, options),
+                        System.currentTimeMillis() + cacheTtlMillis);
+                if (cache.size() >= MAX_CACHED_COUNTS) {
+                    removeExpired();
+                }
+                if (cache.size() < MAX_CACHED_COUNTS) {
+                    cache.put(key, cached);
+                }
+            }
+            return new Result(cached.count, Mode.CACHED, false);
+        default:
+            return new Result(countMatches(collection, filter, 0, options),
+                    Mode.EXACT, false);
+        }
+    }
+
+    /**
+     * @param limit - stop counting here, 0 for no limit
+     */
+    private long countMatches(String collection, BsonDocument filter,
+            int limit, MongoQueryOptions options) {
+        List<BsonDocument> pipeline = new ArrayList<BsonDocument>();
+        pipeline.add(new BsonDocument("$match", filter));
+        if (limit > 0) {
+            pipeline.add(new BsonDocument("$limit", new BsonInt32(limit)));
+        }
+        pipeline.add(new BsonDocument("$count", new BsonString("count")));
+        AggregateIterable<Document> aggregate = sessions
+                .aggregate(mongoDb.getCollection(collection),
+                        queryGuard.tagPipeline(pipeline, options))
+                .allowDiskUse(true);
+        List<Document> result = queryGuard.drain(
+                queryGuard.apply(aggregate, options),
+                new ArrayList<Document>(), options);
+        return result.isEmpty() ? 0
+                : ((Number) result.get(0).get("count")).longValue();
+    }
+
+    /**
+     * @return the collection's document count according to its statistics,
+     *         or null for a view, which has none
+     */
+    private Long getStatsCount(String collection) {
+        try {
+            Document stats = mongoDb
+                    .runCommand(new Document("collStats", collection));
+            Object count = stats.get("count");
+            return count instanceof Number ? ((Number) count).longValue()
+                    : null;
+        } catch (MongoCommandException e) {
+            log.debug("No statistics for '" + collection + "': "
+                    + e.getErrorMessage());
+            return null;
+        }
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedCount> counts = cache.values().iterator();
+        while (counts.hasNext()) {
+            if (counts.next().expires < now) {
+                counts.remove();
+            }
+        }
+    }
+
+}
@@ -17,13 +17,24 @@
  ******************************************************************************/
 package au.com.redboxresearchdata.fascinator.storage.mongo;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.elemMatch;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.addToSet;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -31,9 +42,22 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import org.apache.tika.Tika;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +68,7 @@ import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.storage.impl.GenericDigitalObject;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.result.UpdateResult;
 
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
@@ -58,11 +83,37 @@ public class MongoDigitalObject extends GenericDigitalObject
         implements JsonDigitalObject {
 
     enum PayloadBackend {
-        MONGO
+        MONGO, FILESYSTEM
     }
 
     private static String METADATA_PAYLOAD = "TF-OBJ-META";
 
+    /** Object timestamps, stored as BSON dates */
+    static List<String> DATE_FIELDS = Arrays.asList("date_object_created",
+            "date_object_modified");
+
+    /** Record field holding a copy of selected object metadata fields */
+    static String DENORMALIZED_FIELD = "tfObjMeta";
+
+    /** Record field holding a copy of the text indexed tfpackage fields */
+    static String TEXT_FIELD = "tfText";
+
+    /** Record field counting the saves of the object */
+    static String VERSION_FIELD = "objectVersion";
+
+    /**
+     * Object metadata and record field counting the saves that changed the
+     * object metadata
+     */
+    static String OBJECT_METADATA_VERSION_FIELD = "tfObjMetaVersion";
+
+    /** Payload entry field listing the ids its data was moved away from */
+    static String MOVED_FROM_FIELD = "movedFrom";
+
+    /** Payload entry fields giving where its data is */
+    static List<String> LOCATION_FIELDS = Arrays.asList("backend_type",
+            "payloadId", "tier", MOVED_FROM_FIELD);
+
     private static Logger log = LoggerFactory
             .getLogger(MongoDigitalObject.class);
 
@@ -71,13 +122,37 @@ public class MongoDigitalObject extends GenericDigitalObject
     protected String objectMetadataCollectionName;
     protected String oid;
     protected String sourceId;
-    protected Document objectMetadata;
-    protected Document recordMetadata;
+    protected volatile Document objectMetadata;
+    protected volatile Document recordMetadata;
     protected Properties metadataProp;
     protected MongoDigitalObject.PayloadBackend payloadBackend;
+    protected MongoStorageConfig storageConfig;
+    protected MongoMetadataDocuments metadataDocuments;
+    protected MongoQueryCache queryCache;
+    protected Executor executor;
+    protected MongoSessions sessions = new MongoSessions(null);
+    protected MongoPayloadAccessLog accessLog;
+    /** The record as loaded, to merge concurrent saves against */
+    protected MongoRecordMerge loadedRecord;
+    /** Fingerprint of the object metadata as loaded or last saved */
+    protected String loadedObjectMetadata;
+    protected long loadedObjectMetadataVersion;
     protected Map<String, String> encodedChars;
     protected DateTimeFormatter df;
 
+    /**
+     * Guards the object's state: its metadata, file list and manifest. The
+     * file list is copied on write, so a list handed out never changes.
+     */
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    /** Serializes saves; the state is only locked while it's copied */
+    private final Lock saveLock = new ReentrantLock();
+    /**
+     * Serializes writes to each payload, leaving other payloads free. Locks
+     * are only kept while they're held or waited for.
+     */
+    private final Map<String, PayloadLock> payloadLocks = new HashMap<String, PayloadLock>();
+
     public MongoDigitalObject(MongoDatabase mongoDb, String collectionName,
             String objectMetadataCollectionName, String oid,
             MongoDigitalObject.PayloadBackend payloadBackend) {
@@ -88,12 +163,70 @@ public class MongoDigitalObject extends GenericDigitalObject
         this.oid = oid;
         this.objectMetadataCollectionName = objectMetadataCollectionName;
         this.payloadBackend = payloadBackend;
+        storageConfig = new MongoStorageConfig();
+        storageConfig.setPayloadBackend(payloadBackend);
         encodedChars = new HashMap<String, String>();
         encodedChars.put(".", "_dot_");
         encodedChars.put("$", "_dollar_");
         df = ISODateTimeFormat.dateTime();
     }
 
+    public MongoDigitalObject(MongoDatabase mongoDb, String collectionName,
+            String objectMetadataCollectionName, String oid,
+            MongoStorageConfig storageConfig) {
+        this(mongoDb, collectionName, objectMetadataCollectionName, oid,
+                storageConfig.getPayloadBackend());
+        this.storageConfig = storageConfig;
+    }
+
+    public MongoStorageConfig getStorageConfig() {
+        return storageConfig;
+    }
+
+    /**
+     * @param metadataDocuments - kept up to date on save and remove when
+     *            materialized
+     */
+    public void setMetadataDocuments(
+            MongoMetadataDocuments metadataDocuments) {
+        this.metadataDocuments = metadataDocuments;
+    }
+
+    /**
+     * @param queryCache - told of every save and remove, may be null
+     */
+    public void setQueryCache(MongoQueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * @param sessions - causally orders this object's reads and writes with
+     *            the later queries of the same unit of work
+     */
+    public void setSessions(MongoSessions sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * @param accessLog - buffers the payload reads, null to write each read
+     *            as it happens
+     */
+    public void setPayloadAccessLog(MongoPayloadAccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * @param executor - runs the asynchronous operations, null for the
+     *            common pool
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private Executor getExecutor() {
+        return executor == null ? ForkJoinPool.commonPool() : executor;
+    }
+
     public MongoDatabase getMongoDb() {
         return mongoDb;
     }
@@ -139,16 +272,54 @@ public class MongoDigitalObject extends GenericDigitalObject
     @Override
     public Properties getMetadata() throws StorageException {
         getObjectMetadata();
-        if (metadataProp == null) {
-            metadataProp = new Properties();
-            metadataProp.putAll(objectMetadata);
+        stateLock.writeLock().lock();
+        try {
+            if (metadataProp == null) {
+                metadataProp = new Properties();
+                metadataProp.putAll(objectMetadata);
+                putDateProperties();
+            }
+            return metadataProp;
+        } finally {
+            stateLock.writeLock().unlock();
         }
-        return metadataProp;
+    }
+
+    /**
+     * Properties only expose String values, so the timestamps are presented
+     * in their ISO form.
+     */
+    private void putDateProperties() {
+        for (String field : DATE_FIELDS) {
+            Object value = objectMetadata.get(field);
+            if (value instanceof Date) {
+                metadataProp.put(field, df.print(((Date) value).getTime()));
+            }
+        }
+    }
+
+    /**
+     * Reads a timestamp, accepting the ISO strings written by earlier
+     * versions.
+     *
+     * @param value - the stored value
+     * @return the date, or the value as-is if it isn't a timestamp
+     */
+    static Object toDate(Object value) {
+        if (value instanceof String) {
+            try {
+                return ISODateTimeFormat.dateTime().withOffsetParsed()
+                        .parseDateTime((String) value).toDate();
+            } catch (IllegalArgumentException e) {
+                log.warn("Unparseable timestamp: " + value);
+            }
+        }
+        return value;
     }
 
     private Document getObjectMetadataFromDb() {
         MongoCollection<Document> metaCol = getObjectMetadataCollection();
-        return metaCol.find(eq("redboxOid", oid)).first();
+        return sessions.find(metaCol, eq("redboxOid", oid)).first();
     }
 
     private MongoCollection<Document> getObjectMetadataCollection() {
@@ -158,9 +329,8 @@ public class MongoDigitalObject extends GenericDigitalObject
     /**
      * Get the manifest of the DigitalObject
      *
-     * @return Manifest Map
+     * @return Manifest Map, a copy that later payload changes don't affect
      */
-    @SuppressWarnings("unchecked")
     @Override
     public Map<String, Payload> getManifest() {
         if (objectMetadata == null) {
@@ -170,12 +340,22 @@ public class MongoDigitalObject extends GenericDigitalObject
                 throw new RuntimeException("Failed to get metadata:", e);
             }
         }
-        // populate from the metadata
         Map<String, Payload> manifest = super.getManifest();
-        if (manifest.isEmpty()) {
+        stateLock.readLock().lock();
+        try {
             List<Map<String, Object>> payloads = getFileList();
-            if (payloads != null && payloads.size() > 0) {
-                Iterator<Map<String, Object>> iter = payloads.iterator();
+            if (!manifest.isEmpty() || payloads == null
+                    || payloads.isEmpty()) {
+                return new HashMap<String, Payload>(manifest);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        // populate from the metadata
+        stateLock.writeLock().lock();
+        try {
+            if (manifest.isEmpty()) {
+                Iterator<Map<String, Object>> iter = getFileList().iterator();
                 while (iter.hasNext()) {
                     Map<String, Object> payloadMeta = iter.next();
                     String pid = (String) payloadMeta.get("pid");
@@ -185,8 +365,63 @@ public class MongoDigitalObject extends GenericDigitalObject
                                     payloadBackend));
                 }
             }
+            return new HashMap<String, Payload>(manifest);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Locks one payload against other writes to it, to be unlocked by the
+     * caller.
+     */
+    Lock lockPayload(String pid) {
+        PayloadLock lock;
+        synchronized (payloadLocks) {
+            lock = payloadLocks.get(pid);
+            if (lock == null) {
+                lock = new PayloadLock(pid);
+                payloadLocks.put(pid, lock);
+            }
+            lock.holders++;
+        }
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * @return how many payloads are locked or waited for
+     */
+    int getPayloadLockCount() {
+        synchronized (payloadLocks) {
+            return payloadLocks.size();
+        }
+    }
+
+    /**
+     * A payload's lock, dropped from the payload locks once its last holder
+     * unlocks it.
+     */
+    @SuppressWarnings("serial")
+    private class PayloadLock extends ReentrantLock {
+
+        private final String pid;
+        /** Holders and waiters, guarded by the payload locks */
+        private int holders;
+
+        PayloadLock(String pid) {
+            this.pid = pid;
+        }
+
+        @Override
+        public void unlock() {
+            super.unlock();
+            synchronized (payloadLocks) {
+                if (--holders == 0) {
+                    payloadLocks.remove(pid);
+                }
+            }
         }
-        return manifest;
     }
 
     private Map<String, Object> getFileInfo(String pid) {
@@ -210,51 +445,64 @@ public class MongoDigitalObject extends GenericDigitalObject
         return getManifest().keySet();
     }
 
-    private synchronized Payload createPayload(String pid, InputStream source,
+    private Payload createPayload(String pid, InputStream source,
             boolean linked, PayloadType payloadType)
             throws IOException, StorageException {
-
-        Map<String, Payload> manifest = getManifest();
-        if (manifest.containsKey(pid)) {
-            throw new StorageException(
-                    "ID '" + pid + "' already exists in manifest.");
+        Lock payloadLock = lockPayload(pid);
+        try {
+            if (getManifest().containsKey(pid)) {
+                throw new StorageException(
+                        "ID '" + pid + "' already exists in manifest.");
+            }
+            // Create payload - GRID FS for now...
+            MongoPayload payload = new MongoPayload(this, pid, null,
+                    payloadBackend);
+            payload.setLinked(linked);
+            payload.setType(payloadType);
+            Tika tika = new Tika();
+            String mimeType = tika.detect(pid);
+            payload.setContentType(mimeType);
+            payload.create(source);
+            // add to manifest
+            stateLock.writeLock().lock();
+            try {
+                super.getManifest().put(pid, payload);
+                addFileMeta(payload);
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            save();
+            payload.setMetaChanged(false);
+            return payload;
+        } finally {
+            payloadLock.unlock();
         }
-        // Create payload - GRID FS for now...
-        MongoPayload payload = new MongoPayload(this, pid, null,
-                payloadBackend);
-        payload.setLinked(linked);
-        payload.setType(payloadType);
-        Tika tika = new Tika();
-        String mimeType = tika.detect(pid);
-        payload.setContentType(mimeType);
-        payload.create(source);
-        // add to manifest
-        manifest.put(pid, payload);
-        addFileMeta(payload);
-        save();
-        payload.setMetaChanged(false);
-        return payload;
     }
 
     @Override
-    public synchronized Payload createStoredPayload(String pid, InputStream in)
+    public Payload createStoredPayload(String pid, InputStream in)
             throws StorageException {
         if (pid == null || in == null) {
             throw new StorageException("Error; Null parameter recieved");
         }
         try {
             PayloadType type = null;
-            if (METADATA_PAYLOAD.equals(pid)) {
-                type = PayloadType.Annotation;
-            } else if (getSourceId() == null) {
-                if (pid.endsWith("json") || pid.endsWith("tfpackage")) {
-                    type = PayloadType.Source;
-                    setSourceId(pid);
+            stateLock.writeLock().lock();
+            try {
+                if (METADATA_PAYLOAD.equals(pid)) {
+                    type = PayloadType.Annotation;
+                } else if (getSourceId() == null) {
+                    if (pid.endsWith("json") || pid.endsWith("tfpackage")) {
+                        type = PayloadType.Source;
+                        setSourceId(pid);
+                    } else {
+                        type = PayloadType.Annotation;
+                    }
                 } else {
                     type = PayloadType.Annotation;
                 }
-            } else {
-                type = PayloadType.Annotation;
+            } finally {
+                stateLock.writeLock().unlock();
             }
             Payload payload = createPayload(pid, in, false, type);
             return payload;
@@ -293,29 +541,112 @@ public class MongoDigitalObject extends GenericDigitalObject
                 payloadBackend);
     }
 
+    /**
+     * Reads every payload of the object, opening several at once rather than
+     * one after another, e.g. for a zip download or to re-index the
+     * attachments.
+     *
+     * @param parallelism - most payloads open at once
+     * @param consumer - receives each payload with its open data, from
+     *            several threads at once
+     * @return number of payloads read
+     * @throws StorageException if a payload fails to open or the consumer
+     *             fails, payloads not yet started are skipped
+     */
+    public int forEachPayload(int parallelism,
+            final MongoPayloadConsumer consumer) throws StorageException {
+        List<Payload> payloads = new ArrayList<Payload>();
+        for (String pid : getPayloadIdList()) {
+            payloads.add(getPayload(pid));
+        }
+        final Semaphore slots = new Semaphore(Math.max(1, parallelism));
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        List<CompletableFuture<Void>> reads = new ArrayList<CompletableFuture<Void>>();
+        try {
+            for (final Payload payload : payloads) {
+                slots.acquire();
+                if (failure.get() != null) {
+                    slots.release();
+                    break;
+                }
+                reads.add(CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            read(payload, consumer);
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }, getExecutor()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]))
+                .join();
+        if (failure.get() != null) {
+            throw new StorageException(
+                    "Failed reading the payloads of object: " + oid,
+                    failure.get());
+        }
+        return reads.size();
+    }
+
+    private void read(Payload payload, MongoPayloadConsumer consumer)
+            throws Exception {
+        InputStream in = payload.open();
+        try {
+            consumer.accept(payload, in);
+        } finally {
+            in.close();
+        }
+    }
+
     @Override
     public void removePayload(String pid) throws StorageException {
-        MongoPayload payload = (MongoPayload) getPayload(pid);
-        payload.remove();
-        removeFileMeta(pid);
-        getManifest().remove(pid);
-        save();
+        Lock payloadLock = lockPayload(pid);
+        try {
+            MongoPayload payload = (MongoPayload) getPayload(pid);
+            payload.remove();
+            stateLock.writeLock().lock();
+            try {
+                removeFileMeta(pid);
+                super.getManifest().remove(pid);
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            save();
+        } finally {
+            payloadLock.unlock();
+        }
     }
 
     /* (non-Javadoc)
      * @see com.googlecode.fascinator.api.storage.DigitalObject#updatePayload(java.lang.String, java.io.InputStream)
      */
     @Override
-    public synchronized Payload updatePayload(String pid, InputStream in)
+    public Payload updatePayload(String pid, InputStream in)
             throws StorageException {
-        MongoPayload payload = (MongoPayload) getPayload(pid);
-        getManifest().remove(pid);
-        removeFileMeta(pid);
-        payload.update(in);
-        getManifest().put(pid, payload);
-        addFileMeta(payload);
-        save();
-        return payload;
+        Lock payloadLock = lockPayload(pid);
+        try {
+            MongoPayload payload = (MongoPayload) getPayload(pid);
+            payload.update(in);
+            stateLock.writeLock().lock();
+            try {
+                super.getManifest().put(pid, payload);
+                replaceFileMeta(pid, payload);
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            save();
+            return payload;
+        } finally {
+            payloadLock.unlock();
+        }
     }
 
     @Override
@@ -326,32 +657,143 @@ public class MongoDigitalObject extends GenericDigitalObject
     @Override
     public Map<String, Object> getObjectMetadata() {
         if (objectMetadata == null) {
-            objectMetadata = getUnescapedDoc(getObjectMetadataFromDb());
-            if (objectMetadata == null) {
-                objectMetadata = new Document();
-                objectMetadata.put("redboxOid", oid);
-                objectMetadata.put("collectionName", collectionName);
-                objectMetadata.put("date_object_created",
-                        df.print(new Date().getTime()));
+            // read before locking, so readers of the state aren't held up
+            Document doc = getObjectMetadataFromDb();
+            stateLock.writeLock().lock();
+            try {
+                if (objectMetadata == null) {
+                    setObjectMetadataFromDb(doc);
+                }
+                if (objectMetadata == null) {
+                    Document created = new Document();
+                    created.put("redboxOid", oid);
+                    created.put("collectionName", collectionName);
+                    created.put("date_object_created", new Date());
+                    objectMetadata = created;
+                }
+            } finally {
+                stateLock.writeLock().unlock();
             }
         }
         return objectMetadata;
     }
 
+    private void setObjectMetadataFromDb(Document doc) {
+        Document metadata = getUnescapedDoc(doc);
+        if (metadata != null) {
+            for (String field : DATE_FIELDS) {
+                if (metadata.containsKey(field)) {
+                    metadata.put(field, toDate(metadata.get(field)));
+                }
+            }
+        }
+        objectMetadata = metadata;
+        setLoadedObjectMetadata();
+    }
+
+    /**
+     * Remembers the object metadata as loaded or saved, to tell whether a
+     * save changes it.
+     */
+    private void setLoadedObjectMetadata() {
+        loadedObjectMetadata = objectMetadata == null ? null
+                : getObjectMetadataFingerprint(objectMetadata);
+        loadedObjectMetadataVersion = getObjectMetadataVersion(
+                objectMetadata);
+    }
+
+    /**
+     * @return the object metadata fields that saves change, as JSON
+     */
+    private String getObjectMetadataFingerprint(Map<String, Object> metadata) {
+        Document fields = new Document(metadata);
+        fields.remove("_id");
+        fields.remove(OBJECT_METADATA_VERSION_FIELD);
+        for (String field : DATE_FIELDS) {
+            fields.remove(field);
+        }
+        return getEscapedDoc(fields).toJson();
+    }
+
+    private static long getObjectMetadataVersion(
+            Map<String, Object> document) {
+        Object version = document == null ? null
+                : document.get(OBJECT_METADATA_VERSION_FIELD);
+        return version instanceof Number ? ((Number) version).longValue() : 0;
+    }
+
     @Override
     public Map<String, Object> getRecordMetadata() {
         if (recordMetadata == null) {
-            recordMetadata = getUnescapedDoc(getRecordMetadataFromDb());
-            if (recordMetadata == null) {
-                recordMetadata = new Document();
-                recordMetadata.put("redboxOid", oid);
+            // read before locking, so readers of the state aren't held up
+            Document doc = getRecordMetadataFromDb();
+            stateLock.writeLock().lock();
+            try {
+                if (recordMetadata == null) {
+                    setRecordMetadataFromDb(doc);
+                    setLoadedRecord(recordMetadata);
+                }
+            } finally {
+                stateLock.writeLock().unlock();
             }
         }
         return recordMetadata;
     }
 
+    private void setRecordMetadataFromDb(Document doc) {
+        Document record = getUnescapedDoc(doc);
+        if (record == null) {
+            record = new Document();
+            record.put("redboxOid", oid);
+        }
+        recordMetadata = record;
+    }
+
+    /**
+     * Remembers the record as loaded or saved, if concurrent saves are to be
+     * merged.
+     */
+    private void setLoadedRecord(Document record) {
+        loadedRecord = storageConfig.getVersionMergeRetries() > 0
+                ? new MongoRecordMerge(this, record)
+                : null;
+    }
+
+    /**
+     * @return the version of the record as loaded or last saved, null if it
+     *         has never been saved with one
+     */
+    public Long getVersion() {
+        return getVersion(getRecordMetadata());
+    }
+
+    private static Long getVersion(Map<String, Object> record) {
+        Object version = record == null ? null : record.get(VERSION_FIELD);
+        return version instanceof Number ? ((Number) version).longValue()
+                : null;
+    }
+
+    /**
+     * Checks whether this copy of the object is still the stored version,
+     * e.g. before serving it from a cache, reading only the version.
+     *
+     * @return false if the object has since been saved or removed
+     */
+    public boolean isCurrent() {
+        Document stored = sessions
+                .find(getMetaCollection(), eq("redboxOid", oid))
+                .projection(include(VERSION_FIELD)).first();
+        if (stored == null) {
+            return false;
+        }
+        Long version = getVersion();
+        return version == null ? getVersion(stored) == null
+                : version.equals(getVersion(stored));
+    }
+
     protected Document getRecordMetadataFromDb() {
-        return getMetaCollection().find(eq("redboxOid", oid)).first();
+        return sessions.find(getMetaCollection(), eq("redboxOid", oid))
+                .first();
     }
 
     @Override
@@ -363,26 +805,247 @@ public class MongoDigitalObject extends GenericDigitalObject
         return mongoDb.getCollection(collectionName);
     }
 
-    public synchronized void save() throws StorageException {
-        MongoCollection<Document> objectMetaCol = getObjectMetadataCollection();
-        MongoCollection<Document> metaCol = getMetaCollection();
-        boolean isInStorage = existsInStorage();
-        if (!isInStorage) {
+    /**
+     * Saves the object. Saves of one object run one at a time, but the state
+     * is only locked while it's copied, so payloads can be read meanwhile.
+     */
+    public void save() throws StorageException {
+        saveLock.lock();
+        MongoSessions.Scope scope = sessions.begin();
+        try {
+            MongoCollection<Document> objectMetaCol = getObjectMetadataCollection();
+            MongoCollection<Document> metaCol = getMetaCollection();
             getObjectMetadata();
-            mergeMetaProp();
-            objectMetaCol.insertOne(getEscapedDoc(objectMetadata));
             getRecordMetadata();
-            metaCol.insertOne(getEscapedDoc(recordMetadata));
+            boolean isInStorage = existsInStorage();
+            if (!isInStorage) {
+                Document objectDoc;
+                Document recordDoc;
+                stateLock.writeLock().lock();
+                try {
+                    mergeMetaProp();
+                    denormalize();
+                    recordMetadata.put(VERSION_FIELD, 1L);
+                    objectDoc = getEscapedDoc(objectMetadata);
+                    recordDoc = getEscapedDoc(recordMetadata);
+                    setLoadedRecord(recordMetadata);
+                } finally {
+                    stateLock.writeLock().unlock();
+                }
+                sessions.insertOne(objectMetaCol, objectDoc);
+                sessions.insertOne(metaCol, recordDoc);
+            } else {
+                boolean objectMetadataChanged;
+                stateLock.writeLock().lock();
+                try {
+                    mergeMetaProp();
+                    objectMetadataChanged = !getObjectMetadataFingerprint(
+                            objectMetadata).equals(loadedObjectMetadata);
+                    if (objectMetadataChanged) {
+                        objectMetadata.put(OBJECT_METADATA_VERSION_FIELD,
+                                loadedObjectMetadataVersion + 1);
+                    }
+                    objectMetadata.put("date_object_modified", new Date());
+                    if (metadataProp != null) {
+                        putDateProperties();
+                    }
+                    denormalize();
+                } finally {
+                    stateLock.writeLock().unlock();
+                }
+                // full replacement of record metadata, if no one else saved
+                // it...
+                replaceRecord(metaCol, objectMetadataChanged);
+                // ...then of object metadata, unless a later save has
+                // already written a newer one
+                Document objectDoc;
+                long objectMetadataVersion;
+                stateLock.readLock().lock();
+                try {
+                    objectDoc = getEscapedDoc(objectMetadata);
+                    objectMetadataVersion = getObjectMetadataVersion(
+                            objectMetadata);
+                } finally {
+                    stateLock.readLock().unlock();
+                }
+                if (sessions.findOneAndReplace(objectMetaCol,
+                        and(eq("redboxOid", oid),
+                                or(exists(OBJECT_METADATA_VERSION_FIELD, false),
+                                        lte(OBJECT_METADATA_VERSION_FIELD,
+                                                objectMetadataVersion))),
+                        objectDoc) == null) {
+                    log.debug("Newer object metadata of: " + oid
+                            + " already stored");
+                }
+            }
+            stateLock.writeLock().lock();
+            try {
+                setLoadedObjectMetadata();
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            if (metadataDocuments != null) {
+                metadataDocuments.update(this);
+            }
+            invalidateQueries();
+        } finally {
+            scope.close();
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the stored record if it's still the version loaded. Otherwise
+     * the saves are merged, if allowed and their changes don't overlap, and
+     * the replace is tried again. The object metadata merges the same way:
+     * the other save's is taken if this one left it as loaded.
+     *
+     * @param objectMetadataChanged - whether this save changed the object
+     *            metadata
+     * @throws MongoVersionConflictException if the record was saved since it
+     *             was loaded and couldn't be merged
+     */
+    private void replaceRecord(MongoCollection<Document> metaCol,
+            boolean objectMetadataChanged) throws StorageException {
+        int merges = storageConfig.getVersionMergeRetries();
+        while (true) {
+            Long expected;
+            Document record;
+            List<Map<String, Object>> files;
+            MongoRecordMerge saved = null;
+            stateLock.readLock().lock();
+            try {
+                expected = getVersion(recordMetadata);
+                record = getEscapedDoc(recordMetadata);
+                files = getFileList();
+                if (merges > 0) {
+                    saved = new MongoRecordMerge(this, recordMetadata);
+                }
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            long next = expected == null ? 1L : expected + 1;
+            record.put(VERSION_FIELD, next);
+            Document previous = sessions.findOneAndReplace(metaCol,
+                    and(eq("redboxOid", oid),
+                            expected == null ? exists(VERSION_FIELD, false)
+                                    : eq(VERSION_FIELD, expected)),
+                    record);
+            if (previous != null) {
+                stateLock.writeLock().lock();
+                try {
+                    recordMetadata.put(VERSION_FIELD, next);
+                    loadedRecord = saved;
+                } finally {
+                    stateLock.writeLock().unlock();
+                }
+                keepRelocations(getUnescapedDoc(previous), files);
+                return;
+            }
+            Document current = getUnescapedDoc(getRecordMetadataFromDb());
+            Long actual = getVersion(current);
+            long theirObjectMetadataVersion = getObjectMetadataVersion(current);
+            Document theirObjectMetadata = null;
+            if (current != null
+                    && theirObjectMetadataVersion != loadedObjectMetadataVersion
+                    && !objectMetadataChanged) {
+                theirObjectMetadata = getObjectMetadataFromDb();
+            }
+            stateLock.writeLock().lock();
+            try {
+                Document merged = null;
+                if (current != null && loadedRecord != null && merges-- > 0) {
+                    merged = loadedRecord.merge(recordMetadata, current);
+                }
+                if (merged != null
+                        && theirObjectMetadataVersion != loadedObjectMetadataVersion
+                        && !takeObjectMetadata(theirObjectMetadata,
+                                theirObjectMetadataVersion)) {
+                    merged = null;
+                }
+                if (merged == null) {
+                    throw new MongoVersionConflictException(oid, expected,
+                            actual);
+                }
+                log.info("Merged a concurrent save of object: " + oid
+                        + ", at version " + actual);
+                merged.put(VERSION_FIELD, actual);
+                recordMetadata = merged;
+                loadedRecord = new MongoRecordMerge(this, current);
+                denormalize();
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the object metadata of the save being merged with, keeping this
+     * save's modified date.
+     *
+     * @param theirs - the stored object metadata, null if this save changed
+     *            its own
+     * @param version - the object metadata version of the stored record
+     * @return false if it can't be taken: this save changed the object
+     *         metadata too, or the other save hasn't written it yet
+     */
+    private boolean takeObjectMetadata(Document theirs, long version) {
+        if (theirs == null || getObjectMetadataVersion(theirs) != version) {
+            return false;
+        }
+        Object modified = objectMetadata.get("date_object_modified");
+        setObjectMetadataFromDb(theirs);
+        objectMetadata.put("date_object_modified", modified);
+        if (metadataProp != null) {
+            // in place, as callers hold on to the properties
+            metadataProp.clear();
+            metadataProp.putAll(objectMetadata);
+            putDateProperties();
+        }
+        return true;
+    }
+
+    private void invalidateQueries() {
+        if (queryCache != null) {
+            queryCache.invalidate(collectionName);
+            queryCache.invalidate(objectMetadataCollectionName);
+        }
+    }
+
+    private void denormalize() {
+        denormalizeObjectMetadata();
+        denormalizeText();
+    }
+
+    /**
+     * Copies the configured object metadata fields into the record, so
+     * record queries and views don't need to join the object metadata.
+     */
+    private void denormalizeObjectMetadata() {
+        Document copy = new Document();
+        for (String field : storageConfig.getDenormalizedFields()) {
+            copy.put(field, objectMetadata.get(field));
+        }
+        getRecordMetadata().put(DENORMALIZED_FIELD, copy);
+        getRecordMetadata().put(OBJECT_METADATA_VERSION_FIELD,
+                getObjectMetadataVersion(objectMetadata));
+    }
+
+    /**
+     * Copies the tfpackage fields of the text index into the record, so the
+     * index covers the tfpackage alone rather than every payload.
+     */
+    private void denormalizeText() {
+        Document text = null;
+        if (!storageConfig.getTextIndexFields().isEmpty()) {
+            text = MongoTextSearch.getText(
+                    getPayloadMeta(MongoMetadataDocuments.TFPACKAGE_PID),
+                    storageConfig.getTextIndexFields());
+        }
+        if (text == null) {
+            getRecordMetadata().remove(TEXT_FIELD);
         } else {
-            objectMetadata.put("date_object_modified",
-                    df.print(new Date().getTime()));
-            mergeMetaProp();
-            // full replacement of object metadata...
-            objectMetaCol.findOneAndReplace(eq("redboxOid", oid),
-                    getEscapedDoc(objectMetadata));
-            // full replacement of record metadata...
-            metaCol.findOneAndReplace(eq("redboxOid", oid),
-                    getEscapedDoc(recordMetadata));
+            getRecordMetadata().put(TEXT_FIELD, text);
         }
     }
 
@@ -392,7 +1055,13 @@ public class MongoDigitalObject extends GenericDigitalObject
         if (metadataProp != null && !metadataProp.isEmpty()) {
             log.info("merging properties...");
             for (Map.Entry<Object, Object> entry : metadataProp.entrySet()) {
-                objectMetadata.put((String) entry.getKey(), entry.getValue());
+                String key = (String) entry.getKey();
+                if (DATE_FIELDS.contains(key)
+                        || OBJECT_METADATA_VERSION_FIELD.equals(key)) {
+                    // timestamps and versions are maintained by storage
+                    continue;
+                }
+                objectMetadata.put(key, entry.getValue());
             }
             log.info(objectMetadata.toString());
         } else {
@@ -476,70 +1145,406 @@ public class MongoDigitalObject extends GenericDigitalObject
     }
 
     public void load() throws StorageException {
-        boolean isInStorage = existsInStorage();
-        if (!isInStorage) {
-            throw new StorageException(
-                    "Object with OID: " + oid + ", doesn't exist!");
-        } else {
-            getObjectMetadata();
-            getRecordMetadata();
+        MongoSessions.Scope scope = sessions.begin();
+        try {
+            Document objectMetadataDoc = getObjectMetadataFromDb();
+            if (objectMetadataDoc == null) {
+                throw new StorageException(
+                        "Object with OID: " + oid + ", doesn't exist!");
+            }
+            load(objectMetadataDoc);
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * Loads the object without blocking, fetching the object metadata and
+     * the record at the same time.
+     *
+     * @return completes with this object, or with a StorageException if it
+     *         doesn't exist
+     */
+    public CompletableFuture<MongoDigitalObject> loadAsync() {
+        final MongoSessions.Fork fork = sessions.fork();
+        CompletableFuture<Document> objectMetadataDoc = CompletableFuture
+                .supplyAsync(new Supplier<Document>() {
+                    @Override
+                    public Document get() {
+                        MongoSessions.Scope scope = sessions.begin(fork);
+                        try {
+                            return getObjectMetadataFromDb();
+                        } finally {
+                            scope.close();
+                        }
+                    }
+                }, getExecutor());
+        CompletableFuture<Document> recordDoc = CompletableFuture
+                .supplyAsync(new Supplier<Document>() {
+                    @Override
+                    public Document get() {
+                        MongoSessions.Scope scope = sessions.begin(fork);
+                        try {
+                            return getRecordMetadataFromDb();
+                        } finally {
+                            scope.close();
+                        }
+                    }
+                }, getExecutor());
+        return objectMetadataDoc.thenCombine(recordDoc,
+                new BiFunction<Document, Document, MongoDigitalObject>() {
+                    @Override
+                    public MongoDigitalObject apply(Document objectMetadata,
+                            Document record) {
+                        if (objectMetadata == null) {
+                            throw new CompletionException(
+                                    new StorageException("Object with OID: "
+                                            + oid + ", doesn't exist!"));
+                        }
+                        stateLock.writeLock().lock();
+                        try {
+                            setObjectMetadataFromDb(objectMetadata);
+                            setRecordMetadataFromDb(record);
+                            setLoadedRecord(recordMetadata);
+                        } finally {
+                            stateLock.writeLock().unlock();
+                        }
+                        return MongoDigitalObject.this;
+                    }
+                });
+    }
+
+    /**
+     * Saves the object without blocking, see {@link #save()}.
+     *
+     * @return completes when saved, or with the StorageException
+     */
+    public CompletableFuture<Void> saveAsync() {
+        final MongoSessions.Fork fork = sessions.fork();
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                MongoSessions.Scope scope = sessions.begin(fork);
+                try {
+                    save();
+                } catch (StorageException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    scope.close();
+                }
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * Opens a payload without blocking.
+     *
+     * @return completes with the payload's data, to be closed by the caller,
+     *         or with the StorageException
+     */
+    public CompletableFuture<InputStream> openPayloadAsync(final String pid) {
+        return CompletableFuture.supplyAsync(new Supplier<InputStream>() {
+            @Override
+            public InputStream get() {
+                try {
+                    return getPayload(pid).open();
+                } catch (StorageException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * Loads the object using an already fetched object metadata document,
+     * saving the round trips of {@link #load()}.
+     *
+     * @param objectMetadataDoc - the object's document from the object
+     *            metadata collection
+     */
+    public void load(Document objectMetadataDoc) {
+        stateLock.writeLock().lock();
+        try {
+            setObjectMetadataFromDb(objectMetadataDoc);
+        } finally {
+            stateLock.writeLock().unlock();
         }
+        getRecordMetadata();
     }
 
     public void remove() throws StorageException {
         MongoCollection<Document> objectMetaCol = getObjectMetadataCollection();
         MongoCollection<Document> metaCol = getMetaCollection();
 
-        boolean isInStorage = existsInStorage();
-        if (!isInStorage) {
-            throw new StorageException(
-                    "Object with OID: " + oid + ", doesn't exist!");
-        } else {
-            objectMetaCol.findOneAndDelete(eq("redboxOid", oid));
-            metaCol.findOneAndDelete(eq("redboxOid", oid));
+        MongoSessions.Scope scope = sessions.begin();
+        try {
+            boolean isInStorage = existsInStorage();
+            if (!isInStorage) {
+                throw new StorageException(
+                        "Object with OID: " + oid + ", doesn't exist!");
+            } else {
+                sessions.findOneAndDelete(objectMetaCol, eq("redboxOid", oid));
+                sessions.findOneAndDelete(metaCol, eq("redboxOid", oid));
+                if (metadataDocuments != null) {
+                    metadataDocuments.remove(this);
+                }
+                invalidateQueries();
+            }
+        } finally {
+            scope.close();
         }
     }
     
+    /**
+     * @return the payloads' metadata; the list is replaced rather than changed
+     *         on writes, so it can be read without locking
+     */
     @SuppressWarnings("unchecked")
     public List<Map<String, Object>> getFileList() {
-        if (recordMetadata == null) {
-            return null;
+        stateLock.readLock().lock();
+        try {
+            if (recordMetadata == null) {
+                return null;
+            }
+            return (List<Map<String, Object>>) recordMetadata.get("files");
+        } finally {
+            stateLock.readLock().unlock();
         }
-        return (List<Map<String, Object>>) recordMetadata.get("files");
     }
 
-    protected void addFileMeta(MongoPayload payload) {
-        List<Map<String, Object>> files = getFileList();
-        if (files == null) {
-            files = new ArrayList<Map<String, Object>>();
-            recordMetadata.put("files", files);
+    /**
+     * Swaps in a changed copy of the file list, holding the write lock.
+     */
+    private void setFileList(List<Map<String, Object>> files) {
+        stateLock.writeLock().lock();
+        try {
+            getRecordMetadata().put("files", files);
+        } finally {
+            stateLock.writeLock().unlock();
         }
-        Map<String, Object> info = payload.getMetadataDoc();
-        files.add(info);
     }
 
-    protected void removeFileMeta(String pid) {
-        List<Map<String, Object>> files = getFileList();
-        Map<String, Object> metaToRemove = null;
-        if (files != null) {
-            for (Map<String, Object> info : files) {
-                if (info.get("pid").equals(pid)) {
-                    metaToRemove = info;
+    /**
+     * @return a copy of the file list, without the payload's entry
+     */
+    private List<Map<String, Object>> copyFileList(String pid) {
+        List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
+        List<Map<String, Object>> current = getFileList();
+        if (current != null) {
+            for (Map<String, Object> info : current) {
+                if (!info.get("pid").equals(pid)) {
+                    files.add(info);
                 }
             }
-            if (metaToRemove != null) {
-                files.remove(metaToRemove);
+        }
+        return files;
+    }
+
+    protected void addFileMeta(MongoPayload payload) {
+        stateLock.writeLock().lock();
+        try {
+            List<Map<String, Object>> files = copyFileList(null);
+            files.add(payload.getMetadataDoc());
+            setFileList(files);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    protected void removeFileMeta(String pid) {
+        stateLock.writeLock().lock();
+        try {
+            if (getFileList() != null) {
+                setFileList(copyFileList(pid));
             }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * Replaces a payload's entry, moving it to the end of the file list as
+     * removing and adding it did.
+     */
+    protected void replaceFileMeta(String pid, MongoPayload payload) {
+        stateLock.writeLock().lock();
+        try {
+            List<Map<String, Object>> files = copyFileList(pid);
+            files.add(payload.getMetadataDoc());
+            setFileList(files);
+        } finally {
+            stateLock.writeLock().unlock();
         }
     }
 
     public void updatePayloadMeta(MongoPayload payload)
             throws StorageException {
-        removeFileMeta(payload.getId());
-        addFileMeta(payload);
-        save();
-        payload.setMetaChanged(false);
+        Lock payloadLock = lockPayload(payload.getId());
+        try {
+            replaceFileMeta(payload.getId(), payload);
+            save();
+            payload.setMetaChanged(false);
+        } finally {
+            payloadLock.unlock();
+        }
+    }
+
+    /**
+     * Counts a read of a payload towards its access statistics. The count
+     * is buffered by the access log and written with the next flush, so the
+     * file list in memory keeps the statistics as loaded.
+     *
+     * @param pid - the payload that was read
+     * @param accessed - when it was read
+     */
+    public void recordPayloadAccess(String pid, Date accessed) {
+        if (accessLog != null) {
+            accessLog.record(collectionName, oid, pid, accessed);
+            return;
+        }
+        MongoPayloadAccessLog unbuffered = new MongoPayloadAccessLog(mongoDb);
+        unbuffered.setSessions(sessions);
+        unbuffered.record(collectionName, oid, pid, accessed);
+        unbuffered.flush();
+    }
+
+    /**
+     * Swaps one entry of the file list; entries are shared with earlier
+     * copies of the list, so they're replaced rather than changed.
+     */
+    private void replacePayloadMeta(Map<String, Object> info,
+            Map<String, Object> updated) {
+        stateLock.writeLock().lock();
+        try {
+            List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
+            for (Map<String, Object> entry : getFileList()) {
+                files.add(entry == info ? updated : entry);
+            }
+            setFileList(files);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records that a payload's data moved to another backend with a targeted
+     * update of its entry. Housekeeping isn't a modification, so the
+     * object's modified date and version stay as they are.
+     *
+     * @param pid - the payload moved
+     * @param fromId - its id in the backend it moved from
+     * @param location - its new 'backend_type', 'payloadId' and 'tier', and
+     *            the backend's metadata under the new id
+     * @return false if the entry no longer points at the old copy, i.e. the
+     *         payload was rewritten meanwhile
+     */
+    public boolean relocatePayload(String pid, String fromId,
+            Document location) {
+        return setPayloadLocation(pid, fromId, location, true);
+    }
+
+    /**
+     * @param moved - add fromId to the ids the data moved away from
+     */
+    private boolean setPayloadLocation(String pid, String fromId,
+            Document location, boolean moved) {
+        List<Bson> updates = new ArrayList<Bson>();
+        for (Map.Entry<String, Object> field : location.entrySet()) {
+            Object value = field.getValue();
+            updates.add(set("files.$." + escapeKey(field.getKey()),
+                    value instanceof Document
+                            ? getEscapedDoc((Document) value)
+                            : value));
+        }
+        if (fromId != null && !location.containsKey(fromId)) {
+            updates.add(unset("files.$." + escapeKey(fromId)));
+        }
+        if (moved) {
+            updates.add(addToSet("files.$." + MOVED_FROM_FIELD, fromId));
+        }
+        UpdateResult result = sessions.updateOne(getMetaCollection(),
+                and(eq("redboxOid", oid),
+                        elemMatch("files",
+                                and(eq("pid", pid), eq("payloadId", fromId)))),
+                combine(updates));
+        if (result.getMatchedCount() == 0) {
+            return false;
+        }
+        stateLock.writeLock().lock();
+        try {
+            Map<String, Object> info = getPayloadMeta(pid);
+            if (info != null && equal(fromId, info.get("payloadId"))) {
+                Document updated = new Document(info);
+                if (fromId != null) {
+                    updated.remove(fromId);
+                }
+                updated.putAll(location);
+                if (moved) {
+                    List<Object> movedFrom = new ArrayList<Object>();
+                    if (info.get(MOVED_FROM_FIELD) instanceof List) {
+                        movedFrom.addAll((List<?>) info.get(MOVED_FROM_FIELD));
+                    }
+                    if (!movedFrom.contains(fromId)) {
+                        movedFrom.add(fromId);
+                    }
+                    updated.put(MOVED_FROM_FIELD, movedFrom);
+                }
+                replacePayloadMeta(info, updated);
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Puts back the locations of payloads moved by housekeeping after this
+     * copy was loaded, which a save just overwrote with the old ones.
+     *
+     * @param previous - the record the save replaced, unescaped
+     * @param written - the file list the save wrote
+     */
+    @SuppressWarnings("unchecked")
+    private void keepRelocations(Document previous,
+            List<Map<String, Object>> written) {
+        if (previous == null || written == null
+                || !(previous.get("files") instanceof List)) {
+            return;
+        }
+        Map<String, Map<String, Object>> stored = new HashMap<String, Map<String, Object>>();
+        for (Map<String, Object> info : (List<Map<String, Object>>) previous
+                .get("files")) {
+            stored.put((String) info.get("pid"), info);
+        }
+        for (Map<String, Object> ours : written) {
+            String pid = (String) ours.get("pid");
+            Map<String, Object> theirs = stored.get(pid);
+            Object ourId = ours.get("payloadId");
+            if (theirs == null || ourId == null
+                    || ourId.equals(theirs.get("payloadId"))
+                    || !(theirs.get(MOVED_FROM_FIELD) instanceof List)
+                    || !((List<?>) theirs.get(MOVED_FROM_FIELD))
+                            .contains(ourId)) {
+                continue;
+            }
+            Document location = new Document();
+            for (String field : LOCATION_FIELDS) {
+                if (theirs.containsKey(field)) {
+                    location.put(field, theirs.get(field));
+                }
+            }
+            Object theirId = theirs.get("payloadId");
+            if (theirId != null && theirs.get(theirId) != null) {
+                location.put((String) theirId, theirs.get(theirId));
+            }
+            log.info("Keeping the new location of moved payload: " + oid
+                    + "/" + pid);
+            setPayloadLocation(pid, (String) ourId, location, false);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     public Map<String, Object> getPayloadMeta(final String pid) {
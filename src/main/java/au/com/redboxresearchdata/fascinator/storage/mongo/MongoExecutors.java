@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the executors of the storage's background and asynchronous I/O.
+ *
+ * On JDK 21 and later, blocking I/O is best run on virtual threads, which
+ * cost little while they wait. This plugin still builds for Java 8, so
+ * they're looked up reflectively, with a pool of daemon platform threads
+ * where they don't exist.
+ */
+public class MongoExecutors {
+
+    private static Logger log = LoggerFactory.getLogger(MongoExecutors.class);
+
+    private MongoExecutors() {
+    }
+
+    /**
+     * @param name - prefix of the thread names
+     * @param threads - size of the platform thread pool
+     * @return a daemon thread pool of the given size
+     */
+    public static ExecutorService newPlatformExecutor(final String name,
+            int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @param name - prefix of the thread names
+     * @param threads - size of the platform thread pool used without virtual
+     *            threads
+     * @param virtual - use virtual threads if the JDK has them; they aren't
+     *            pooled, so callers bound their own parallelism
+     * @return an executor starting a virtual thread per task, or a daemon
+     *         thread pool
+     */
+    public static ExecutorService newExecutor(String name, int threads,
+            boolean virtual) {
+        if (virtual) {
+            ExecutorService executor = newVirtualExecutor(name);
+            if (executor != null) {
+                return executor;
+            }
+        }
+        return newPlatformExecutor(name, threads);
+    }
+
+    /**
+     * @return Executors.newThreadPerTaskExecutor with a virtual thread
+     *         factory, or null before JDK 21
+     */
+    static ExecutorService newVirtualExecutor(String name) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class
+                    .forName("java.lang.Thread$Builder");
+            builder = builderClass
+                    .getMethod("name", String.class, long.class)
+                    .invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass
+                    .getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor",
+                            ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            log.warn("Virtual threads unavailable, using platform threads: "
+                    + e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.conversions.Bson;
+
+import com.mongodb.Block;
+import com.mongodb.CursorType;
+import com.mongodb.Function;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Collation;
+
+/**
+ * A find whose cursors are opened through the {@link MongoQueryGuard}, so the
+ * handle of the query's options can cancel them.
+ */
+class MongoGuardedFindIterable<T> implements FindIterable<T> {
+
+    private final FindIterable<T> find;
+    private final MongoQueryGuard queryGuard;
+    private final MongoQueryOptions options;
+
+    MongoGuardedFindIterable(FindIterable<T> find, MongoQueryGuard queryGuard,
+            MongoQueryOptions options) {
+        this.find = find;
+        this.queryGuard = queryGuard;
+        this.options = options;
+    }
+
+    @Override
+    public MongoCursor<T> iterator() {
+        return queryGuard.open(find, options);
+    }
+
+    @Override
+    public T first() {
+        return queryGuard.first(find, options);
+    }
+
+    @Override
+    public <U> MongoIterable<U> map(Function<T, U> mapper) {
+        return find.map(mapper);
+    }
+
+    @Override
+    public void forEach(Block<? super T> block) {
+        MongoCursor<T> cursor = iterator();
+        try {
+            while (cursor.hasNext()) {
+                block.apply(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        MongoCursor<T> cursor = iterator();
+        try {
+            while (cursor.hasNext()) {
+                target.add(cursor.next());
+            }
+            return target;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public FindIterable<T> filter(Bson filter) {
+        find.filter(filter);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> limit(int limit) {
+        find.limit(limit);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> skip(int skip) {
+        find.skip(skip);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> maxTime(long maxTime, TimeUnit timeUnit) {
+        find.maxTime(maxTime, timeUnit);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> maxAwaitTime(long maxAwaitTime,
+            TimeUnit timeUnit) {
+        find.maxAwaitTime(maxAwaitTime, timeUnit);
+        return this;
+    }
+
+    @Override
+    @Deprecated
+    public FindIterable<T> modifiers(Bson modifiers) {
+        find.modifiers(modifiers);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> projection(Bson projection) {
+        find.projection(projection);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> sort(Bson sort) {
+        find.sort(sort);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> noCursorTimeout(boolean noCursorTimeout) {
+        find.noCursorTimeout(noCursorTimeout);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> oplogReplay(boolean oplogReplay) {
+        find.oplogReplay(oplogReplay);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> partial(boolean partial) {
+        find.partial(partial);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> cursorType(CursorType cursorType) {
+        find.cursorType(cursorType);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> batchSize(int batchSize) {
+        find.batchSize(batchSize);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> collation(Collation collation) {
+        find.collation(collation);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> comment(String comment) {
+        find.comment(comment);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> hint(Bson hint) {
+        find.hint(hint);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> max(Bson max) {
+        find.max(max);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> min(Bson min) {
+        find.min(min);
+        return this;
+    }
+
+    @Override
+    @Deprecated
+    public FindIterable<T> maxScan(long maxScan) {
+        find.maxScan(maxScan);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> returnKey(boolean returnKey) {
+        find.returnKey(returnKey);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> showRecordId(boolean showRecordId) {
+        find.showRecordId(showRecordId);
+        return this;
+    }
+
+    @Override
+    @Deprecated
+    public FindIterable<T> snapshot(boolean snapshot) {
+        find.snapshot(snapshot);
+        return this;
+    }
+
+}
@@ -0,0 +1,574 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.set;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * The 'metadataDocuments' collection: one document per record, holding the
+ * record's tfpackage together with its OID, package type and dates.
+ *
+ * In VIEW mode it's a MongoDB view over the record collection, computed on
+ * every query. In MATERIALIZED mode it's a real, indexed collection kept up
+ * to date by {@link MongoDigitalObject#save()} and
+ * {@link MongoDigitalObject#remove()}, and rebuilt in one pass by
+ * {@link #rebuild()}.
+ */
+public class MongoMetadataDocuments {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoMetadataDocuments.class);
+
+    static String TFPACKAGE_PID = "metadata.tfpackage";
+    static int BACKFILL_BATCH_SIZE = 500;
+    /**
+     * Collection of the markers of completed backfills, one per record
+     * collection
+     */
+    static String MIGRATIONS_COLLECTION = "storageMigrations";
+    /**
+     * tfpackage fields covered by the records' 'metaViewIndex', as paths in
+     * the metadata document
+     */
+    static List<String> VIEW_INDEX_FIELDS = Arrays.asList(
+            "metaMetadata.brandId", "metaMetadata.type", "workflow.stage");
+
+    enum Mode {
+        VIEW, MATERIALIZED
+    }
+
+    protected MongoDatabase mongoDb;
+    protected String name;
+    protected String sourceCollectionName;
+    protected String objectMetadataCollectionName;
+    protected Mode mode;
+    protected List<String> denormalizedFields;
+    protected MongoDatabase queryDb;
+    protected MongoSessions sessions = new MongoSessions(null);
+    protected MongoQueryGuard queryGuard;
+
+    public MongoMetadataDocuments(MongoDatabase mongoDb, String name,
+            String sourceCollectionName, String objectMetadataCollectionName,
+            Mode mode, List<String> denormalizedFields) {
+        this.mongoDb = mongoDb;
+        this.name = name;
+        this.sourceCollectionName = sourceCollectionName;
+        this.objectMetadataCollectionName = objectMetadataCollectionName;
+        this.mode = mode;
+        this.denormalizedFields = denormalizedFields;
+        this.queryDb = mongoDb;
+    }
+
+    /**
+     * @param queryDb - the database facet queries read from, e.g. one
+     *            preferring secondaries
+     */
+    public void setQueryDatabase(MongoDatabase queryDb) {
+        this.queryDb = queryDb;
+    }
+
+    /**
+     * @param sessions - orders the updates of saved objects with the unit
+     *            of work's later queries
+     */
+    public void setSessions(MongoSessions sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * @param queryGuard - applies the time limit and handle of the facet
+     *            queries' options
+     */
+    void setQueryGuard(MongoQueryGuard queryGuard) {
+        this.queryGuard = queryGuard;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the stages turning a record into its metadata document. The
+     *         object metadata comes from the record's denormalized copy, so
+     *         there's no per-document $lookup, but the fields keep the shape
+     *         the $lookup gave them: a one element list, or an empty list
+     *         for a missing field. Materialized documents hold plain values.
+     */
+    public List<BsonDocument> getPipeline() {
+        return getPipeline(true);
+    }
+
+    /**
+     * @param lookupShape - wrap the object metadata fields in lists, as the
+     *            view always has
+     */
+    private List<BsonDocument> getPipeline(boolean lookupShape) {
+        BsonDocument metadata = new BsonDocument("redboxOid",
+                new BsonString("$redboxOid"));
+        for (String field : denormalizedFields) {
+            BsonString value = new BsonString("$"
+                    + MongoDigitalObject.DENORMALIZED_FIELD + "." + field);
+            metadata.put(field, lookupShape ? asLookupList(value) : value);
+        }
+        return Arrays.asList(
+                BsonDocument.parse("{$match: {files: { $elemMatch:{ pid: '"
+                        + TFPACKAGE_PID + "'}}}}"),
+                BsonDocument.parse(
+                        "{ $project: { files: { '$filter': { input: '$files', as: 'files', cond: {$eq: ['$$files.pid','"
+                                + TFPACKAGE_PID + "']}}}, '"
+                                + MongoDigitalObject.DENORMALIZED_FIELD
+                                + "': 1}}"),
+                BsonDocument.parse("{ $unwind:  '$files' }"),
+                BsonDocument.parse(
+                        "{ $project: { 'metadata':'$files.source.payload', 'redboxOid': '$files.oid', '"
+                                + MongoDigitalObject.DENORMALIZED_FIELD
+                                + "': 1}}"),
+                new BsonDocument("$addFields",
+                        new BsonDocument("metadata", metadata)),
+                BsonDocument.parse("{ $replaceRoot: { newRoot: '$metadata'}}"));
+    }
+
+    private static BsonDocument asLookupList(BsonString value) {
+        // the copy holds null for fields the object metadata doesn't have
+        BsonDocument missing = new BsonDocument("$eq",
+                new BsonArray(Arrays.<BsonValue> asList(
+                        new BsonDocument("$ifNull",
+                                new BsonArray(Arrays.<BsonValue> asList(value,
+                                        BsonNull.VALUE))),
+                        BsonNull.VALUE)));
+        return new BsonDocument("$cond",
+                new BsonArray(Arrays.<BsonValue> asList(missing,
+                        new BsonArray(),
+                        new BsonArray(Arrays.<BsonValue> asList(value)))));
+    }
+
+    /**
+     * @param packageType - the package type to select
+     * @return the stages of a package type's view
+     */
+    public List<BsonDocument> getPackagePipeline(String packageType) {
+        List<BsonDocument> pipeline = new ArrayList<BsonDocument>();
+        if (mode == Mode.VIEW) {
+            // match on the record's own indexed copy before reshaping
+            pipeline.add(new BsonDocument("$match",
+                    new BsonDocument(MongoDigitalObject.DENORMALIZED_FIELD
+                            + ".packageType", new BsonString(packageType))));
+            pipeline.addAll(getPipeline());
+        } else {
+            pipeline.add(new BsonDocument("$match", new BsonDocument(
+                    "packageType", new BsonString(packageType))));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Counts the distinct values of each facet field among the metadata
+     * documents matching the filter, and fetches a page of them, in a single
+     * $facet aggregation.
+     *
+     * In VIEW mode the aggregation runs on the records rather than the view,
+     * so conditions on the {@link #VIEW_INDEX_FIELDS} can be checked against
+     * the records' 'metaViewIndex' before any document is reshaped.
+     *
+     * @param packageType - only documents of this package type, or null for
+     *            all
+     * @param filter - condition on the metadata documents
+     * @param facetFields - paths of the fields to count
+     * @param sort - order of the page, may be null
+     * @param startIndex - first document of the page
+     * @param rows - size of the page, 0 for counts only
+     * @return the aggregation, yielding one document with the 'docs' of the page, the 'count' of all
+     *         matches as a one element list, and for the n-th facet field an
+     *         'facet_n' list of '_id' (value) and 'count' pairs, most frequent
+     *         first
+     */
+    public AggregateIterable<Document> facet(String packageType,
+            BsonDocument filter,
+            List<String> facetFields, BsonDocument sort, int startIndex,
+            int rows) {
+        return facet(packageType, filter, facetFields, sort, startIndex, rows,
+                null);
+    }
+
+    /**
+     * See {@link #facet(String, BsonDocument, List, BsonDocument, int, int)};
+     * the aggregation is tagged with the handle of the options, if any, and
+     * limited to their time limit or the query guard's default.
+     *
+     * @param options - may be null
+     */
+    public AggregateIterable<Document> facet(String packageType,
+            BsonDocument filter,
+            List<String> facetFields, BsonDocument sort, int startIndex,
+            int rows, MongoQueryOptions options) {
+        List<BsonDocument> pipeline = new ArrayList<BsonDocument>();
+        String collectionName;
+        if (mode == Mode.VIEW) {
+            collectionName = sourceCollectionName;
+            BsonDocument tfpackage = new BsonDocument("pid",
+                    new BsonString(TFPACKAGE_PID));
+            for (String field : VIEW_INDEX_FIELDS) {
+                if (filter.containsKey(field)) {
+                    tfpackage.put(MongoPayloadBackendCollection.SOURCE_FIELD
+                            + "." + MongoPayloadBackendCollection.PAYLOAD_FIELD
+                            + "." + field, filter.get(field));
+                }
+            }
+            if (packageType != null) {
+                pipeline.add(new BsonDocument("$match",
+                        new BsonDocument(MongoDigitalObject.DENORMALIZED_FIELD
+                                + ".packageType", new BsonString(packageType))));
+            }
+            pipeline.add(new BsonDocument("$match", new BsonDocument("files",
+                    new BsonDocument("$elemMatch", tfpackage))));
+            pipeline.addAll(getPipeline());
+        } else {
+            collectionName = name;
+            if (packageType != null) {
+                pipeline.add(new BsonDocument("$match", new BsonDocument(
+                        "packageType", new BsonString(packageType))));
+            }
+        }
+        pipeline.add(new BsonDocument("$match", filter));
+        BsonDocument facets = new BsonDocument("count",
+                new BsonArray(Arrays.<BsonValue> asList(new BsonDocument(
+                        "$count", new BsonString("numFound")))));
+        if (rows > 0) {
+            BsonArray page = new BsonArray();
+            if (sort != null && !sort.isEmpty()) {
+                page.add(new BsonDocument("$sort", sort));
+            }
+            page.add(new BsonDocument("$skip", new BsonInt32(startIndex)));
+            page.add(new BsonDocument("$limit", new BsonInt32(rows)));
+            facets.put("docs", page);
+        }
+        for (int i = 0; i < facetFields.size(); i++) {
+            // facet output names can't contain '.', so they're numbered
+            facets.put("facet_" + i,
+                    new BsonArray(Arrays.<BsonValue> asList(new BsonDocument(
+                            "$sortByCount",
+                            new BsonString("$" + facetFields.get(i))))));
+        }
+        pipeline.add(new BsonDocument("$facet", facets));
+        if (queryGuard == null) {
+            return sessions.aggregate(queryDb.getCollection(collectionName),
+                    pipeline).allowDiskUse(true);
+        }
+        return queryGuard.apply(sessions.aggregate(
+                queryDb.getCollection(collectionName),
+                queryGuard.tagPipeline(pipeline, options)).allowDiskUse(true),
+                options);
+    }
+
+    /**
+     * Creates, or brings up to date, a view selecting one package type.
+     *
+     * @param viewName - name of the view
+     * @param packageType - the package type to select
+     */
+    public void createPackageView(String viewName, String packageType) {
+        createOrUpdateView(viewName,
+                mode == Mode.VIEW ? sourceCollectionName : name,
+                getPackagePipeline(packageType));
+    }
+
+    private void createOrUpdateView(String viewName, String viewOn,
+            List<BsonDocument> pipeline) {
+        try {
+            mongoDb.createView(viewName, viewOn, pipeline);
+        } catch (MongoCommandException e) {
+            // Error code 48 means that the view has already been created,
+            // redefine it in case it was created by an older version
+            if (e.getCode() != 48) {
+                throw e;
+            }
+            mongoDb.runCommand(new Document("collMod", viewName)
+                    .append("viewOn", viewOn).append("pipeline", pipeline));
+        }
+    }
+
+    /**
+     * Creates the view, or in MATERIALIZED mode the collection and its
+     * indexes. Records saved before denormalization, or before the
+     * denormalized fields last changed, are backfilled first, so they keep
+     * their package type and dates; a marker in the
+     * {@link #MIGRATIONS_COLLECTION} records the backfill, so later starts
+     * don't look for such records. The first start in MATERIALIZED mode
+     * populates the collection.
+     */
+    public void create() {
+        MongoCollection<Document> source = mongoDb
+                .getCollection(sourceCollectionName);
+        for (String field : denormalizedFields) {
+            source.createIndex(
+                    Indexes.ascending(
+                            MongoDigitalObject.DENORMALIZED_FIELD + "." + field),
+                    new IndexOptions().sparse(true).background(true));
+        }
+        Document info = getCollectionInfo();
+        boolean materializing = mode == Mode.MATERIALIZED && (info == null
+                || "view".equals(info.getString("type")));
+        Document marker = getBackfillMarker();
+        if (materializing) {
+            log.info("Materializing '" + name + "' for the first time.");
+            backfill(false);
+        } else if (marker == null) {
+            log.info("Adding denormalized object metadata to the records"
+                    + " saved without it.");
+            backfill(true);
+        } else if (!denormalizedFields.equals(marker.get("fields"))) {
+            log.info("Denormalized fields changed, copying " + denormalizedFields
+                    + " into every record.");
+            backfill(false);
+        }
+        if (mode == Mode.VIEW) {
+            createOrUpdateView(name, sourceCollectionName, getPipeline());
+        } else if (materializing) {
+            rebuild();
+        } else {
+            createIndexes();
+        }
+    }
+
+    private Document getCollectionInfo() {
+        return mongoDb.listCollections().filter(eq("name", name)).first();
+    }
+
+    private void createIndexes() {
+        MongoCollection<Document> collection = mongoDb.getCollection(name);
+        IndexOptions options = new IndexOptions().background(true);
+        collection.createIndex(Indexes.ascending("redboxOid"), options);
+        collection.createIndex(Indexes.ascending("packageType"), options);
+        collection.createIndex(Indexes.descending("date_object_modified"),
+                options);
+        collection.createIndex(
+                Indexes.ascending("metaMetadata.brandId", "metaMetadata.type",
+                        "workflow.stage"),
+                new IndexOptions().background(true).sparse(true)
+                        .name("metaViewIndex"));
+    }
+
+    /**
+     * Recomputes the whole materialized collection from the records. A view
+     * left over from VIEW mode is replaced.
+     *
+     * @return the number of metadata documents written
+     */
+    public long rebuild() {
+        Document info = getCollectionInfo();
+        if (info != null && "view".equals(info.getString("type"))) {
+            mongoDb.getCollection(name).drop();
+        }
+        if (info == null || "view".equals(info.getString("type"))) {
+            mongoDb.createCollection(name);
+        }
+        createIndexes();
+        List<BsonDocument> pipeline = new ArrayList<BsonDocument>(
+                getPipeline(false));
+        pipeline.add(BsonDocument.parse("{ $addFields: { '_id': '$redboxOid' }}"));
+        pipeline.add(new BsonDocument("$out", new BsonString(name)));
+        // $out keeps the target's indexes
+        mongoDb.getCollection(sourceCollectionName).aggregate(pipeline)
+                .allowDiskUse(true).toCollection();
+        long count = mongoDb.getCollection(name).countDocuments();
+        log.info("Rebuilt '" + name + "' with " + count + " document(s).");
+        return count;
+    }
+
+    /**
+     * Brings the object's metadata document up to date after a save.
+     *
+     * @param obj - the saved object
+     */
+    public void update(MongoDigitalObject obj) {
+        if (!isMaintained(obj)) {
+            return;
+        }
+        Document doc = toDocument(obj);
+        MongoCollection<Document> collection = mongoDb.getCollection(name);
+        if (doc == null) {
+            sessions.deleteOne(collection, eq("_id", obj.getId()));
+        } else {
+            sessions.replaceOne(collection, eq("_id", obj.getId()),
+                    obj.getEscapedDoc(doc), new UpdateOptions().upsert(true));
+        }
+    }
+
+    /**
+     * Drops the object's metadata document after the object is removed.
+     *
+     * @param obj - the removed object
+     */
+    public void remove(MongoDigitalObject obj) {
+        if (isMaintained(obj)) {
+            sessions.deleteOne(mongoDb.getCollection(name),
+                    eq("_id", obj.getId()));
+        }
+    }
+
+    private boolean isMaintained(MongoDigitalObject obj) {
+        return mode == Mode.MATERIALIZED
+                && sourceCollectionName.equals(obj.collectionName);
+    }
+
+    /**
+     * Builds the same document the view pipeline produces for the object.
+     *
+     * @return the document, or null if the object has no tfpackage
+     */
+    @SuppressWarnings("unchecked")
+    protected Document toDocument(MongoDigitalObject obj) {
+        Map<String, Object> fileInfo = obj.getPayloadMeta(TFPACKAGE_PID);
+        if (fileInfo == null) {
+            return null;
+        }
+        Document doc = new Document();
+        Map<String, Object> source = (Map<String, Object>) fileInfo
+                .get(MongoPayloadBackendCollection.SOURCE_FIELD);
+        if (source != null && source
+                .get(MongoPayloadBackendCollection.PAYLOAD_FIELD) != null) {
+            doc.putAll((Map<String, Object>) source
+                    .get(MongoPayloadBackendCollection.PAYLOAD_FIELD));
+        }
+        Map<String, Object> objectMetadata = obj.getObjectMetadata();
+        doc.put("_id", obj.getId());
+        doc.put("redboxOid", obj.getId());
+        for (String field : denormalizedFields) {
+            doc.put(field, objectMetadata.get(field));
+        }
+        return doc;
+    }
+
+    /**
+     * Copies the denormalized object metadata fields into every record of the
+     * source collection, for records saved before denormalization. Dates
+     * stored as ISO strings by earlier versions are copied as dates.
+     *
+     * @return the number of records updated
+     */
+    public long backfill() {
+        return backfill(false);
+    }
+
+    /**
+     * @param missingOnly - only update records without the denormalized copy
+     */
+    private long backfill(boolean missingOnly) {
+        MongoCollection<Document> source = mongoDb
+                .getCollection(sourceCollectionName);
+        List<String> projection = new ArrayList<String>(denormalizedFields);
+        projection.add("redboxOid");
+        MongoCursor<Document> cursor = mongoDb
+                .getCollection(objectMetadataCollectionName)
+                .find(or(eq("collectionName", sourceCollectionName),
+                        exists("collectionName", false)))
+                .projection(include(projection)).iterator();
+        List<WriteModel<Document>> batch = new ArrayList<WriteModel<Document>>();
+        long updated = 0;
+        try {
+            while (cursor.hasNext()) {
+                Document objectMetadata = cursor.next();
+                Document copy = new Document();
+                for (String field : denormalizedFields) {
+                    Object value = objectMetadata.get(field);
+                    if (MongoDigitalObject.DATE_FIELDS.contains(field)) {
+                        value = MongoDigitalObject.toDate(value);
+                    }
+                    copy.put(field, value);
+                }
+                Bson record = eq("redboxOid",
+                        objectMetadata.getString("redboxOid"));
+                if (missingOnly) {
+                    record = and(record, exists(
+                            MongoDigitalObject.DENORMALIZED_FIELD, false));
+                }
+                batch.add(new UpdateOneModel<Document>(record,
+                        set(MongoDigitalObject.DENORMALIZED_FIELD, copy)));
+                if (batch.size() >= BACKFILL_BATCH_SIZE) {
+                    updated += source.bulkWrite(batch).getModifiedCount();
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                updated += source.bulkWrite(batch).getModifiedCount();
+            }
+        } finally {
+            cursor.close();
+        }
+        log.info("Backfilled denormalized object metadata of " + updated
+                + " record(s).");
+        mongoDb.getCollection(MIGRATIONS_COLLECTION).replaceOne(
+                eq("_id", getBackfillMarkerId()),
+                new Document("_id", getBackfillMarkerId())
+                        .append("fields", denormalizedFields)
+                        .append("completed", new Date()),
+                new UpdateOptions().upsert(true));
+        return updated;
+    }
+
+    private String getBackfillMarkerId() {
+        return "denormalize:" + sourceCollectionName;
+    }
+
+    /**
+     * @return the marker of the source collection's last backfill, null if
+     *         it was never backfilled
+     */
+    private Document getBackfillMarker() {
+        return mongoDb.getCollection(MIGRATIONS_COLLECTION)
+                .find(eq("_id", getBackfillMarkerId())).first();
+    }
+
+}
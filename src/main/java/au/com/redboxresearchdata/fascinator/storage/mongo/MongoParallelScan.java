@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.JsonDigitalObject;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Walks every object in storage using several cursors at once. The object
+ * metadata collection is split into OID ranges at points picked by $sample,
+ * one loader thread reads and loads the objects of each range, and the
+ * caller's thread hands them to the consumer. Loaders block when the bounded
+ * queue between them is full, so a slow consumer throttles the scan rather
+ * than piling objects up in memory.
+ */
+public class MongoParallelScan {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoParallelScan.class);
+
+    /** Sampled OIDs per partition when picking split points */
+    static int SAMPLES_PER_PARTITION = 20;
+
+    private static final Object END = new Object();
+
+    protected MongoStorage storage;
+    protected MongoDatabase mongoDb;
+    protected String objectMetadataCollectionName;
+
+    public MongoParallelScan(MongoStorage storage, MongoDatabase mongoDb,
+            String objectMetadataCollectionName) {
+        this.storage = storage;
+        this.mongoDb = mongoDb;
+        this.objectMetadataCollectionName = objectMetadataCollectionName;
+    }
+
+    /**
+     * @param partitions - number of concurrent cursors
+     * @param queueSize - most loaded objects waiting for the consumer
+     * @param consumer - receives every object, on the calling thread
+     * @return number of objects consumed
+     * @throws StorageException if loading or consuming fails, the scan stops
+     *             at the first failure
+     */
+    public long scan(int partitions, int queueSize,
+            final MongoObjectConsumer consumer) throws StorageException {
+        final List<Bson> ranges = getRanges(Math.max(1, partitions));
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(
+                Math.max(1, queueSize));
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        ExecutorService loaders = Executors.newFixedThreadPool(ranges.size());
+        for (final Bson range : ranges) {
+            loaders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(range, queue, failure);
+                }
+            });
+        }
+        loaders.shutdown();
+        long consumed = 0;
+        int finished = 0;
+        try {
+            while (finished < ranges.size()) {
+                Object next = queue.take();
+                if (next == END) {
+                    finished++;
+                } else if (failure.get() == null) {
+                    consumer.accept((JsonDigitalObject) next);
+                    consumed++;
+                }
+            }
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // releases loaders blocked on a full queue
+            loaders.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw new StorageException("Parallel scan failed after "
+                    + consumed + " object(s)", failure.get());
+        }
+        return consumed;
+    }
+
+    private void load(Bson range, BlockingQueue<Object> queue,
+            AtomicReference<Exception> failure) {
+        MongoCursor<Document> cursor = mongoDb
+                .getCollection(objectMetadataCollectionName).find(range)
+                .iterator();
+        try {
+            while (cursor.hasNext() && failure.get() == null) {
+                queue.put(storage.loadObject(cursor.next()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            cursor.close();
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Splits the OID space into contiguous ranges of roughly equal size.
+     */
+    protected List<Bson> getRanges(int partitions) {
+        List<String> splitPoints = getSplitPoints(partitions);
+        List<Bson> ranges = new ArrayList<Bson>();
+        if (splitPoints.isEmpty()) {
+            ranges.add(new BsonDocument());
+            return ranges;
+        }
+        ranges.add(lt("redboxOid", splitPoints.get(0)));
+        for (int i = 1; i < splitPoints.size(); i++) {
+            ranges.add(and(gte("redboxOid", splitPoints.get(i - 1)),
+                    lt("redboxOid", splitPoints.get(i))));
+        }
+        ranges.add(gte("redboxOid",
+                splitPoints.get(splitPoints.size() - 1)));
+        log.debug("Scanning in " + ranges.size() + " range(s) split at: "
+                + splitPoints);
+        return ranges;
+    }
+
+    private List<String> getSplitPoints(int partitions) {
+        if (partitions <= 1) {
+            return Collections.emptyList();
+        }
+        MongoCollection<Document> objectMetaCol = mongoDb
+                .getCollection(objectMetadataCollectionName);
+        List<Document> sample = objectMetaCol.aggregate(Arrays.asList(
+                BsonDocument.parse("{ $sample: { size: "
+                        + (partitions * SAMPLES_PER_PARTITION) + " }}"),
+                BsonDocument.parse("{ $project: { 'redboxOid': 1 }}")))
+                .into(new ArrayList<Document>());
+        TreeSet<String> oids = new TreeSet<String>();
+        for (Document doc : sample) {
+            if (doc.getString("redboxOid") != null) {
+                oids.add(doc.getString("redboxOid"));
+            }
+        }
+        List<String> sorted = new ArrayList<String>(oids);
+        List<String> splitPoints = new ArrayList<String>();
+        for (int i = 1; i < partitions; i++) {
+            int index = i * sorted.size() / partitions;
+            if (index > 0 && index < sorted.size()) {
+                String point = sorted.get(index);
+                if (splitPoints.isEmpty() || !splitPoints
+                        .get(splitPoints.size() - 1).equals(point)) {
+                    splitPoints.add(point);
+                }
+            }
+        }
+        return splitPoints;
+    }
+
+}
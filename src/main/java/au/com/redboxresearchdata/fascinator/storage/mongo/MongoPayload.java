@@ -17,12 +17,23 @@
  ******************************************************************************/
 package au.com.redboxresearchdata.fascinator.storage.mongo;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,7 +57,12 @@ public class MongoPayload extends GenericPayload {
     protected MongoDigitalObject.PayloadBackend backendType;
     protected MongoPayloadBackend backend;
     protected String fileId;
+    protected String storedBackendType;
     protected boolean hasChangedBackendType;
+    protected Date lastAccessed;
+    protected long accessCount;
+    protected String codec;
+    protected Long logicalSize;
 
     public MongoPayload(MongoDigitalObject obj, String pid, String fileId,
             MongoDigitalObject.PayloadBackend backend) {
@@ -82,12 +98,23 @@ public class MongoPayload extends GenericPayload {
         doc.append("backend_type", getBackend().getType());
         doc.append("payloadId", getPayloadId());
         doc.append("lastModified", lastModified);
-        
+        doc.append("tier", getTier());
+        if (codec != null) {
+            doc.append("codec", codec);
+            doc.append("size", logicalSize);
+        }
+        if (lastAccessed != null) {
+            doc.append("lastAccessed", lastAccessed);
+            doc.append("accessCount", accessCount);
+        }
+
         Document backendMeta = getBackend().getMetadata();
         if (backendMeta != null) {
             doc.append(getBackend().getId(), backendMeta);
         }
-        System.out.println(doc.toJson());
+        if (log.isDebugEnabled()) {
+            log.debug(doc.toJson());
+        }
         return doc;
     }
 
@@ -100,12 +127,21 @@ public class MongoPayload extends GenericPayload {
     }
 
     public void setMetadataDoc(Document doc) {
+        // existing data is read from wherever it was written, regardless of
+        // the currently configured backend
+        storedBackendType = doc.getString("backend_type");
         setId(doc.getString("pid"));
         setLinked(doc.getBoolean("linked", false));
         setLabel(doc.getString("label"));
         setType(PayloadType.valueOf(doc.getString("payloadType")));
         setContentType(doc.getString("contentType"));
         lastModified = doc.getDate("lastModified");
+        lastAccessed = doc.getDate("lastAccessed");
+        Number count = (Number) doc.get("accessCount");
+        accessCount = count == null ? 0 : count.longValue();
+        codec = doc.getString("codec");
+        Number size = (Number) doc.get("size");
+        logicalSize = size == null ? null : size.longValue();
         getBackend().setId(doc.getString("payloadId"));
     }
 
@@ -113,6 +149,24 @@ public class MongoPayload extends GenericPayload {
         return lastModified;
     }
 
+    public Date getLastAccessed() {
+        return lastAccessed;
+    }
+
+    public long getAccessCount() {
+        return accessCount;
+    }
+
+    /**
+     * @return the storage tier holding the data, i.e. 'archive' for demoted
+     *         payloads and 'primary' for everything else
+     */
+    public String getTier() {
+        return MongoPayloadBackendArchive.TYPE.equals(getBackend().getType())
+                ? MongoPayloadTiering.TIER_ARCHIVE
+                : MongoPayloadTiering.TIER_PRIMARY;
+    }
+
     private MongoPayloadBackend getBackend() {
         if (backend == null || hasChangedBackendType) {
             PayloadType type = getType();
@@ -121,25 +175,308 @@ public class MongoPayload extends GenericPayload {
                 backend = new MongoPayloadBackendCollection(obj, pid);
                 break;
             default:
-                backend = new MongoPayloadBackendGridFs(obj.oid + "/" + pid,
-                        fileId, obj.getMongoDb());
+                backend = getBinaryBackend();
             }
             hasChangedBackendType = false;
         }
         return backend;
     }
 
+    private MongoPayloadBackend getBinaryBackend() {
+        String type = storedBackendType;
+        if (type == null) {
+            type = getPrimaryBackendType();
+        }
+        return newBinaryBackend(type, fileId);
+    }
+
+    private String getPrimaryBackendType() {
+        return backendType == MongoDigitalObject.PayloadBackend.FILESYSTEM
+                ? MongoPayloadBackendFileSystem.TYPE
+                : MongoPayloadBackendGridFs.TYPE;
+    }
+
+    private MongoPayloadBackend newBinaryBackend(String type, String id) {
+        MongoStorageConfig config = obj.getStorageConfig();
+        if (MongoPayloadBackendInline.TYPE.equals(type)) {
+            return new MongoPayloadBackendInline(obj, pid);
+        }
+        if (MongoPayloadBackendFileSystem.TYPE.equals(type)) {
+            return new MongoPayloadBackendFileSystem(
+                    config.getFilesystemRoot(), obj.oid, pid, id);
+        }
+        if (MongoPayloadBackendArchive.TYPE.equals(type)) {
+            return new MongoPayloadBackendArchive(config.getArchiveRoot(),
+                    obj.oid, pid, id);
+        }
+        return new MongoPayloadBackendGridFs(obj.oid + "/" + pid, id,
+                obj.getMongoDb());
+    }
+
+    /**
+     * Copies the stored data to another backend, records the new location in
+     * the object and then drops the old copy.
+     *
+     * @param targetType - the backend type to move to
+     * @throws StorageException
+     */
+    public void migrate(String targetType) throws StorageException {
+        // other instances of the payload in this object may be moving it too
+        Lock lock = obj.lockPayload(pid);
+        try {
+            refreshLocation();
+            MongoPayloadBackend source = getBackend();
+            if (targetType.equals(source.getType())) {
+                return;
+            }
+            MongoPayloadBackend target = newBinaryBackend(targetType, null);
+            InputStream in = source.open();
+            try {
+                target.create(in, getMetadataDocLocal());
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            backend = target;
+            storedBackendType = target.getType();
+            fileId = target.getId();
+            Document location = new Document("backend_type",
+                    target.getType()).append("payloadId", target.getId())
+                            .append("tier", getTier());
+            if (target.getMetadata() != null) {
+                location.append(target.getId(), target.getMetadata());
+            }
+            // persist the new location before the old copy goes away
+            if (!obj.relocatePayload(pid, source.getId(), location)) {
+                backend = source;
+                storedBackendType = source.getType();
+                fileId = source.getId();
+                target.remove();
+                log.info("Payload '" + obj.oid + "/" + pid
+                        + "' was rewritten while moving it, left in "
+                        + source.getType());
+                return;
+            }
+            source.remove();
+            log.info("Moved payload '" + obj.oid + "/" + pid + "' from "
+                    + source.getType() + " to " + target.getType());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Follows a move made through another instance of this payload, so the
+     * data is read from where it is now.
+     */
+    private void refreshLocation() {
+        if (getType() == PayloadType.Source) {
+            return;
+        }
+        Map<String, Object> info = obj.getPayloadMeta(pid);
+        if (info == null) {
+            return;
+        }
+        String storedId = (String) info.get("payloadId");
+        if (storedId != null && !storedId.equals(getPayloadId())) {
+            storedBackendType = (String) info.get("backend_type");
+            fileId = storedId;
+            backend = null;
+        }
+    }
+
+    /**
+     * Records the read in the access statistics, and brings archived data
+     * back to the primary backend first.
+     */
+    private void accessed() throws StorageException {
+        if (!obj.getStorageConfig().isTieringEnabled()
+                || getType() == PayloadType.Source) {
+            return;
+        }
+        if (MongoPayloadBackendArchive.TYPE.equals(getBackend().getType())) {
+            migrate(getPrimaryBackendType());
+        }
+        // counted by the object's access log, not in this instance
+        lastAccessed = new Date();
+        obj.recordPayloadAccess(pid, lastAccessed);
+    }
+
     public void create(InputStream source) throws StorageException {
         lastModified = new Date();
+        codec = null;
+        logicalSize = null;
+        CountingInputStream counter = null;
+        if (getType() != PayloadType.Source) {
+            MongoPayloadCodec payloadCodec = obj.getStorageConfig()
+                    .getCompression().getCodecFor(getContentType());
+            if (payloadCodec != null) {
+                counter = new CountingInputStream(source);
+                source = payloadCodec.encode(counter);
+                codec = payloadCodec.getName();
+            }
+            source = selectBinaryBackend(source);
+        }
         getBackend().create(source, getMetadataDocLocal());
         fileId = getBackend().getId();
+        storedBackendType = getBackend().getType();
+        if (counter != null) {
+            logicalSize = counter.getByteCount();
+        }
+    }
+
+    private MongoPayloadCodec getCodec() throws StorageException {
+        MongoPayloadCodec payloadCodec = obj.getStorageConfig()
+                .getCompression().getCodec(codec);
+        if (payloadCodec == null) {
+            throw new StorageException("Payload '" + pid
+                    + "' uses an unknown codec: " + codec);
+        }
+        return payloadCodec;
+    }
+
+    /**
+     * Copies decompressed data to the target, for payloads that can't be
+     * handed over as stored.
+     */
+    private long copyDecoded(OutputStream target) throws StorageException {
+        InputStream in = getCodec().decode(getBackend().open());
+        try {
+            return IOUtils.copyLarge(in, target);
+        } catch (IOException e) {
+            throw new StorageException(
+                    "Failed to transfer payload: " + pid, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Payloads no larger than the configured inline threshold are kept in the
+     * record itself, anything bigger goes to the configured backend. The
+     * record's inline payloads share a budget, see
+     * {@link MongoStorageConfig#MAX_INLINE_RECORD_BYTES}; once it's used up
+     * smaller payloads go to the backend too. Up to the first (threshold + 1)
+     * bytes are buffered to decide, growing only as the data arrives.
+     *
+     * @param source - the payload data
+     * @return a stream equivalent to the unread source
+     * @throws StorageException
+     */
+    private InputStream selectBinaryBackend(InputStream source)
+            throws StorageException {
+        int threshold = obj.getStorageConfig().getInlineThreshold();
+        if (threshold <= 0) {
+            return source;
+        }
+        long budget = MongoStorageConfig.MAX_INLINE_RECORD_BYTES
+                - getOtherInlineBytes();
+        if (budget < threshold) {
+            if (budget <= 0) {
+                backend = null;
+                storedBackendType = null;
+                return source;
+            }
+            threshold = (int) budget;
+        }
+        try {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            byte[] buffer = new byte[Math.min(threshold + 1, 8192)];
+            int read;
+            while (head.size() <= threshold && (read = source.read(buffer, 0,
+                    Math.min(buffer.length, threshold + 1 - head.size()))) != -1) {
+                head.write(buffer, 0, read);
+            }
+            backend = null;
+            if (head.size() <= threshold) {
+                storedBackendType = MongoPayloadBackendInline.TYPE;
+                return new ByteArrayInputStream(head.toByteArray());
+            }
+            storedBackendType = null;
+            return new SequenceInputStream(
+                    new ByteArrayInputStream(head.toByteArray()), source);
+        } catch (IOException e) {
+            throw new StorageException(
+                    "Failed to read payload data: " + pid, e);
+        }
+    }
+
+    /**
+     * @return the bytes of the record's other inline payloads
+     */
+    private long getOtherInlineBytes() {
+        List<Map<String, Object>> files = obj.getFileList();
+        long used = 0;
+        if (files == null) {
+            return used;
+        }
+        for (Map<String, Object> info : files) {
+            if (pid.equals(info.get("pid")) || !MongoPayloadBackendInline.TYPE
+                    .equals(info.get("backend_type"))) {
+                continue;
+            }
+            Object inline = info.get(MongoPayloadBackendInline.INLINE_FIELD);
+            Object data = inline instanceof Map ? ((Map<?, ?>) inline)
+                    .get(MongoPayloadBackendInline.DATA_FIELD) : null;
+            if (data instanceof Binary) {
+                used += ((Binary) data).length();
+            } else if (data instanceof byte[]) {
+                used += ((byte[]) data).length;
+            }
+        }
+        return used;
     }
 
     @Override
     public InputStream open() throws StorageException {
+        accessed();
+        if (codec != null) {
+            return getCodec().decode(getBackend().open());
+        }
         return getBackend().open();
     }
 
+    /**
+     * Writes the payload's bytes to the channel, letting the backend avoid
+     * copying through an intermediate stream.
+     *
+     * @param target - the destination channel
+     * @return number of bytes written
+     * @throws StorageException
+     */
+    public long transferTo(WritableByteChannel target)
+            throws StorageException {
+        accessed();
+        if (codec != null) {
+            return copyDecoded(Channels.newOutputStream(target));
+        }
+        try {
+            return getBackend().transferTo(target);
+        } catch (IOException e) {
+            throw new StorageException(
+                    "Failed to transfer payload: " + pid, e);
+        }
+    }
+
+    /**
+     * Writes the payload's bytes to the output stream.
+     *
+     * @param target - the destination stream
+     * @return number of bytes written
+     * @throws StorageException
+     */
+    public long transferTo(OutputStream target) throws StorageException {
+        accessed();
+        if (codec != null) {
+            return copyDecoded(target);
+        }
+        try {
+            return getBackend().transferTo(target);
+        } catch (IOException e) {
+            throw new StorageException(
+                    "Failed to transfer payload: " + pid, e);
+        }
+    }
+
     @Override
     public void close() throws StorageException {
         save();
@@ -150,12 +487,18 @@ public class MongoPayload extends GenericPayload {
             lastModified = new Date();
             obj.updatePayloadMeta(this);
         } else {
-            System.out.println("Payload closed, not meta changed.");
+            log.debug("Payload closed, not meta changed.");
         }
     }
 
+    /**
+     * @return the uncompressed size of the payload
+     */
     @Override
     public Long size() {
+        if (codec != null && logicalSize != null) {
+            return logicalSize;
+        }
         return getBackend().size();
     }
 
@@ -164,6 +507,14 @@ public class MongoPayload extends GenericPayload {
         return getLastModified().getTime();
     }
 
+    /**
+     * @return the data exactly as the backend stores it, i.e. still
+     *         compressed, without counting as an access
+     */
+    InputStream openStored() {
+        return getBackend().open();
+    }
+
     public String getPayloadId() {
         return getBackend().getId();
     }
@@ -171,6 +522,13 @@ public class MongoPayload extends GenericPayload {
     public void remove() {
         getBackend().remove();
         lastModified = null;
+        if (getType() != PayloadType.Source) {
+            // the next create() picks the backend from the current
+            // configuration
+            backend = null;
+            storedBackendType = null;
+            fileId = null;
+        }
     }
 
     public void update(InputStream source) throws StorageException {
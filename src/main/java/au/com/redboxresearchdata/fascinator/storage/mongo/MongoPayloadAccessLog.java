@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.max;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Collects the reads of tiered payloads in memory and writes them to the
+ * records in batches, so a read doesn't become a write. Flushed by the
+ * tiering schedule, before each tiering run and on shutdown; reads not yet
+ * flushed are lost if the node stops abruptly, which only makes a payload
+ * look colder than it is.
+ */
+public class MongoPayloadAccessLog {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoPayloadAccessLog.class);
+
+    private static class Access {
+        final String collectionName;
+        final String oid;
+        final String pid;
+        Date lastAccessed;
+        long count;
+
+        Access(String collectionName, String oid, String pid) {
+            this.collectionName = collectionName;
+            this.oid = oid;
+            this.pid = pid;
+        }
+
+        void add(Date accessed, long reads) {
+            if (lastAccessed == null || accessed.after(lastAccessed)) {
+                lastAccessed = accessed;
+            }
+            count += reads;
+        }
+    }
+
+    protected MongoDatabase mongoDb;
+    protected MongoSessions sessions = new MongoSessions(null);
+    /** Reads not yet written, guarded by this */
+    private Map<String, Access> pending = new HashMap<String, Access>();
+
+    public MongoPayloadAccessLog(MongoDatabase mongoDb) {
+        this.mongoDb = mongoDb;
+    }
+
+    /**
+     * @param sessions - a flush on a thread in a unit of work writes in its
+     *            session; the scheduled flushes run outside any
+     */
+    public void setSessions(MongoSessions sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * Counts a read of the payload, to be written by the next flush.
+     */
+    public void record(String collectionName, String oid, String pid,
+            Date accessed) {
+        add(collectionName, oid, pid, accessed, 1);
+    }
+
+    private synchronized void add(String collectionName, String oid,
+            String pid, Date accessed, long reads) {
+        String key = collectionName + '\u0000' + oid + '\u0000' + pid;
+        Access access = pending.get(key);
+        if (access == null) {
+            access = new Access(collectionName, oid, pid);
+            pending.put(key, access);
+        }
+        access.add(accessed, reads);
+    }
+
+    /**
+     * Writes the reads recorded so far to the records' file lists: the
+     * latest read time, never moved back, and the number of reads added to
+     * the count.
+     *
+     * @return the number of payloads updated
+     */
+    public int flush() {
+        Map<String, Access> flushing;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            flushing = pending;
+            pending = new HashMap<String, Access>();
+        }
+        Map<String, List<Access>> byCollection = new HashMap<String, List<Access>>();
+        for (Access access : flushing.values()) {
+            List<Access> accesses = byCollection.get(access.collectionName);
+            if (accesses == null) {
+                accesses = new ArrayList<Access>();
+                byCollection.put(access.collectionName, accesses);
+            }
+            accesses.add(access);
+        }
+        int flushed = 0;
+        for (Map.Entry<String, List<Access>> entry : byCollection
+                .entrySet()) {
+            List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
+            for (Access access : entry.getValue()) {
+                updates.add(new UpdateOneModel<Document>(
+                        and(eq("redboxOid", access.oid),
+                                eq("files.pid", access.pid)),
+                        combine(max("files.$.lastAccessed",
+                                access.lastAccessed),
+                                inc("files.$.accessCount", access.count))));
+            }
+            try {
+                sessions.bulkWrite(mongoDb.getCollection(entry.getKey()),
+                        updates, new BulkWriteOptions().ordered(false));
+                flushed += updates.size();
+            } catch (MongoException e) {
+                log.warn("Recording payload reads in '" + entry.getKey()
+                        + "' failed, retrying on the next flush: "
+                        + e.getMessage());
+                for (Access access : entry.getValue()) {
+                    add(access.collectionName, access.oid, access.pid,
+                            access.lastAccessed, access.count);
+                }
+            }
+        }
+        return flushed;
+    }
+
+}
@@ -17,7 +17,10 @@
  ******************************************************************************/
 package au.com.redboxresearchdata.fascinator.storage.mongo;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 import org.bson.Document;
 
@@ -36,6 +39,25 @@ public interface MongoPayloadBackend {
 
     public InputStream open();
 
+    /**
+     * Writes the stored bytes directly to the channel, without staging them
+     * through an intermediate stream.
+     *
+     * @param target - the destination channel
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException;
+
+    /**
+     * Writes the stored bytes directly to the output stream.
+     *
+     * @param target - the destination stream
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public long transferTo(OutputStream target) throws IOException;
+
     public Long size();
 
     public String getId();
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.File;
+
+/**
+ * The cold tier: a filesystem backend rooted at the archive directory. Cold
+ * payloads are demoted here by {@link MongoPayloadTiering} and restored to
+ * the primary backend when next read.
+ */
+public class MongoPayloadBackendArchive extends MongoPayloadBackendFileSystem {
+
+    static String TYPE = "ARCHIVE";
+
+    public MongoPayloadBackendArchive(File root, String oid, String pid,
+            String fileId) {
+        super(root, oid, pid, fileId);
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+}
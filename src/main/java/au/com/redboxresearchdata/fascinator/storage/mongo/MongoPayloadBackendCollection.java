@@ -21,6 +21,8 @@ import java.io.*;
 
 import com.google.gson.Gson;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
@@ -121,6 +123,23 @@ public class MongoPayloadBackendCollection implements MongoPayloadBackend {
         return new ByteArrayInputStream(getBytes());
     }
 
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(getBytes());
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public long transferTo(OutputStream target) throws IOException {
+        byte[] bytes = getBytes();
+        target.write(bytes);
+        return bytes.length;
+    }
+
     private byte[] getBytes() {
         String s = getAsString();
         log.debug("Get as string: " + s);
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Stores payload data as plain files under a root directory. Files are
+ * sharded by a hash of the object ID, i.e.
+ * 'root/ab/cd/abcd...ef/payloadId', so no single directory grows too large.
+ * The payload's metadata stays in the Mongo record; the ID of this backend is
+ * the file's path relative to the root.
+ */
+public class MongoPayloadBackendFileSystem implements MongoPayloadBackend {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoPayloadBackendFileSystem.class);
+    static String TYPE = "FILESYSTEM";
+
+    protected File root;
+    protected String oid;
+    protected String pid;
+    protected String relativePath;
+
+    public MongoPayloadBackendFileSystem(File root, String oid, String pid,
+            String fileId) {
+        this.root = root;
+        this.oid = oid;
+        this.pid = pid;
+        this.relativePath = fileId;
+    }
+
+    /**
+     * Writes the data to a temporary file next to the target, then moves it
+     * into place so readers never see a partially written payload.
+     */
+    public void create(InputStream source, Document metadata)
+            throws StorageException {
+        String path = getShardedPath();
+        Path target = new File(root, path).toPath();
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(target.getParent(), ".upload",
+                    null);
+            try {
+                Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.error("Payload create failed:", e);
+            throw new StorageException(e);
+        }
+        relativePath = path;
+    }
+
+    public InputStream open() {
+        try {
+            return Files.newInputStream(getPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open payload file: "
+                    + relativePath, e);
+        }
+    }
+
+    public long transferTo(WritableByteChannel target) throws IOException {
+        FileChannel channel = FileChannel.open(getPath(),
+                StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position,
+                        target);
+            }
+            return position;
+        } finally {
+            channel.close();
+        }
+    }
+
+    public long transferTo(OutputStream target) throws IOException {
+        return Files.copy(getPath(), target);
+    }
+
+    public Long size() {
+        return getPath().toFile().length();
+    }
+
+    public String getId() {
+        return relativePath;
+    }
+
+    public void setId(String id) {
+        relativePath = id;
+    }
+
+    public void remove() {
+        if (relativePath != null) {
+            try {
+                Files.deleteIfExists(getPath());
+            } catch (IOException e) {
+                log.warn("Failed to delete payload file: " + relativePath, e);
+            }
+        }
+        relativePath = null;
+    }
+
+    @Override
+    public Document getMetadata() {
+        return new Document();
+    }
+
+    @Override
+    public void setMetadata(Document doc) {
+
+    }
+
+    public String getType() {
+        return TYPE;
+    }
+
+    protected Path getPath() {
+        return new File(root, relativePath).toPath();
+    }
+
+    /**
+     * Resolves the ID of one of an object's payload files that comes from
+     * outside the backend, e.g. from an import.
+     *
+     * @throws IllegalArgumentException unless the ID has the sharded layout
+     *             of the object's files and stays under the root
+     */
+    static Path resolve(File root, String oid, String fileId) {
+        String shard = getShard(oid);
+        String name = fileId.startsWith(shard)
+                ? fileId.substring(shard.length()) : "";
+        Path base = root.toPath().toAbsolutePath().normalize();
+        Path target = base.resolve(fileId).normalize();
+        // encoded pids have no separators and never start with a '.'
+        if (name.isEmpty() || name.contains("/") || name.contains("\\")
+                || name.startsWith(".") || !target.startsWith(base)) {
+            throw new IllegalArgumentException("payload ID '" + fileId
+                    + "' isn't a file of object '" + oid + "'");
+        }
+        return target;
+    }
+
+    protected String getShardedPath() {
+        return getShard(oid) + encodePid(pid);
+    }
+
+    private static String getShard(String oid) {
+        String hash = sha1(oid);
+        return hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/"
+                + hash + "/";
+    }
+
+    private static String encodePid(String pid) {
+        try {
+            String encoded = URLEncoder.encode(pid,
+                    StandardCharsets.UTF_8.name());
+            // keep '.' and '..' from being treated as directories
+            if (encoded.startsWith(".")) {
+                encoded = "%2E" + encoded.substring(1);
+            }
+            return encoded;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha1(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest
+                    .digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -17,13 +17,23 @@
  ******************************************************************************/
 package au.com.redboxresearchdata.fascinator.storage.mongo;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 import com.googlecode.fascinator.api.storage.StorageException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 import com.mongodb.client.gridfs.GridFSDownloadStream;
@@ -38,6 +48,7 @@ import com.mongodb.client.gridfs.model.GridFSUploadOptions;
  */
 public class MongoPayloadBackendGridFs implements MongoPayloadBackend {
     static String TYPE = "GRIDFS";
+    static String CHUNKS_COLLECTION = "fs.chunks";
     protected String payloadPath;
     protected ObjectId mongoFileId;
     protected GridFSDownloadStream ds;
@@ -77,6 +88,54 @@ public class MongoPayloadBackendGridFs implements MongoPayloadBackend {
         return ds;
     }
 
+    /**
+     * Streams the file's chunks in order straight from the chunks collection,
+     * handing each chunk's data to the channel as-is.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = 0;
+        MongoCursor<Document> chunks = getChunks();
+        try {
+            while (chunks.hasNext()) {
+                ByteBuffer buffer = ByteBuffer
+                        .wrap(getChunkData(chunks.next()));
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+            }
+        } finally {
+            chunks.close();
+        }
+        return written;
+    }
+
+    public long transferTo(OutputStream target) throws IOException {
+        long written = 0;
+        MongoCursor<Document> chunks = getChunks();
+        try {
+            while (chunks.hasNext()) {
+                byte[] data = getChunkData(chunks.next());
+                target.write(data);
+                written += data.length;
+            }
+        } finally {
+            chunks.close();
+        }
+        return written;
+    }
+
+    private MongoCursor<Document> getChunks() {
+        MongoCollection<Document> chunks = mongoDb
+                .getCollection(CHUNKS_COLLECTION);
+        return chunks.find(Filters.eq("files_id", mongoFileId))
+                .projection(Projections.include("data"))
+                .sort(Sorts.ascending("n")).iterator();
+    }
+
+    private byte[] getChunkData(Document chunk) {
+        return ((Binary) chunk.get("data")).getData();
+    }
+
     public Long size() {
         if (ds == null) {
             ds = getBucket().openDownloadStream(mongoFileId);
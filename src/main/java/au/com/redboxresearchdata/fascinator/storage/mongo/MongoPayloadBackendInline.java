@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Keeps small binary payloads as a BSON Binary inside the payload's 'files'
+ * entry of the record, so they're read along with the record instead of
+ * needing their own GridFS file and chunk.
+ */
+public class MongoPayloadBackendInline implements MongoPayloadBackend {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoPayloadBackendInline.class);
+    static String INLINE_FIELD = "inline";
+    static String DATA_FIELD = "data";
+    static String TYPE = "INLINE";
+
+    MongoDigitalObject obj;
+    String pid;
+    Document mainDoc;
+
+    public MongoPayloadBackendInline(MongoDigitalObject obj, String pid) {
+        this.obj = obj;
+        this.pid = pid;
+        Map<String, Object> payloadMeta = obj.getPayloadMeta(pid);
+        if (payloadMeta != null) {
+            mainDoc = (Document) payloadMeta.get(getId());
+        }
+        if (mainDoc == null) {
+            mainDoc = new Document();
+        }
+    }
+
+    @Override
+    public void create(InputStream source, Document metadata)
+            throws StorageException {
+        try {
+            mainDoc.put(DATA_FIELD, new Binary(IOUtils.toByteArray(source)));
+        } catch (IOException e) {
+            log.error("Payload create failed:", e);
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public InputStream open() {
+        return new ByteArrayInputStream(getBytes());
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(getBytes());
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public long transferTo(OutputStream target) throws IOException {
+        byte[] bytes = getBytes();
+        target.write(bytes);
+        return bytes.length;
+    }
+
+    private byte[] getBytes() {
+        Object data = mainDoc.get(DATA_FIELD);
+        if (data instanceof Binary) {
+            return ((Binary) data).getData();
+        }
+        if (data instanceof byte[]) {
+            return (byte[]) data;
+        }
+        return new byte[0];
+    }
+
+    @Override
+    public Long size() {
+        return (long) getBytes().length;
+    }
+
+    @Override
+    public String getId() {
+        return INLINE_FIELD;
+    }
+
+    @Override
+    public void setId(String id) {
+        // ignore...
+    }
+
+    @Override
+    public void remove() {
+        mainDoc.remove(DATA_FIELD);
+    }
+
+    @Override
+    public Document getMetadata() {
+        return mainDoc;
+    }
+
+    @Override
+    public void setMetadata(Document doc) {
+        mainDoc = doc;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+}
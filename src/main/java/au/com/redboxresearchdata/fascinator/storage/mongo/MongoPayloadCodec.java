@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.InputStream;
+
+/**
+ * Compression codec applied to payload data on its way into and out of a
+ * payload backend. To be registered through
+ * 'storage.mongo.compression.codecs', implementations need a public
+ * constructor taking their settings as a JsonSimple, or a public no-arg
+ * constructor.
+ */
+public interface MongoPayloadCodec {
+
+    /**
+     * @return the name recorded in the payload metadata
+     */
+    public String getName();
+
+    /**
+     * @param raw - the uncompressed data
+     * @return a stream of the compressed data
+     */
+    public InputStream encode(InputStream raw);
+
+    /**
+     * @param stored - the compressed data
+     * @return a stream of the uncompressed data
+     */
+    public InputStream decode(InputStream stored);
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Deflate (zlib) codec. Data is compressed as it's read, so uploads stay
+ * streaming.
+ */
+public class MongoPayloadCodecDeflate implements MongoPayloadCodec {
+
+    static String NAME = "deflate";
+
+    protected int level;
+
+    public MongoPayloadCodecDeflate() {
+        level = Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * @param settings - 'level', from 0 (none) to 9 (smallest)
+     */
+    public MongoPayloadCodecDeflate(JsonSimple settings) {
+        level = settings.getInteger(Deflater.DEFAULT_COMPRESSION, "level")
+                .intValue();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public InputStream encode(InputStream raw) {
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterInputStream(raw, deflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // a deflater passed in isn't ended by the stream
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public InputStream decode(InputStream stored) {
+        return new InflaterInputStream(stored);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Decides which payloads get compressed, and with which codec. A content
+ * type is compressed when it starts with, or ends with, one of the configured
+ * MIME patterns and isn't on the skip list. The codec used is recorded with
+ * each payload, so changing the configuration doesn't affect reading
+ * existing data.
+ */
+public class MongoPayloadCompression {
+
+    static List<String> DEFAULT_MIME_TYPES = Arrays.asList("text/",
+            "application/json", "application/xml", "application/javascript",
+            "+xml", "+json");
+    static List<String> DEFAULT_SKIP_MIME_TYPES = Arrays.asList("image/png",
+            "image/jpeg", "image/gif", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-7z-compressed",
+            "application/x-bzip2", "video/", "audio/");
+
+    protected boolean enabled;
+    protected String codecName;
+    protected List<String> mimeTypes;
+    protected List<String> skipMimeTypes;
+    protected Map<String, MongoPayloadCodec> codecs;
+
+    public MongoPayloadCompression() {
+        codecName = MongoPayloadCodecDeflate.NAME;
+        mimeTypes = DEFAULT_MIME_TYPES;
+        skipMimeTypes = DEFAULT_SKIP_MIME_TYPES;
+        codecs = new HashMap<String, MongoPayloadCodec>();
+        register(new MongoPayloadCodecDeflate());
+    }
+
+    public MongoPayloadCompression(JsonSimple config)
+            throws StorageException {
+        this();
+        enabled = config.getBoolean(false, "storage", "mongo", "compression",
+                "enabled");
+        codecName = config.getString(codecName, "storage", "mongo",
+                "compression", "codec");
+        List<String> configured = config.getStringList("storage", "mongo",
+                "compression", "mimeTypes");
+        if (configured != null && !configured.isEmpty()) {
+            mimeTypes = new ArrayList<String>(configured);
+        }
+        configured = config.getStringList("storage", "mongo", "compression",
+                "skipMimeTypes");
+        if (configured != null && !configured.isEmpty()) {
+            skipMimeTypes = new ArrayList<String>(configured);
+        }
+        JsonObject codecConfigs = config.getObject("storage", "mongo",
+                "compression", "codecs");
+        if (codecConfigs != null) {
+            for (Object name : codecConfigs.keySet()) {
+                register(newCodec((String) name, codecConfigs.get(name)));
+            }
+        }
+        if (enabled && !codecs.containsKey(codecName)) {
+            throw new StorageException("Unknown payload codec: " + codecName);
+        }
+    }
+
+    /**
+     * @param name - the name the codec is configured under
+     * @param entry - its class name, or its settings with the class name in
+     *            'class', which may be left out for the built-in codecs
+     */
+    private MongoPayloadCodec newCodec(String name, Object entry)
+            throws StorageException {
+        JsonSimple settings;
+        String className;
+        if (entry instanceof JsonObject) {
+            settings = new JsonSimple((JsonObject) entry);
+            className = settings.getString(
+                    MongoPayloadCodecDeflate.NAME.equals(name)
+                            ? MongoPayloadCodecDeflate.class.getName()
+                            : null,
+                    "class");
+        } else {
+            settings = new JsonSimple();
+            className = (String) entry;
+        }
+        if (className == null) {
+            throw new StorageException(
+                    "Payload codec '" + name + "' has no class");
+        }
+        MongoPayloadCodec codec;
+        try {
+            Class<?> codecClass = Class.forName(className);
+            try {
+                codec = (MongoPayloadCodec) codecClass
+                        .getDeclaredConstructor(JsonSimple.class)
+                        .newInstance(settings);
+            } catch (NoSuchMethodException e) {
+                codec = (MongoPayloadCodec) codecClass
+                        .getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception e) {
+            throw new StorageException(
+                    "Failed to load payload codec: " + className, e);
+        }
+        if (!name.equals(codec.getName())) {
+            throw new StorageException("Payload codec '" + name
+                    + "' names itself '" + codec.getName() + "'");
+        }
+        return codec;
+    }
+
+    public void register(MongoPayloadCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * @param name - the codec name recorded with a payload
+     * @return the codec, or null if it isn't registered
+     */
+    public MongoPayloadCodec getCodec(String name) {
+        return codecs.get(name);
+    }
+
+    /**
+     * @param contentType - the payload's MIME type
+     * @return the codec to compress new data with, or null to store it as-is
+     */
+    public MongoPayloadCodec getCodecFor(String contentType) {
+        if (!enabled || contentType == null) {
+            return null;
+        }
+        String type = contentType.toLowerCase();
+        if (matches(skipMimeTypes, type) || !matches(mimeTypes, type)) {
+            return null;
+        }
+        return codecs.get(codecName);
+    }
+
+    private boolean matches(List<String> patterns, String type) {
+        for (String pattern : patterns) {
+            if (type.startsWith(pattern) || type.endsWith(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+}
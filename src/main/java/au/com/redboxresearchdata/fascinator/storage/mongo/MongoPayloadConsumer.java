@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.InputStream;
+
+import com.googlecode.fascinator.api.storage.Payload;
+
+/**
+ * Receives the payloads of an object, see
+ * {@link MongoDigitalObject#forEachPayload(int, MongoPayloadConsumer)}.
+ */
+public interface MongoPayloadConsumer {
+
+    /**
+     * Called from several threads at once.
+     *
+     * @param payload - the payload being read
+     * @param in - the payload's data, closed once this returns
+     * @throws Exception to abort the remaining payloads
+     */
+    public void accept(Payload payload, InputStream in) throws Exception;
+}
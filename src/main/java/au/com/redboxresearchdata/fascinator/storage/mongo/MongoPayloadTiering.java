@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.elemMatch;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Background job that demotes cold payloads from GridFS to the archive
+ * backend. A payload is cold when it hasn't been read (or, if never read,
+ * written) within the configured number of days. Demoted payloads are
+ * restored to the primary backend by {@link MongoPayload} on their next
+ * read.
+ */
+public class MongoPayloadTiering implements Runnable {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoPayloadTiering.class);
+
+    static String TIER_PRIMARY = "primary";
+    static String TIER_ARCHIVE = "archive";
+
+    protected MongoStorage storage;
+    protected MongoDatabase mongoDb;
+    protected String objectMetadataCollectionName;
+    protected MongoStorageConfig config;
+
+    public MongoPayloadTiering(MongoStorage storage, MongoDatabase mongoDb,
+            String objectMetadataCollectionName, MongoStorageConfig config) {
+        this.storage = storage;
+        this.mongoDb = mongoDb;
+        this.objectMetadataCollectionName = objectMetadataCollectionName;
+        this.config = config;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int demoted = demoteColdPayloads();
+            log.info("Tiering run complete, demoted " + demoted
+                    + " payload(s).");
+        } catch (Exception e) {
+            // keep the schedule alive for the next run
+            log.error("Tiering run failed:", e);
+        }
+    }
+
+    /**
+     * Demotes up to the configured batch size of records' cold payloads.
+     *
+     * @return number of payloads moved to the archive
+     */
+    public int demoteColdPayloads() {
+        // reads still buffered would make their payloads look cold
+        storage.flushPayloadAccesses();
+        Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.DAYS
+                .toMillis(config.getTieringColdAfterDays()));
+        int remaining = config.getTieringBatchSize();
+        int demoted = 0;
+        MongoCollection<Document> objectMetaCol = mongoDb
+                .getCollection(objectMetadataCollectionName);
+        List<String> collections = objectMetaCol
+                .distinct("collectionName", String.class)
+                .into(new ArrayList<String>());
+        for (String collectionName : collections) {
+            if (remaining <= 0) {
+                break;
+            }
+            List<Document> records = mongoDb.getCollection(collectionName)
+                    .find(elemMatch("files", getColdFilter(cutoff)))
+                    .projection(include("redboxOid")).limit(remaining)
+                    .into(new ArrayList<Document>());
+            remaining -= records.size();
+            for (Document record : records) {
+                demoted += demote(record.getString("redboxOid"),
+                        collectionName, cutoff);
+            }
+        }
+        return demoted;
+    }
+
+    private int demote(String oid, String collectionName, Date cutoff) {
+        int demoted = 0;
+        try {
+            MongoDigitalObject obj = (MongoDigitalObject) storage
+                    .getObject(oid, collectionName);
+            // copy, as migrating rewrites the file list
+            List<Map<String, Object>> files = new ArrayList<Map<String, Object>>(
+                    obj.getFileList());
+            for (Map<String, Object> fileInfo : files) {
+                if (isCold(fileInfo, cutoff)) {
+                    MongoPayload payload = (MongoPayload) obj
+                            .getPayload((String) fileInfo.get("pid"));
+                    payload.migrate(MongoPayloadBackendArchive.TYPE);
+                    demoted++;
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to demote payloads of: " + oid, e);
+        }
+        return demoted;
+    }
+
+    private Bson getColdFilter(Date cutoff) {
+        return and(eq("backend_type", MongoPayloadBackendGridFs.TYPE),
+                or(lt("lastAccessed", cutoff), and(exists("lastAccessed", false),
+                        lt("lastModified", cutoff))));
+    }
+
+    private boolean isCold(Map<String, Object> fileInfo, Date cutoff) {
+        if (!MongoPayloadBackendGridFs.TYPE
+                .equals(fileInfo.get("backend_type"))) {
+            return false;
+        }
+        Date lastUsed = (Date) fileInfo.get("lastAccessed");
+        if (lastUsed == null) {
+            lastUsed = (Date) fileInfo.get("lastModified");
+        }
+        return lastUsed != null && lastUsed.before(cutoff);
+    }
+
+}
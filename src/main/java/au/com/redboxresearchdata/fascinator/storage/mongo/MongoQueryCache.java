@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches query results as JSON text. Entries expire after a fixed time, the
+ * least recently used are dropped to stay within a memory budget, and every
+ * save or remove of an object makes the entries over its collections stale.
+ *
+ * Staleness is tracked with a generation counter per collection rather than
+ * by finding entries: an entry remembers the generation of its source
+ * collection from before its query ran, and is discarded when read if the
+ * generation has moved on since. Views are mapped to the collection they
+ * read from with {@link #addSource(String, String)}.
+ *
+ * Only writes made through this node are seen; other nodes' writes show up
+ * once the entries expire.
+ */
+public class MongoQueryCache {
+
+    private static class Entry {
+        final String json;
+        final long generation;
+        final long expires;
+
+        Entry(String json, long generation, long expires) {
+            this.json = json;
+            this.generation = generation;
+            this.expires = expires;
+        }
+
+        long getBytes(String key) {
+            // chars are two bytes, plus a rough allowance for the objects
+            return 2L * (key.length() + json.length()) + 64;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    private long bytes;
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, String> sources = new ConcurrentHashMap<String, String>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param ttlMillis - how long an entry is served
+     * @param maxBytes - approximate memory budget of all entries
+     */
+    public MongoQueryCache(long ttlMillis, long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param view - a view, or other collection queried
+     * @param source - the collection whose writes change the view's results
+     */
+    public void addSource(String view, String source) {
+        sources.put(view, source);
+    }
+
+    /**
+     * @return the current generation of the collection a query reads, to be
+     *         passed to {@link #put(String, String, String, long)} once the
+     *         query has run
+     */
+    public long getGeneration(String collection) {
+        return getCounter(getSource(collection)).get();
+    }
+
+    /**
+     * Marks the cached results over the collection as stale.
+     */
+    public void invalidate(String collection) {
+        getCounter(collection).incrementAndGet();
+    }
+
+    /**
+     * Marks every cached result as stale, e.g. after a bulk load.
+     */
+    public void invalidateAll() {
+        for (AtomicLong counter : generations.values()) {
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the cached JSON, or null if there's none or it's out of date
+     */
+    public String get(String collection, String key) {
+        long generation = getGeneration(collection);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && (entry.generation != generation
+                    || entry.expires < System.currentTimeMillis())) {
+                remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.json;
+        }
+    }
+
+    /**
+     * @param generation - of the collection, taken before the query ran, so a
+     *            write made while it ran leaves the entry stale
+     */
+    public void put(String collection, String key, String json,
+            long generation) {
+        Entry entry = new Entry(json, generation,
+                System.currentTimeMillis() + ttlMillis);
+        long size = entry.getBytes(key);
+        if (size > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            bytes += size;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet()
+                    .iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> next = eldest.next();
+                bytes -= next.getValue().getBytes(next.getKey());
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.getBytes(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    private String getSource(String collection) {
+        String source = sources.get(collection);
+        return source == null ? collection : source;
+    }
+
+    private AtomicLong getCounter(String collection) {
+        AtomicLong counter = generations.get(collection);
+        if (counter == null) {
+            generations.putIfAbsent(collection, new AtomicLong());
+            counter = generations.get(collection);
+        }
+        return counter;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return hits as a fraction of lookups, 0 before the first lookup
+     */
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+}
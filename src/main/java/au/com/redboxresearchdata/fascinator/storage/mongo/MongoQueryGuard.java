@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+
+/**
+ * Applies the time limit, cancellation and admission control of queries.
+ *
+ * Every query gets the default time limit unless its options set one. The
+ * expensive queries, those assembling a whole result such as pagedQuery,
+ * also need one of a fixed number of permits; when none frees up within the
+ * wait allowed, the query is rejected with a
+ * {@link MongoQueryRejectedException} rather than queued.
+ */
+public class MongoQueryGuard {
+
+    protected MongoDatabase adminDb;
+    protected long defaultMaxTimeMS;
+    protected Semaphore permits;
+    protected int maxConcurrent;
+    protected long acquireTimeoutMS;
+
+    /**
+     * @param adminDb - where cancelled queries are killed
+     * @param defaultMaxTimeMS - time limit of queries without their own, 0
+     *            for none
+     * @param maxConcurrent - most expensive queries running at once, 0 for no
+     *            limit
+     * @param acquireTimeoutMS - how long a query waits for a permit
+     */
+    public MongoQueryGuard(MongoDatabase adminDb, long defaultMaxTimeMS,
+            int maxConcurrent, long acquireTimeoutMS) {
+        this.adminDb = adminDb;
+        this.defaultMaxTimeMS = defaultMaxTimeMS;
+        this.maxConcurrent = maxConcurrent;
+        this.acquireTimeoutMS = acquireTimeoutMS;
+        if (maxConcurrent > 0) {
+            permits = new Semaphore(maxConcurrent);
+        }
+    }
+
+    /**
+     * Takes a permit for an expensive query, to be given back with
+     * {@link #release()}.
+     *
+     * @throws MongoQueryRejectedException if none is free in time
+     */
+    public void acquire() {
+        if (permits == null) {
+            return;
+        }
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            throw new MongoQueryRejectedException("Too many queries running ("
+                    + maxConcurrent + "), try again later");
+        }
+    }
+
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return permits free right now, or -1 if there's no limit
+     */
+    public int getAvailablePermits() {
+        return permits == null ? -1 : permits.availablePermits();
+    }
+
+    private long getMaxTimeMS(MongoQueryOptions options) {
+        if (options != null && options.getMaxTimeMS() > 0) {
+            return options.getMaxTimeMS();
+        }
+        return defaultMaxTimeMS;
+    }
+
+    <T> FindIterable<T> apply(FindIterable<T> find,
+            MongoQueryOptions options) {
+        if (options != null) {
+            options.apply(find);
+        }
+        long maxTimeMS = getMaxTimeMS(options);
+        if (maxTimeMS > 0) {
+            find.maxTime(maxTimeMS, TimeUnit.MILLISECONDS);
+        }
+        return find;
+    }
+
+    <T> AggregateIterable<T> apply(AggregateIterable<T> aggregate,
+            MongoQueryOptions options) {
+        if (options != null) {
+            options.apply(aggregate);
+        }
+        long maxTimeMS = getMaxTimeMS(options);
+        if (maxTimeMS > 0) {
+            aggregate.maxTime(maxTimeMS, TimeUnit.MILLISECONDS);
+        }
+        return aggregate;
+    }
+
+    /**
+     * @return the filter, tagged with the handle's comment if there is one
+     */
+    BsonDocument tag(BsonDocument filter, MongoQueryOptions options) {
+        MongoQueryHandle handle = getHandle(options);
+        if (handle == null) {
+            return filter;
+        }
+        handle.arm(adminDb);
+        BsonDocument tagged = filter.clone();
+        tagged.put("$comment", handle.getComment());
+        return tagged;
+    }
+
+    /**
+     * @return the pipeline, its leading $match tagged with the handle's
+     *         comment if there is one
+     */
+    List<Bson> tagPipeline(List<? extends Bson> pipeline,
+            MongoQueryOptions options) {
+        List<Bson> tagged = new ArrayList<Bson>(pipeline);
+        MongoQueryHandle handle = getHandle(options);
+        if (handle == null) {
+            return tagged;
+        }
+        handle.arm(adminDb);
+        BsonDocument first = tagged.isEmpty() ? null
+                : tagged.get(0).toBsonDocument(BsonDocument.class,
+                        MongoClient.getDefaultCodecRegistry());
+        if (first != null && first.isDocument("$match")) {
+            BsonDocument match = first.getDocument("$match").clone();
+            match.put("$comment", handle.getComment());
+            tagged.set(0, new BsonDocument("$match", match));
+        } else {
+            tagged.add(0, new BsonDocument("$match",
+                    new BsonDocument("$comment", handle.getComment())));
+        }
+        return tagged;
+    }
+
+    /**
+     * Reads the whole result, letting the handle, if any, cancel it.
+     *
+     * @throws CancellationException if the handle cancelled the query
+     */
+    <T, C extends Collection<T>> C drain(MongoIterable<T> iterable,
+            C target, MongoQueryOptions options) {
+        MongoCursor<T> cursor = open(iterable, options);
+        try {
+            while (cursor.hasNext()) {
+                target.add(cursor.next());
+            }
+            // a cursor closed by cancel() can look exhausted
+            checkCancelled(options);
+            return target;
+        } catch (RuntimeException e) {
+            throw cancelled(e, options);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs the query, its first batch included, and lets the handle, if any,
+     * cancel the cursor read by the caller.
+     *
+     * @throws CancellationException if the handle cancelled the query
+     */
+    <T> MongoCursor<T> open(MongoIterable<T> iterable,
+            MongoQueryOptions options) {
+        checkCancelled(options);
+        MongoCursor<T> cursor;
+        try {
+            cursor = iterable.iterator();
+        } catch (RuntimeException e) {
+            // killed by cancel() while it ran
+            throw cancelled(e, options);
+        }
+        MongoQueryHandle handle = getHandle(options);
+        if (handle != null) {
+            handle.bind(cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Runs the query for its first result; the handle, if any, can kill it
+     * while it runs.
+     *
+     * @throws CancellationException if the handle cancelled the query
+     */
+    <T> T first(MongoIterable<T> iterable, MongoQueryOptions options) {
+        checkCancelled(options);
+        try {
+            return iterable.first();
+        } catch (RuntimeException e) {
+            throw cancelled(e, options);
+        }
+    }
+
+    /**
+     * @return a CancellationException if the handle cancelled the query the
+     *         failure is from, else the failure
+     */
+    private RuntimeException cancelled(RuntimeException e,
+            MongoQueryOptions options) {
+        MongoQueryHandle handle = getHandle(options);
+        if (handle != null && handle.isCancelled()
+                && !(e instanceof CancellationException)) {
+            CancellationException cancelled = new CancellationException(
+                    "Query " + handle.getId() + " was cancelled");
+            cancelled.initCause(e);
+            return cancelled;
+        }
+        return e;
+    }
+
+    /**
+     * @throws CancellationException if the query has been cancelled
+     */
+    void checkCancelled(MongoQueryOptions options) {
+        MongoQueryHandle handle = getHandle(options);
+        if (handle != null && handle.isCancelled()) {
+            throw new CancellationException(
+                    "Query " + handle.getId() + " was cancelled");
+        }
+    }
+
+    private MongoQueryHandle getHandle(MongoQueryOptions options) {
+        return options == null ? null : options.getHandle();
+    }
+
+}
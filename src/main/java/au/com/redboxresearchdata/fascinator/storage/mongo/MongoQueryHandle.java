@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.bson.BsonString;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Lets another thread cancel a running query, e.g. when the client that
+ * asked for it has gone. Pass it with {@link MongoQueryOptions#handle}.
+ *
+ * Cancelling closes the query's cursor and asks the server to kill the
+ * operation, found by the '$comment' the query is tagged with. The handle
+ * learns where to kill it when the query is tagged, before the command is
+ * sent, so a query can be killed while its first batch, which for an
+ * aggregation may be the whole result, is still running. Killing needs the
+ * 'killop' privilege; without it the query stops at its next batch.
+ */
+public class MongoQueryHandle {
+
+    private static Logger log = LoggerFactory.getLogger(MongoQueryHandle.class);
+
+    private final String id = "mongo-storage-" + UUID.randomUUID();
+    private volatile boolean cancelled;
+    private volatile MongoCursor<?> cursor;
+    private volatile MongoDatabase adminDb;
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops the query; it then fails with a CancellationException. Cancelling
+     * before the query starts keeps it from starting.
+     */
+    public void cancel() {
+        cancelled = true;
+        MongoCursor<?> running = cursor;
+        if (running != null) {
+            try {
+                running.close();
+            } catch (RuntimeException e) {
+                // the cursor may be mid-batch on the query's thread
+                log.debug("Closing cancelled cursor failed: " + e.getMessage());
+            }
+        }
+        if (adminDb != null) {
+            killOperations();
+        }
+    }
+
+    private void killOperations() {
+        // 3.6+ reports the operation as 'command', 3.4 as 'query'; a getMore
+        // carries the command that opened its cursor
+        List<Document> tagged = Arrays.asList(
+                new Document("command.filter.$comment", id),
+                new Document("command.pipeline.$match.$comment", id),
+                new Document("query.filter.$comment", id),
+                new Document("query.pipeline.$match.$comment", id),
+                new Document("originatingCommand.filter.$comment", id),
+                new Document("originatingCommand.pipeline.$match.$comment",
+                        id));
+        try {
+            Document ops = adminDb.runCommand(new Document("currentOp", 1)
+                    .append("$all", true).append("$or", tagged));
+            @SuppressWarnings("unchecked")
+            List<Document> inprog = (List<Document>) ops.get("inprog");
+            if (inprog != null) {
+                for (Document op : inprog) {
+                    adminDb.runCommand(new Document("killOp", 1).append("op",
+                            op.get("opid")));
+                }
+            }
+        } catch (MongoException e) {
+            log.warn("Could not kill cancelled query " + id + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Called as the query is tagged, before it's sent.
+     */
+    void arm(MongoDatabase adminDb) {
+        this.adminDb = adminDb;
+    }
+
+    /**
+     * Called once the query's cursor is open.
+     */
+    void bind(MongoCursor<?> cursor) {
+        this.cursor = cursor;
+        if (cancelled) {
+            cursor.close();
+        }
+    }
+
+    BsonString getComment() {
+        return new BsonString(id);
+    }
+
+}
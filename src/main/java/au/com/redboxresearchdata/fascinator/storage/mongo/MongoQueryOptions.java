@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Cursor settings for the streaming queries of {@link MongoStorage}. Setters
+ * return this so options can be chained, e.g.
+ * <code>new MongoQueryOptions().batchSize(500).fields("redboxOid", "title")</code>.
+ */
+public class MongoQueryOptions {
+
+    private int batchSize;
+    private List<String> fields;
+    private long maxTimeMS;
+    private MongoQueryHandle handle;
+
+    /**
+     * @param batchSize - documents fetched per round trip, 0 leaves it to the
+     *            server
+     */
+    public MongoQueryOptions batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param fields - field paths to return, none returns whole documents;
+     *            'redboxOid' is always returned
+     */
+    public MongoQueryOptions fields(String... fields) {
+        return fields(Arrays.asList(fields));
+    }
+
+    public MongoQueryOptions fields(List<String> fields) {
+        this.fields = fields == null ? null : new ArrayList<String>(fields);
+        return this;
+    }
+
+    /**
+     * @param maxTimeMS - server side time limit, 0 for none
+     */
+    public MongoQueryOptions maxTimeMS(long maxTimeMS) {
+        this.maxTimeMS = maxTimeMS;
+        return this;
+    }
+
+    /**
+     * @param handle - lets another thread cancel the query
+     */
+    public MongoQueryOptions handle(MongoQueryHandle handle) {
+        this.handle = handle;
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public long getMaxTimeMS() {
+        return maxTimeMS;
+    }
+
+    public MongoQueryHandle getHandle() {
+        return handle;
+    }
+
+    /**
+     * @return the $project stage for the fields, or null if all are wanted
+     */
+    Bson getProjectStage() {
+        Bson projection = getProjection(fields);
+        return projection == null ? null : Aggregates.project(projection);
+    }
+
+    /**
+     * @param fields - field paths to return, may be null
+     * @return the projection of the fields and the OID, or null if all are
+     *         wanted
+     */
+    static Bson getProjection(List<String> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        List<String> included = new ArrayList<String>(fields);
+        if (!included.contains("redboxOid")) {
+            included.add("redboxOid");
+        }
+        return Projections.include(included);
+    }
+
+    <T> FindIterable<T> apply(FindIterable<T> find) {
+        if (batchSize > 0) {
+            find.batchSize(batchSize);
+        }
+        Bson projection = getProjection(fields);
+        if (projection != null) {
+            find.projection(projection);
+        }
+        if (maxTimeMS > 0) {
+            find.maxTime(maxTimeMS, TimeUnit.MILLISECONDS);
+        }
+        return find;
+    }
+
+    /**
+     * Applies the cursor settings; the projection is a pipeline stage, see
+     * {@link #getProjectStage()}.
+     */
+    <T> AggregateIterable<T> apply(AggregateIterable<T> aggregate) {
+        if (batchSize > 0) {
+            aggregate.batchSize(batchSize);
+        }
+        if (maxTimeMS > 0) {
+            aggregate.maxTime(maxTimeMS, TimeUnit.MILLISECONDS);
+        }
+        return aggregate;
+    }
+
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * A named aggregation pipeline, parsed once, whose values are bound per call.
+ * A parameter is written in the pipeline as a document of its own, e.g.
+ *
+ * <pre>
+ * [{ "$match": { "workflow.stage": { "$param": "stage", "type": "string" }}}]
+ * </pre>
+ *
+ * Bound values are inserted as BSON values, never as JSON text, so they can't
+ * change the shape of the query.
+ */
+public class MongoQueryTemplate {
+
+    static String PARAM_FIELD = "$param";
+    static String TYPE_FIELD = "type";
+
+    public enum ParamType {
+        STRING, INT, LONG, DOUBLE, BOOLEAN, DATE, STRING_LIST;
+
+        BsonValue toBson(String name, Object value) throws StorageException {
+            try {
+                switch (this) {
+                case STRING:
+                    return new BsonString((String) value);
+                case INT:
+                    return new BsonInt32(((Number) value).intValue());
+                case LONG:
+                    return new BsonInt64(((Number) value).longValue());
+                case DOUBLE:
+                    return new BsonDouble(((Number) value).doubleValue());
+                case BOOLEAN:
+                    return BsonBoolean.valueOf((Boolean) value);
+                case DATE:
+                    return new BsonDateTime(((Date) value).getTime());
+                default:
+                    BsonArray list = new BsonArray();
+                    for (Object item : (Collection<?>) value) {
+                        list.add(new BsonString((String) item));
+                    }
+                    return list;
+                }
+            } catch (ClassCastException e) {
+                throw new StorageException("Parameter '" + name
+                        + "' must be of type " + this + ", got "
+                        + value.getClass().getName(), e);
+            }
+        }
+    }
+
+    protected String name;
+    protected String collection;
+    protected List<BsonDocument> pipeline;
+    protected Map<String, ParamType> params;
+
+    /**
+     * @param name - the template's name
+     * @param collection - the collection or view queried
+     * @param pipelineJson - JSON array of the pipeline stages
+     * @throws StorageException if the pipeline or a parameter is malformed
+     */
+    public MongoQueryTemplate(String name, String collection,
+            String pipelineJson) throws StorageException {
+        this.name = name;
+        this.collection = collection;
+        this.pipeline = new ArrayList<BsonDocument>();
+        this.params = new LinkedHashMap<String, ParamType>();
+        BsonArray stages;
+        try {
+            stages = BsonDocument.parse("{ \"pipeline\": " + pipelineJson + "}")
+                    .getArray("pipeline");
+        } catch (RuntimeException e) {
+            throw new StorageException(
+                    "Invalid pipeline in query template '" + name + "'", e);
+        }
+        for (BsonValue stage : stages) {
+            collectParams(stage);
+            pipeline.add(stage.asDocument());
+        }
+    }
+
+    private void collectParams(BsonValue value) throws StorageException {
+        if (value.isDocument()) {
+            BsonDocument doc = value.asDocument();
+            if (doc.containsKey(PARAM_FIELD)) {
+                String param = doc.getString(PARAM_FIELD).getValue();
+                ParamType type;
+                try {
+                    type = ParamType.valueOf(doc
+                            .getString(TYPE_FIELD, new BsonString("string"))
+                            .getValue().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new StorageException("Unknown type of parameter '"
+                            + param + "' in query template '" + name + "'", e);
+                }
+                ParamType previous = params.put(param, type);
+                if (previous != null && previous != type) {
+                    throw new StorageException("Parameter '" + param
+                            + "' has conflicting types in query template '"
+                            + name + "'");
+                }
+                return;
+            }
+            for (BsonValue child : doc.values()) {
+                collectParams(child);
+            }
+        } else if (value.isArray()) {
+            for (BsonValue child : value.asArray()) {
+                collectParams(child);
+            }
+        }
+    }
+
+    /**
+     * @param values - a value for every parameter of the template
+     * @return a fresh copy of the pipeline with the values in place
+     * @throws StorageException if a value is missing or of the wrong type
+     */
+    public List<BsonDocument> bind(Map<String, ?> values)
+            throws StorageException {
+        Map<String, BsonValue> bound = new LinkedHashMap<String, BsonValue>();
+        for (Map.Entry<String, ParamType> param : params.entrySet()) {
+            Object value = values == null ? null : values.get(param.getKey());
+            if (value == null) {
+                throw new StorageException("Missing parameter '"
+                        + param.getKey() + "' of query template '" + name
+                        + "'");
+            }
+            bound.put(param.getKey(),
+                    param.getValue().toBson(param.getKey(), value));
+        }
+        List<BsonDocument> result = new ArrayList<BsonDocument>(
+                pipeline.size());
+        for (BsonDocument stage : pipeline) {
+            result.add(substitute(stage, bound).asDocument());
+        }
+        return result;
+    }
+
+    private BsonValue substitute(BsonValue value,
+            Map<String, BsonValue> bound) {
+        if (value.isDocument()) {
+            BsonDocument doc = value.asDocument();
+            if (doc.containsKey(PARAM_FIELD)) {
+                return bound.get(doc.getString(PARAM_FIELD).getValue());
+            }
+            BsonDocument copy = new BsonDocument();
+            for (Map.Entry<String, BsonValue> entry : doc.entrySet()) {
+                copy.put(entry.getKey(), substitute(entry.getValue(), bound));
+            }
+            return copy;
+        }
+        if (value.isArray()) {
+            BsonArray copy = new BsonArray();
+            for (BsonValue item : value.asArray()) {
+                copy.add(substitute(item, bound));
+            }
+            return copy;
+        }
+        // scalars are immutable, share them
+        return value;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return the parameters and their types
+     */
+    public Map<String, ParamType> getParams() {
+        return Collections.unmodifiableMap(params);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+/**
+ * Merges a record saved concurrently with the one being saved, relative to
+ * the record both were loaded from.
+ *
+ * Payloads are compared one by one, so saves changing different payloads
+ * merge; the record's other fields merge only if just one side changed
+ * them. The base is kept as JSON fingerprints, taken when it's loaded.
+ */
+class MongoRecordMerge {
+
+    /** Record fields not compared: maintained by storage, or the payloads */
+    static List<String> IGNORED_FIELDS = Arrays.asList("_id",
+            MongoDigitalObject.VERSION_FIELD,
+            MongoDigitalObject.DENORMALIZED_FIELD,
+            MongoDigitalObject.TEXT_FIELD,
+            MongoDigitalObject.OBJECT_METADATA_VERSION_FIELD, "files");
+    /** Payload fields updated in place on reads, not by saves */
+    static List<String> ACCESS_FIELDS = Arrays.asList("lastAccessed",
+            "accessCount");
+
+    private final MongoDigitalObject obj;
+    private final String baseFields;
+    private final Map<String, String> baseFiles;
+
+    /**
+     * @param base - the record as loaded, unescaped
+     */
+    MongoRecordMerge(MongoDigitalObject obj, Document base) {
+        this.obj = obj;
+        baseFields = getFieldsFingerprint(base);
+        baseFiles = getFileFingerprints(base);
+    }
+
+    /**
+     * @param ours - the record being saved
+     * @param theirs - the record now stored
+     * @return the record with both sides' changes, or null if they overlap
+     */
+    Document merge(Document ours, Document theirs) {
+        boolean oursChangedFields = !baseFields
+                .equals(getFieldsFingerprint(ours));
+        boolean theirsChangedFields = !baseFields
+                .equals(getFieldsFingerprint(theirs));
+        if (oursChangedFields && theirsChangedFields) {
+            return null;
+        }
+        Document fieldsSource = oursChangedFields ? ours : theirs;
+        Document merged = new Document();
+        for (Map.Entry<String, Object> entry : fieldsSource.entrySet()) {
+            if (!"files".equals(entry.getKey())) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Map<String, Map<String, Object>> ourFiles = getFiles(ours);
+        Map<String, String> ourFingerprints = getFileFingerprints(ours);
+        Map<String, String> theirFingerprints = getFileFingerprints(theirs);
+        List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
+        Set<String> seen = new HashSet<String>();
+        for (Map.Entry<String, Map<String, Object>> their : getFiles(theirs)
+                .entrySet()) {
+            String pid = their.getKey();
+            seen.add(pid);
+            String base = baseFiles.get(pid);
+            String ourFingerprint = ourFingerprints.get(pid);
+            boolean oursChanged = !equal(ourFingerprint, base);
+            boolean theirsChanged = !equal(theirFingerprints.get(pid), base);
+            if (oursChanged && theirsChanged
+                    && !equal(ourFingerprint, theirFingerprints.get(pid))) {
+                return null;
+            }
+            Map<String, Object> file = oursChanged ? ourFiles.get(pid)
+                    : their.getValue();
+            if (file != null) {
+                files.add(file);
+            }
+        }
+        for (Map.Entry<String, Map<String, Object>> our : ourFiles
+                .entrySet()) {
+            String pid = our.getKey();
+            if (seen.contains(pid)) {
+                continue;
+            }
+            if (baseFiles.containsKey(pid)) {
+                // removed by the other save, kept only if unchanged by ours
+                if (!equal(ourFingerprints.get(pid), baseFiles.get(pid))) {
+                    return null;
+                }
+                continue;
+            }
+            files.add(our.getValue());
+        }
+        merged.put("files", files);
+        return merged;
+    }
+
+    private String getFieldsFingerprint(Document record) {
+        Document fields = new Document();
+        for (Map.Entry<String, Object> entry : record.entrySet()) {
+            if (!IGNORED_FIELDS.contains(entry.getKey())) {
+                fields.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return obj.getEscapedDoc(fields).toJson();
+    }
+
+    private Map<String, String> getFileFingerprints(Document record) {
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        for (Map.Entry<String, Map<String, Object>> file : getFiles(record)
+                .entrySet()) {
+            Document info = new Document(file.getValue());
+            for (String field : ACCESS_FIELDS) {
+                info.remove(field);
+            }
+            fingerprints.put(file.getKey(), obj.getEscapedDoc(info).toJson());
+        }
+        return fingerprints;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, Object>> getFiles(
+            Document record) {
+        Map<String, Map<String, Object>> files = new LinkedHashMap<String, Map<String, Object>>();
+        List<Map<String, Object>> list = (List<Map<String, Object>>) record
+                .get("files");
+        if (list != null) {
+            for (Map<String, Object> info : list) {
+                files.put((String) info.get("pid"), info);
+            }
+        }
+        return files;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.Closeable;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoClient;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Runs the operations of a unit of work in one causally consistent session,
+ * so that reads from a secondary see the unit's earlier writes. Without a
+ * client, sessions are disabled and operations run as usual.
+ *
+ * A unit of work is a {@link Scope}, begun with {@link #begin()} and closed
+ * when the work is done, which ends its session. Operations of the thread
+ * outside any scope run without a session. A session can't be shared
+ * between threads, so a task handed to another thread takes a
+ * {@link #fork()} of the scope and begins its own session from there with
+ * {@link #begin(Fork)}; when the task's scope closes, the scope it was
+ * forked from moves past the task's writes.
+ *
+ * Sessions need MongoDB 3.6 or later, and a replica set for the guarantee to
+ * matter.
+ */
+public class MongoSessions {
+
+    /**
+     * A unit of work, bound to the thread that began it until closed.
+     */
+    public class Scope implements Closeable {
+        private final ClientSession session;
+        private final boolean owner;
+        /** the scope owning the session, this one unless it joined it */
+        private final Scope root;
+        private final Scope previous;
+        private final Scope parent;
+        private BsonTimestamp reportedOperationTime;
+        private BsonDocument reportedClusterTime;
+        private boolean closed;
+
+        private Scope(Scope enclosing, ClientSession session, Scope parent) {
+            this.session = enclosing == null ? session : enclosing.session;
+            owner = enclosing == null;
+            root = enclosing == null ? this : enclosing.root;
+            this.parent = parent;
+            previous = current.get();
+            current.set(this);
+        }
+
+        /**
+         * @return the scope's session, or null if sessions are disabled
+         */
+        public ClientSession getSession() {
+            if (root != this) {
+                return root.getSession();
+            }
+            if (session != null) {
+                BsonTimestamp operationTime;
+                BsonDocument clusterTime;
+                synchronized (this) {
+                    operationTime = reportedOperationTime;
+                    clusterTime = reportedClusterTime;
+                    reportedOperationTime = null;
+                    reportedClusterTime = null;
+                }
+                if (operationTime != null) {
+                    session.advanceOperationTime(operationTime);
+                }
+                if (clusterTime != null) {
+                    session.advanceClusterTime(clusterTime);
+                }
+            }
+            return session;
+        }
+
+        /**
+         * Notes the writes of a scope forked from this one, to be applied on
+         * this scope's thread as its next operation starts.
+         */
+        private synchronized void report(BsonTimestamp operationTime,
+                BsonDocument clusterTime) {
+            if (operationTime != null && (reportedOperationTime == null
+                    || operationTime.compareTo(reportedOperationTime) > 0)) {
+                reportedOperationTime = operationTime;
+            }
+            if (clusterTime != null && (reportedClusterTime == null
+                    || getTimestamp(clusterTime).compareTo(
+                            getTimestamp(reportedClusterTime)) > 0)) {
+                reportedClusterTime = clusterTime;
+            }
+        }
+
+        /**
+         * Unbinds the scope from its thread, and ends its session unless it
+         * joined an enclosing scope's.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+            if (owner && session != null) {
+                if (parent != null) {
+                    parent.report(session.getOperationTime(),
+                            session.getClusterTime());
+                }
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Where a scope had got to when a task was handed to another thread.
+     */
+    public static class Fork {
+        private final Scope parent;
+        private final BsonTimestamp operationTime;
+        private final BsonDocument clusterTime;
+
+        private Fork(Scope parent) {
+            this.parent = parent == null ? null : parent.root;
+            ClientSession session = parent == null ? null
+                    : parent.getSession();
+            operationTime = session == null ? null
+                    : session.getOperationTime();
+            clusterTime = session == null ? null : session.getClusterTime();
+        }
+    }
+
+    protected MongoClient client;
+    private final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+
+    /**
+     * @param client - starts the sessions, null disables them
+     */
+    public MongoSessions(MongoClient client) {
+        this.client = client;
+    }
+
+    public boolean isEnabled() {
+        return client != null;
+    }
+
+    /**
+     * Begins a unit of work on the calling thread, joining the thread's
+     * current one if there is one.
+     *
+     * @return the scope, to be closed when the work is done
+     */
+    public Scope begin() {
+        Scope enclosing = current.get();
+        if (enclosing != null) {
+            return new Scope(enclosing, null, null);
+        }
+        return new Scope(null, startSession(), null);
+    }
+
+    /**
+     * Begins the unit of work of a task handed over by another thread, in a
+     * session of its own that sees everything the fork's scope had seen.
+     *
+     * @param fork - from {@link #fork()} on the handing thread
+     * @return the scope, to be closed on this thread when the task is done
+     */
+    public Scope begin(Fork fork) {
+        ClientSession session = startSession();
+        if (session != null && fork.operationTime != null) {
+            session.advanceOperationTime(fork.operationTime);
+        }
+        if (session != null && fork.clusterTime != null) {
+            session.advanceClusterTime(fork.clusterTime);
+        }
+        return new Scope(null, session, fork.parent);
+    }
+
+    /**
+     * @return the calling thread's current position, to hand to a task on
+     *         another thread
+     */
+    public Fork fork() {
+        return new Fork(current.get());
+    }
+
+    private static BsonTimestamp getTimestamp(BsonDocument clusterTime) {
+        return clusterTime.getTimestamp("clusterTime");
+    }
+
+    private ClientSession startSession() {
+        if (client == null) {
+            return null;
+        }
+        return client.startSession(ClientSessionOptions.builder()
+                .causallyConsistent(true).build());
+    }
+
+    /**
+     * @return the session of the calling thread's unit of work, or null if
+     *         there's none or sessions are disabled
+     */
+    public ClientSession get() {
+        Scope scope = current.get();
+        return scope == null ? null : scope.getSession();
+    }
+
+    <T> FindIterable<T> find(MongoCollection<T> collection, Bson filter) {
+        ClientSession session = get();
+        return session == null ? collection.find(filter)
+                : collection.find(session, filter);
+    }
+
+    <T> AggregateIterable<T> aggregate(MongoCollection<T> collection,
+            List<? extends Bson> pipeline) {
+        ClientSession session = get();
+        return session == null ? collection.aggregate(pipeline)
+                : collection.aggregate(session, pipeline);
+    }
+
+    <T> void insertOne(MongoCollection<T> collection, T document) {
+        ClientSession session = get();
+        if (session == null) {
+            collection.insertOne(document);
+        } else {
+            collection.insertOne(session, document);
+        }
+    }
+
+    <T> void replaceOne(MongoCollection<T> collection, Bson filter,
+            T replacement, UpdateOptions options) {
+        ClientSession session = get();
+        if (session == null) {
+            collection.replaceOne(filter, replacement, options);
+        } else {
+            collection.replaceOne(session, filter, replacement, options);
+        }
+    }
+
+    <T> UpdateResult updateOne(MongoCollection<T> collection, Bson filter,
+            Bson update) {
+        ClientSession session = get();
+        return session == null ? collection.updateOne(filter, update)
+                : collection.updateOne(session, filter, update);
+    }
+
+    <T> void bulkWrite(MongoCollection<T> collection,
+            List<? extends WriteModel<? extends T>> requests,
+            BulkWriteOptions options) {
+        ClientSession session = get();
+        if (session == null) {
+            collection.bulkWrite(requests, options);
+        } else {
+            collection.bulkWrite(session, requests, options);
+        }
+    }
+
+    <T> T findOneAndReplace(MongoCollection<T> collection, Bson filter,
+            T replacement) {
+        ClientSession session = get();
+        return session == null
+                ? collection.findOneAndReplace(filter, replacement)
+                : collection.findOneAndReplace(session, filter, replacement);
+    }
+
+    <T> T findOneAndDelete(MongoCollection<T> collection, Bson filter) {
+        ClientSession session = get();
+        return session == null ? collection.findOneAndDelete(filter)
+                : collection.findOneAndDelete(session, filter);
+    }
+
+    <T> void deleteOne(MongoCollection<T> collection, Bson filter) {
+        ClientSession session = get();
+        if (session == null) {
+            collection.deleteOne(filter);
+        } else {
+            collection.deleteOne(session, filter);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+
+/**
+ * Reads the sort of the paged queries, e.g.
+ * <code>"date_object_modified": -1, title: 1</code>, as a map of field paths
+ * to directions. The sort is never spliced into JSON, so it can only name
+ * fields and directions.
+ */
+public class MongoSort {
+
+    /** A field path, optionally quoted, then 1 or -1 */
+    private static final Pattern FIELD = Pattern.compile(
+            "\\s*(?:\"([^\"$][^\"]*)\"|'([^'$][^']*)'|([A-Za-z_][\\w.]*))"
+                    + "\\s*:\\s*(-?1)\\s*");
+
+    private MongoSort() {
+    }
+
+    /**
+     * @param sort - comma separated 'field: direction' pairs, may be null
+     * @return the fields in order with their directions, empty if there's no
+     *         sort
+     * @throws IllegalArgumentException if the sort isn't such a list
+     */
+    public static Map<String, Integer> parse(String sort) {
+        Map<String, Integer> fields = new LinkedHashMap<String, Integer>();
+        if (sort == null || sort.trim().isEmpty()) {
+            return fields;
+        }
+        for (String part : sort.split(",", -1)) {
+            Matcher matcher = FIELD.matcher(part);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid sort: " + sort);
+            }
+            String field = matcher.group(1) != null ? matcher.group(1)
+                    : matcher.group(2) != null ? matcher.group(2)
+                            : matcher.group(3);
+            fields.put(field, Integer.valueOf(matcher.group(4)));
+        }
+        return fields;
+    }
+
+    /**
+     * @return the $sort stage's document, or null if there's no sort
+     * @throws IllegalArgumentException if the sort is invalid
+     */
+    static BsonDocument toBson(String sort) {
+        Map<String, Integer> fields = parse(sort);
+        if (fields.isEmpty()) {
+            return null;
+        }
+        BsonDocument doc = new BsonDocument();
+        for (Map.Entry<String, Integer> field : fields.entrySet()) {
+            doc.put(field.getKey(), new BsonInt32(field.getValue()));
+        }
+        return doc;
+    }
+
+}
@@ -18,21 +18,51 @@
  */
 package au.com.redboxresearchdata.fascinator.storage.mongo;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.or;
 import static com.mongodb.client.model.Projections.excludeId;
 import static com.mongodb.client.model.Projections.fields;
 import static com.mongodb.client.model.Projections.include;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.bson.BsonArray;
 import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.joda.time.format.ISODateTimeFormat;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.googlecode.fascinator.api.PluginDescription;
 import com.googlecode.fascinator.api.PluginException;
@@ -44,15 +74,12 @@ import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientOptions;
-import com.mongodb.MongoClientOptions.Builder;
-import com.mongodb.MongoCommandException;
-import com.mongodb.MongoCredential;
-import com.mongodb.ServerAddress;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
 import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.IndexOptions;
@@ -110,16 +137,42 @@ import com.mongodb.client.model.IndexOptions;
  */
 public class MongoStorage implements JsonStorage {
 
+	private static Logger log = LoggerFactory.getLogger(MongoStorage.class);
+
 	/** System Config */
 	private JsonSimpleConfig systemConfig;
 
 	private MongoClient mongoClient;
 	private MongoDatabase mongoDb;
+	private MongoClientConfig clientConfig;
+	private MongoSessions sessions;
+	private Map<MongoClientConfig.Operation, MongoDatabase> databases = new EnumMap<MongoClientConfig.Operation, MongoDatabase>(
+			MongoClientConfig.Operation.class);
 	private String defaultCollection;
 	private String objectMetadataCollectionName;
 	private String recordMetadataViewName;
 
-	private MongoDigitalObject.PayloadBackend payloadBackend;
+	private MongoStorageConfig storageConfig;
+	private MongoMetadataDocuments metadataDocuments;
+
+	private ScheduledExecutorService tieringScheduler;
+
+	private MongoPayloadAccessLog payloadAccessLog;
+
+	private ExecutorService asyncExecutor;
+
+	private MongoQueryCache queryCache;
+
+	private MongoCounter counter;
+
+	private MongoQueryGuard queryGuard;
+
+	private MongoTextSearch textSearch;
+
+	private Map<String, MongoQueryTemplate> queryTemplates = new ConcurrentHashMap<String, MongoQueryTemplate>();
+
+	private static final BsonDocument PAGE_GROUP_STAGE = BsonDocument
+			.parse("{'$group':{'_id': null, 'numFound': {'$sum': 1 }, 'docs':{ '$push':'$$ROOT' }} }");
 
 	@Override
 	public String getId() {
@@ -157,39 +210,82 @@ public class MongoStorage implements JsonStorage {
 		}
 	}
 
-	private void init() {
-		String host = systemConfig.getString("localhost", "storage", "mongo", "host");
-		int port = systemConfig.getInteger(27017, "storage", "mongo", "port").intValue();
+	private void init() throws StorageException {
 		String db = systemConfig.getString("redbox", "storage", "mongo", "db");
-		boolean sslEnable = systemConfig.getBoolean(false, "storage", "mongo", "sslEnable");
-		String username = systemConfig.getString(null, "storage", "mongo", "username");
-		String password = systemConfig.getString(null, "storage", "mongo", "password");
 		defaultCollection = systemConfig.getString("default", "storage", "mongo", "defaultCollection");
 		objectMetadataCollectionName = systemConfig.getString("tf_obj_meta", "storage", "mongo", "metadataCollection");
 
 		recordMetadataViewName = systemConfig.getString("metadataDocuments", "storage", "mongo",
 				"recordMetadataCollection");
 
-		String payloadBackendName = systemConfig.getString("MONGO", "storage", "mongo", "payload_backend");
-		payloadBackend = MongoDigitalObject.PayloadBackend.valueOf(payloadBackendName);
-		Builder optionBuilder = MongoClientOptions.builder().sslEnabled(sslEnable);
+		storageConfig = new MongoStorageConfig(systemConfig);
+		clientConfig = new MongoClientConfig(systemConfig, db);
+		mongoClient = MongoClientRegistry.acquire(clientConfig.getSeeds(), clientConfig.getCredentials(),
+				clientConfig.getOptions());
 
-		ServerAddress addr = new ServerAddress(new InetSocketAddress(host, port));
-		if (username == null) {
-			mongoClient = new MongoClient(addr, optionBuilder.build());
-		} else {
-			List<MongoCredential> credentialsList = new ArrayList<MongoCredential>();
-			credentialsList.add(MongoCredential.createCredential(username, db, password.toCharArray()));
-			mongoClient = new MongoClient(addr, credentialsList, optionBuilder.build());
+		mongoDb = mongoClient.getDatabase(db);
+		sessions = new MongoSessions(clientConfig.isCausalConsistency() ? mongoClient : null);
+		for (MongoClientConfig.Operation operation : MongoClientConfig.Operation.values()) {
+			databases.put(operation, clientConfig.apply(mongoDb, operation));
+		}
+		queryGuard = new MongoQueryGuard(mongoClient.getDatabase("admin"), storageConfig.getQueryMaxTimeMS(),
+				storageConfig.getQueryMaxConcurrent(), storageConfig.getQueryAcquireTimeoutMS());
+		counter = new MongoCounter(getDatabase(MongoClientConfig.Operation.QUERY), queryGuard,
+				TimeUnit.SECONDS.toMillis(storageConfig.getCountCacheTtlSeconds()), storageConfig.getCountCap());
+		counter.setSessions(sessions);
+		if (storageConfig.isQueryCacheEnabled()) {
+			queryCache = new MongoQueryCache(TimeUnit.SECONDS.toMillis(storageConfig.getQueryCacheTtlSeconds()),
+					storageConfig.getQueryCacheMaxBytes());
 		}
 
-		mongoDb = mongoClient.getDatabase(db);
+		payloadAccessLog = new MongoPayloadAccessLog(getDatabase(MongoClientConfig.Operation.OBJECTS));
+		payloadAccessLog.setSessions(sessions);
+
+		asyncExecutor = MongoExecutors.newExecutor("mongo-storage-async", storageConfig.getAsyncThreads(),
+				storageConfig.isAsyncVirtualThreads());
 
 		createMetadataDocumentsView();
 		createPackageViews();
+		createTextIndex();
+		loadQueryTemplates();
+		startTiering();
 
 	}
 
+	/**
+	 * Schedules the jobs that write the buffered payload reads and demote cold
+	 * payloads to the archive, if enabled
+	 */
+	private void startTiering() {
+		if (!storageConfig.isTieringEnabled()) {
+			return;
+		}
+		tieringScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mongo-storage-tiering");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		int flushInterval = storageConfig.getTieringAccessFlushSeconds();
+		tieringScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushPayloadAccesses();
+				} catch (RuntimeException e) {
+					// keep the schedule alive for the next flush
+					log.error("Writing payload reads failed:", e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.SECONDS);
+		int interval = storageConfig.getTieringIntervalMinutes();
+		tieringScheduler.scheduleWithFixedDelay(
+				new MongoPayloadTiering(this, mongoDb, objectMetadataCollectionName, storageConfig), interval,
+				interval, TimeUnit.MINUTES);
+	}
+
 	/**
 	 * Create views for each package type to aid querying
 	 */
@@ -200,57 +296,137 @@ public class MongoStorage implements JsonStorage {
 
 			for (Object keyObject : packageTypes.keySet()) {
 				String key = (String) keyObject;
-				List pipeline = Arrays.asList(BsonDocument.parse("{$match: { 'packageType' : '" + key + "'}}"));
+				String viewName = key;
 				if (key.equals("default") || key.equals(this.recordMetadataViewName)) {
-					key = key + "_package";
+					viewName = key + "_package";
 				}
-				try {
-					mongoDb.createView(key, this.recordMetadataViewName, pipeline);
-				} catch (MongoCommandException e) {
-					// Error code 48 means that the view has already been
-					// created
-					if (e.getCode() != 48) {
-						throw e;
-					}
+				metadataDocuments.createPackageView(viewName, key);
+				if (queryCache != null) {
+					queryCache.addSource(viewName, defaultCollection);
 				}
 			}
 		}
 
 	}
 
-	private void createMetadataDocumentsView() {
-		List pipeline = Arrays.asList(
-				BsonDocument.parse("{$match: {files: { $elemMatch:{ pid: 'metadata.tfpackage'}}}}"),
-				BsonDocument
-						.parse("{ $project: { files: { '$filter': { input: '$files', as: 'files', cond: {$eq: ['$$files.pid','metadata.tfpackage']}}}}}"),
-				BsonDocument.parse("{ $unwind:  '$files' }"),
-				BsonDocument.parse("{ $project: { 'metadata':'$files.source.payload', 'redboxOid': '$files.oid'}}"),
-				BsonDocument
-						.parse("{$lookup: { from: 'tf_obj_meta', localField:'redboxOid', foreignField: 'redboxOid', as: 'tfObj'}}"),
-				BsonDocument
-						.parse("{ $addFields: { 'metadata': { 'redboxOid':  '$redboxOid', 'packageType':'$tfObj.packageType', 'date_object_created':'$tfObj.date_object_created', 'date_object_modified':'$tfObj.date_object_modified' }}}"),
-				BsonDocument.parse("{ $replaceRoot: { newRoot: '$metadata'}}"));
-		try {
-			mongoDb.createView(this.recordMetadataViewName, this.defaultCollection, pipeline);
-			// create the required indices
-			MongoCollection collection = mongoDb.getCollection(this.defaultCollection);
-			IndexOptions options = new IndexOptions().sparse(true).background(true);
-			collection.createIndex(Indexes.ascending("files.pid"), options);
-			collection.createIndex(Indexes.compoundIndex(Indexes.ascending("files.pid", "files.source.payload.metaMetadata.brandId", "files.source.payload.metaMetadata.type", "files.source.payload.workflow.stage")), options.name("metaViewIndex"));
-			options = new IndexOptions().sparse(true).background(true);
-			collection = mongoDb.getCollection("tf_obj_meta");
-			collection.createIndex(Indexes.ascending("redboxOid"), options);
-		} catch (MongoCommandException e) {
-			// Error code 48 means that the view has already been created
-			if (e.getCode() != 48) {
-				throw e;
+	/**
+	 * Creates the text index over the configured tfpackage fields, if any
+	 */
+	private void createTextIndex() {
+		if (storageConfig.getTextIndexFields().isEmpty()) {
+			return;
+		}
+		textSearch = new MongoTextSearch(mongoDb, storageConfig.getTextIndexFields(),
+				storageConfig.getTextIndexLanguage());
+		textSearch.createIndex(defaultCollection);
+	}
+
+	/**
+	 * Parses the query templates of the configuration, see
+	 * {@link MongoQueryTemplate}
+	 */
+	private void loadQueryTemplates() throws StorageException {
+		JsonObject templates = systemConfig.getObject("storage", "mongo", "queryTemplates");
+		if (templates != null) {
+			for (Object keyObject : templates.keySet()) {
+				String name = (String) keyObject;
+				JsonObject template = (JsonObject) templates.get(keyObject);
+				String collection = (String) template.get("collection");
+				if (collection == null) {
+					collection = recordMetadataViewName;
+				}
+				addQueryTemplate(new MongoQueryTemplate(name, collection, JSONValue.toJSONString(template.get("pipeline"))));
 			}
 		}
 	}
 
+	private void createMetadataDocumentsView() {
+		metadataDocuments = new MongoMetadataDocuments(mongoDb, this.recordMetadataViewName, this.defaultCollection,
+				this.objectMetadataCollectionName, storageConfig.getRecordMetadataMode(),
+				storageConfig.getDenormalizedFields());
+		metadataDocuments.setQueryDatabase(getDatabase(MongoClientConfig.Operation.QUERY));
+		metadataDocuments.setSessions(sessions);
+		metadataDocuments.setQueryGuard(queryGuard);
+		metadataDocuments.create();
+		if (queryCache != null) {
+			queryCache.addSource(recordMetadataViewName, defaultCollection);
+		}
+		// create the required indices
+		MongoCollection collection = mongoDb.getCollection(this.defaultCollection);
+		IndexOptions options = new IndexOptions().sparse(true).background(true);
+		collection.createIndex(Indexes.ascending("files.pid"), options);
+		collection.createIndex(Indexes.compoundIndex(Indexes.ascending("files.pid", "files.source.payload.metaMetadata.brandId", "files.source.payload.metaMetadata.type", "files.source.payload.workflow.stage")), options.name("metaViewIndex"));
+		options = new IndexOptions().sparse(true).background(true);
+		collection = mongoDb.getCollection(this.objectMetadataCollectionName);
+		collection.createIndex(Indexes.ascending("redboxOid"), options);
+		collection.createIndex(Indexes.ascending("date_object_created"), options);
+		collection.createIndex(Indexes.ascending("date_object_modified"), options);
+	}
+
+	/**
+	 * Recomputes the materialized metadataDocuments collection from the
+	 * records. Only needed when running in MATERIALIZED mode, e.g. after
+	 * records were changed outside of this plugin.
+	 *
+	 * @return the number of metadata documents written
+	 */
+	public long rebuildMetadataDocuments() {
+		long count = metadataDocuments.rebuild();
+		invalidateQueryCache();
+		return count;
+	}
+
+	/**
+	 * Copies the denormalized object metadata fields into records saved before
+	 * they were denormalized. Safe to run repeatedly.
+	 *
+	 * @return the number of records updated
+	 */
+	public long backfillDenormalizedFields() {
+		long count = metadataDocuments.backfill();
+		invalidateQueryCache();
+		return count;
+	}
+
+	/**
+	 * @return the pagedQuery result cache, or null if it's disabled. Exposes
+	 *         the hit rate.
+	 */
+	public MongoQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Writes the payload reads buffered since the last flush to the records.
+	 * Runs on the tiering schedule, before each tiering run and on shutdown.
+	 *
+	 * @return the number of payloads updated
+	 */
+	public int flushPayloadAccesses() {
+		return payloadAccessLog.flush();
+	}
+
+	private void invalidateQueryCache() {
+		if (queryCache != null) {
+			queryCache.invalidateAll();
+		}
+	}
+
 	@Override
 	public void shutdown() throws PluginException {
-		mongoClient.close();
+		if (tieringScheduler != null) {
+			tieringScheduler.shutdownNow();
+		}
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdownNow();
+		}
+		if (payloadAccessLog != null && mongoClient != null) {
+			flushPayloadAccesses();
+		}
+		if (mongoClient != null) {
+			MongoClientRegistry.release(mongoClient);
+			mongoClient = null;
+		}
 	}
 
 	@Override
@@ -263,8 +439,7 @@ public class MongoStorage implements JsonStorage {
 			throw new StorageException("Cannot create object in storage with NULL oid");
 		}
 		// start with the object...
-		MongoDigitalObject obj = new MongoDigitalObject(mongoDb, collectionName, objectMetadataCollectionName, oid,
-				payloadBackend);
+		MongoDigitalObject obj = newDigitalObject(oid, collectionName);
 		if (obj.existsInStorage()) {
 			throw new StorageException("Error; object '" + oid + "' already exists in MongoDB");
 		}
@@ -278,28 +453,169 @@ public class MongoStorage implements JsonStorage {
 	}
 
 	public JsonDigitalObject getObject(String oid, String collectionName) throws StorageException {
-		MongoDigitalObject obj = new MongoDigitalObject(mongoDb, collectionName, objectMetadataCollectionName, oid,
-				payloadBackend);
+		MongoDigitalObject obj = newDigitalObject(oid, collectionName);
 		obj.load();
 		return obj;
 	}
 
+	public CompletableFuture<JsonDigitalObject> getObjectAsync(String oid) {
+		return getObjectAsync(oid, defaultCollection);
+	}
+
+	/**
+	 * Loads an object without blocking, fetching its object metadata and
+	 * record at the same time.
+	 *
+	 * @return completes with the object, or with a StorageException if it
+	 *         doesn't exist
+	 */
+	public CompletableFuture<JsonDigitalObject> getObjectAsync(String oid, String collectionName) {
+		return newDigitalObject(oid, collectionName).loadAsync().thenApply(
+				new Function<MongoDigitalObject, JsonDigitalObject>() {
+					@Override
+					public JsonDigitalObject apply(MongoDigitalObject obj) {
+						return obj;
+					}
+				});
+	}
+
+	/**
+	 * Saves an object of this storage without blocking.
+	 *
+	 * @return completes when saved, or with the StorageException
+	 */
+	public CompletableFuture<Void> saveAsync(JsonDigitalObject obj) {
+		return ((MongoDigitalObject) obj).saveAsync();
+	}
+
+	/**
+	 * Opens a payload of an object in the default collection without
+	 * blocking.
+	 *
+	 * @return completes with the payload's data, to be closed by the caller,
+	 *         or with a StorageException if the object or payload doesn't
+	 *         exist
+	 */
+	public CompletableFuture<InputStream> openPayloadAsync(String oid, final String pid) {
+		return newDigitalObject(oid, defaultCollection).loadAsync().thenCompose(
+				new Function<MongoDigitalObject, CompletableFuture<InputStream>>() {
+					@Override
+					public CompletableFuture<InputStream> apply(MongoDigitalObject obj) {
+						return obj.openPayloadAsync(pid);
+					}
+				});
+	}
+
 	@Override
 	public void removeObject(String oid) throws StorageException {
 		removeObject(oid, defaultCollection);
 	}
 
 	public void removeObject(String oid, String collectionName) throws StorageException {
-		MongoDigitalObject obj = new MongoDigitalObject(mongoDb, collectionName, objectMetadataCollectionName, oid,
-				payloadBackend);
+		MongoDigitalObject obj = newDigitalObject(oid, collectionName);
 		obj.remove();
 	}
 
+	/**
+	 * Loads an object from its already fetched object metadata document.
+	 */
+	MongoDigitalObject loadObject(Document objectMetadataDoc) {
+		String collectionName = objectMetadataDoc.getString("collectionName");
+		if (collectionName == null) {
+			collectionName = defaultCollection;
+		}
+		MongoDigitalObject obj = newDigitalObject(objectMetadataDoc.getString("redboxOid"), collectionName);
+		obj.load(objectMetadataDoc);
+		return obj;
+	}
+
+	/**
+	 * Loads every object in storage using several concurrent cursors, e.g. for
+	 * rebuilding a search index. Objects are passed to the consumer on the
+	 * calling thread, in no particular order. The loaders wait while the queue
+	 * is full, so memory use is bounded by the queue size.
+	 *
+	 * @param partitions
+	 *            - number of concurrent cursors
+	 * @param queueSize
+	 *            - most loaded objects waiting for the consumer
+	 * @param consumer
+	 *            - receives each object
+	 * @return number of objects consumed
+	 * @throws StorageException
+	 */
+	public long parallelScan(int partitions, int queueSize, MongoObjectConsumer consumer) throws StorageException {
+		return new MongoParallelScan(this, getDatabase(MongoClientConfig.Operation.EXPORT),
+				objectMetadataCollectionName).scan(partitions, queueSize, consumer);
+	}
+
+	/**
+	 * Writes every object, with its payload data, to the stream as gzipped
+	 * NDJSON. See {@link MongoStorageTransfer}.
+	 *
+	 * @param out
+	 *            - receives the export, left open
+	 * @param partitions
+	 *            - number of concurrent loaders
+	 * @return number of objects exported
+	 * @throws StorageException
+	 */
+	public long exportTo(OutputStream out, int partitions) throws StorageException {
+		return newTransfer(MongoClientConfig.Operation.EXPORT).exportTo(out, partitions);
+	}
+
+	/**
+	 * Loads objects from a stream written by {@link #exportTo(OutputStream, int)},
+	 * replacing any object with the same OID.
+	 *
+	 * @param in
+	 *            - the export, left open
+	 * @param checkpoint
+	 *            - records progress so a failed import can be resumed by
+	 *            running it again with the same file; may be null
+	 * @return number of objects imported
+	 * @throws StorageException
+	 */
+	public long importFrom(InputStream in, File checkpoint) throws StorageException {
+		try {
+			return newTransfer(MongoClientConfig.Operation.INGEST).importFrom(in, checkpoint);
+		} finally {
+			invalidateQueryCache();
+		}
+	}
+
+	private MongoStorageTransfer newTransfer(MongoClientConfig.Operation operation) {
+		return new MongoStorageTransfer(this, getDatabase(operation), objectMetadataCollectionName, storageConfig);
+	}
+
+	private MongoDigitalObject newDigitalObject(String oid, String collectionName) {
+		MongoDigitalObject obj = new MongoDigitalObject(getDatabase(MongoClientConfig.Operation.OBJECTS), collectionName,
+				objectMetadataCollectionName, oid,
+				storageConfig);
+		obj.setMetadataDocuments(metadataDocuments);
+		obj.setQueryCache(queryCache);
+		obj.setExecutor(asyncExecutor);
+		obj.setSessions(sessions);
+		obj.setPayloadAccessLog(payloadAccessLog);
+		return obj;
+	}
+
+	/**
+	 * @return the database with the concerns configured for the operation
+	 */
+	MongoDatabase getDatabase(MongoClientConfig.Operation operation) {
+		return databases.get(operation);
+	}
+
+	private MongoCollection<Document> getQueryCollection(String collection) {
+		return getDatabase(MongoClientConfig.Operation.QUERY).getCollection(collection);
+	}
+
 	@Override
 	public Set<String> getObjectIdList() {
 		Set<String> objectIdList = new HashSet<String>();
-		MongoCollection<Document> objectMetaCol = mongoDb.getCollection(objectMetadataCollectionName);
-		List<Document> objectIds = objectMetaCol.find(new Document())
+		MongoCollection<Document> objectMetaCol = getQueryCollection(objectMetadataCollectionName);
+		List<Document> objectIds = sessions.find(objectMetaCol, new Document())
 				.projection(fields(include("redboxOid"), excludeId())).into(new ArrayList<Document>());
 		for (Document doc : objectIds) {
 			objectIdList.add(doc.getString("redboxOid"));
@@ -307,6 +623,35 @@ public class MongoStorage implements JsonStorage {
 		return objectIdList;
 	}
 
+	/**
+	 * Streams the OIDs of objects created or modified at or after the given
+	 * instant, e.g. for incremental reindexing. The OIDs are read from a
+	 * cursor as the result is iterated.
+	 *
+	 * Timestamps written by earlier versions as ISO strings are matched by
+	 * string comparison, which is only exact while they share a time zone
+	 * with this JVM.
+	 *
+	 * @param since
+	 *            - the earliest modification of interest
+	 * @return the OIDs
+	 */
+	public MongoIterable<String> getObjectIdsModifiedSince(Date since) {
+		String legacySince = ISODateTimeFormat.dateTime().print(since.getTime());
+		Bson filter = or(gte("date_object_modified", since), gte("date_object_modified", legacySince),
+				and(exists("date_object_modified", false),
+						or(gte("date_object_created", since), gte("date_object_created", legacySince))));
+		return sessions.find(getQueryCollection(objectMetadataCollectionName), filter)
+				.projection(fields(include("redboxOid"), excludeId()))
+				// the driver's own Function, the imported one is the JDK's
+				.map(new com.mongodb.Function<Document, String>() {
+					@Override
+					public String apply(Document doc) {
+						return doc.getString("redboxOid");
+					}
+				});
+	}
+
 	public void dropDb() throws Exception {
 		mongoDb.drop();
 	}
@@ -317,31 +662,582 @@ public class MongoStorage implements JsonStorage {
 
 	public JsonSimple pagedQuery(String collection, String filterString, int startIndex, int rows, String sort)
 			throws IOException {
-		System.out.println("Running paged query on: " + collection + " using: " + filterString + " sort:" + sort );
+		return pagedQuery(collection, filterString, startIndex, rows, sort, null);
+	}
+
+	/**
+	 * Runs a paged query returning only the given fields of each document.
+	 * The projection runs straight after the filter and sort, so unwanted
+	 * fields are dropped before the page is assembled.
+	 *
+	 * @param collection
+	 * @param filterString
+	 * @param startIndex
+	 * @param rows
+	 * @param sort
+	 *            - 'field: direction' pairs, see {@link MongoSort}; may be null
+	 * @param fields
+	 *            - field paths to return along with 'redboxOid', null or empty
+	 *            for whole documents
+	 * @return 'numFound' and the page as 'docs'
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if the sort is invalid
+	 */
+	public JsonSimple pagedQuery(String collection, String filterString, int startIndex, int rows, String sort,
+			List<String> fields) throws IOException {
+		return pagedQuery(collection, filterString, startIndex, rows, sort, fields, MongoCounter.Mode.EXACT);
+	}
+
+	/**
+	 * Runs a paged query whose 'numFound' is counted as the mode asks. Other
+	 * than EXACT, the page is fetched on its own and the count taken
+	 * separately, see {@link MongoCounter}. The response's 'countMode' names
+	 * the mode that produced 'numFound', and 'numFoundCapped' is true when
+	 * there are more matches than a CAPPED count.
+	 *
+	 * @param collection
+	 * @param filterString
+	 * @param startIndex
+	 * @param rows
+	 * @param sort
+	 *            - may be null
+	 * @param fields
+	 *            - may be null
+	 * @param countMode
+	 * @return 'numFound', 'countMode' and the page as 'docs'
+	 * @throws IOException
+	 */
+	public JsonSimple pagedQuery(String collection, String filterString, int startIndex, int rows, String sort,
+			List<String> fields, MongoCounter.Mode countMode) throws IOException {
+		return pagedQuery(collection, filterString, startIndex, rows, sort, fields, countMode, null);
+	}
+
+	/**
+	 * Runs a paged query under the time limit and cancellation handle of the
+	 * options. Paged queries share a limited number of permits, see
+	 * 'storage.mongo.query.maxConcurrent'.
+	 *
+	 * @param collection
+	 * @param filterString
+	 * @param startIndex
+	 * @param rows
+	 * @param sort
+	 *            - may be null
+	 * @param fields
+	 *            - may be null
+	 * @param countMode
+	 * @param options
+	 *            - time limit and handle, may be null
+	 * @return 'numFound', 'countMode' and the page as 'docs'
+	 * @throws IOException
+	 * @throws MongoQueryRejectedException
+	 *             if too many queries are running
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the handle cancelled the query
+	 */
+	public JsonSimple pagedQuery(String collection, String filterString, int startIndex, int rows, String sort,
+			List<String> fields, MongoCounter.Mode countMode, MongoQueryOptions options) throws IOException {
+		String cacheKey = null;
+		if (queryCache != null) {
+			cacheKey = collection + '\u0000' + filterString + '\u0000' + sort + '\u0000' + startIndex + '\u0000' + rows
+					+ '\u0000' + fields + '\u0000' + countMode;
+			String cached = queryCache.get(collection, cacheKey);
+			if (cached != null) {
+				return new JsonSimple(cached);
+			}
+		}
+		log.debug("Running paged query on: " + collection + " using: " + filterString + " sort:" + sort);
+		List<BsonDocument> pipeline = new ArrayList<BsonDocument>();
+		pipeline.add(new BsonDocument("$match", BsonDocument.parse(filterString)));
+		BsonDocument sortDoc = MongoSort.toBson(sort);
+		if (sortDoc != null) {
+			pipeline.add(new BsonDocument("$sort", sortDoc));
+		}
+		Bson projection = MongoQueryOptions.getProjection(fields);
+		if (projection != null) {
+			pipeline.add(new BsonDocument("$project",
+					projection.toBsonDocument(BsonDocument.class, mongoDb.getCodecRegistry())));
+		}
+		return runGuardedPagedQuery(collection, cacheKey, pipeline, startIndex, rows, countMode, options);
+	}
+
+	/**
+	 * Runs a paged query, the pipeline starting with its $match unless the
+	 * count is EXACT, under the guard's permits and the options' time limit and
+	 * handle, and caches its result under the key if there's a cache.
+	 */
+	private JsonSimple runGuardedPagedQuery(String collection, String cacheKey, List<BsonDocument> pipeline,
+			int startIndex, int rows, MongoCounter.Mode countMode, MongoQueryOptions options) throws IOException {
+		// taken before the query runs, so a write while it runs isn't missed
+		long generation = queryCache == null ? 0 : queryCache.getGeneration(collection);
+		JsonSimple result;
+		queryGuard.checkCancelled(options);
+		queryGuard.acquire();
+		try {
+			if (countMode == MongoCounter.Mode.EXACT) {
+				result = runPagedQuery(collection, pipeline, startIndex, rows, options);
+				result.getJsonObject().put("countMode", countMode.name());
+			} else {
+				result = runCountedPagedQuery(collection, pipeline, startIndex, rows, countMode, options);
+			}
+		} finally {
+			queryGuard.release();
+		}
+		if (queryCache != null) {
+			queryCache.put(collection, cacheKey, result.toString(), generation);
+		}
+		return result;
+	}
+
+	/**
+	 * Fetches just the page, the pipeline starting with its $match, and counts
+	 * the matches separately.
+	 */
+	private JsonSimple runCountedPagedQuery(String collection, List<BsonDocument> stages, int startIndex, int rows,
+			MongoCounter.Mode countMode, MongoQueryOptions options) throws IOException {
+		List<BsonDocument> pipeline = new ArrayList<BsonDocument>(stages);
+		// the projection, if any, goes after the page is cut
+		int projectAt = pipeline.size();
+		if (pipeline.get(pipeline.size() - 1).containsKey("$project")) {
+			projectAt--;
+		}
+		List<BsonDocument> page = new ArrayList<BsonDocument>();
+		if (startIndex > 0) {
+			page.add(new BsonDocument("$skip", new BsonInt32(startIndex)));
+		}
+		page.add(new BsonDocument("$limit", new BsonInt32(rows)));
+		pipeline.addAll(projectAt, page);
+		List<Document> docs = new ArrayList<Document>();
+		if (rows > 0) {
+			AggregateIterable<Document> aggregate = sessions.aggregate(getQueryCollection(collection),
+					queryGuard.tagPipeline(pipeline, options)).allowDiskUse(true);
+			queryGuard.drain(queryGuard.apply(aggregate, options), docs, options);
+		}
+		MongoCounter.Result count = counter.count(collection, stages.get(0).getDocument("$match"), countMode,
+				options);
+		Document response = new Document("_id", null).append("numFound", toJsonNumber(count.getCount()))
+				.append("countMode", count.getMode().name()).append("docs", docs);
+		if (count.isCapped()) {
+			response.append("numFoundCapped", true);
+		}
+		return new JsonSimple(response.toJson());
+	}
+
+	/**
+	 * @return the count as an int where it fits, as the strict JSON of a long
+	 *         is a '$numberLong' object rather than a number
+	 */
+	private static Object toJsonNumber(long count) {
+		if (count > Integer.MAX_VALUE) {
+			return Long.valueOf(count);
+		}
+		return Integer.valueOf((int) count);
+	}
+
+	/**
+	 * Adds the stages collecting a page of the pipeline's output and the
+	 * number of documents in it, and runs the pipeline.
+	 */
+	private JsonSimple runPagedQuery(String collection, List<BsonDocument> stages, int startIndex, int rows,
+			MongoQueryOptions options) throws IOException {
 		long startStamp = System.currentTimeMillis();
-		List<BsonDocument> pipeline = Arrays.asList(BsonDocument.parse("{$match:" + filterString + "}"),
-				BsonDocument.parse("{'$group':{'_id': null, 'numFound': {'$sum': 1 }, 'docs':{ '$push':'$$ROOT' }} },"),
-				BsonDocument.parse("{'$project': { 'numFound':1 , 'docs' : {'$slice': ['$docs'," + startIndex + ","
-						+ rows + "] }   }}"));
-		if (sort != null) {
-			List<BsonDocument> newpipeline = new ArrayList<BsonDocument>(pipeline);
-			newpipeline.add(1, BsonDocument.parse("{'$sort': {" + sort + "}}"));
-			pipeline = newpipeline;
-		}
-		System.out.println("Pipeline:");
-		System.out.println(pipeline.toString());
-		AggregateIterable<Document> result = this.mongoDb.getCollection(collection).aggregate(pipeline).allowDiskUse(true);
-		if (result.first() != null) {
-			System.out.println("Query took: " + (System.currentTimeMillis() - startStamp));
-			return new JsonSimple(result.first().toJson());
+		List<BsonDocument> pipeline = new ArrayList<BsonDocument>(stages);
+		pipeline.add(PAGE_GROUP_STAGE);
+		pipeline.add(new BsonDocument("$project",
+				new BsonDocument("numFound", new BsonInt32(1)).append("docs",
+						new BsonDocument("$slice", new BsonArray(Arrays.<BsonValue> asList(new BsonString("$docs"),
+								new BsonInt32(startIndex), new BsonInt32(rows)))))));
+		log.debug("Pipeline: " + pipeline);
+		AggregateIterable<Document> aggregate = sessions.aggregate(getQueryCollection(collection),
+				queryGuard.tagPipeline(pipeline, options)).allowDiskUse(true);
+		List<Document> results = queryGuard.drain(queryGuard.apply(aggregate, options),
+				new ArrayList<Document>(), options);
+		Document result = results.isEmpty() ? null : results.get(0);
+		if (result != null) {
+			log.debug("Query took: " + (System.currentTimeMillis() - startStamp));
+			return new JsonSimple(result.toJson());
 		} else {
 			return new JsonSimple("{\"_id\": null,  \"numFound\": 0,  \"docs\": []}");
 		}
 	}
 
+	/**
+	 * Registers a query template, replacing any template of the same name.
+	 * Templates can also be defined in the 'storage.mongo.queryTemplates'
+	 * block of the configuration.
+	 *
+	 * @param template
+	 */
+	public void addQueryTemplate(MongoQueryTemplate template) {
+		queryTemplates.put(template.getName(), template);
+	}
+
+	public MongoQueryTemplate getQueryTemplate(String name) {
+		return queryTemplates.get(name);
+	}
+
+	/**
+	 * Runs a query template with its parameters bound to the values,
+	 * returning a page of the output like
+	 * {@link #pagedQuery(String, String, int, int, String)}.
+	 *
+	 * @param templateName
+	 * @param params
+	 *            - a value for each parameter of the template
+	 * @param startIndex
+	 * @param rows
+	 * @return 'numFound' and the page as 'docs'
+	 * @throws StorageException
+	 *             if there's no such template or a value is missing or of the
+	 *             wrong type
+	 * @throws IOException
+	 */
+	public JsonSimple pagedTemplateQuery(String templateName, Map<String, ?> params, int startIndex, int rows)
+			throws StorageException, IOException {
+		return pagedTemplateQuery(templateName, params, startIndex, rows, null);
+	}
+
+	/**
+	 * Runs a query template like a paged query: its results are cached per
+	 * template and values, and it runs under the guard's permits and the time
+	 * limit and handle of the options.
+	 *
+	 * @param templateName
+	 * @param params
+	 *            - a value for each parameter of the template
+	 * @param startIndex
+	 * @param rows
+	 * @param options
+	 *            - time limit and handle, may be null
+	 * @return 'numFound' and the page as 'docs'
+	 * @throws StorageException
+	 *             if there's no such template or a value is missing or of the
+	 *             wrong type
+	 * @throws IOException
+	 * @throws MongoQueryRejectedException
+	 *             if too many queries are running
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the handle cancelled the query
+	 */
+	public JsonSimple pagedTemplateQuery(String templateName, Map<String, ?> params, int startIndex, int rows,
+			MongoQueryOptions options) throws StorageException, IOException {
+		MongoQueryTemplate template = requireQueryTemplate(templateName);
+		String cacheKey = null;
+		if (queryCache != null) {
+			cacheKey = getTemplateCacheKey(template, params) + '\u0000' + startIndex + '\u0000' + rows;
+			String cached = queryCache.get(template.getCollection(), cacheKey);
+			if (cached != null) {
+				return new JsonSimple(cached);
+			}
+		}
+		return runGuardedPagedQuery(template.getCollection(), cacheKey, template.bind(params), startIndex, rows,
+				MongoCounter.Mode.EXACT, options);
+	}
+
+	/**
+	 * @return the template and its values as a key, typed so values of
+	 *         different types that print the same don't collide
+	 */
+	private static String getTemplateCacheKey(MongoQueryTemplate template, Map<String, ?> params) {
+		StringBuilder key = new StringBuilder("template\u0000").append(template.getName());
+		if (params != null) {
+			for (Map.Entry<String, ?> param : new TreeMap<String, Object>(params).entrySet()) {
+				Object value = param.getValue();
+				key.append('\u0000').append(param.getKey()).append('=')
+						.append(value == null ? "null" : value.getClass().getName() + ':' + value);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Streams the whole output of a query template, see
+	 * {@link #streamAggregate(String, List, MongoQueryOptions)}.
+	 *
+	 * @param templateName
+	 * @param params
+	 *            - a value for each parameter of the template
+	 * @param options
+	 *            - may be null
+	 * @return the output documents
+	 * @throws StorageException
+	 *             if there's no such template or a value is missing or of the
+	 *             wrong type
+	 */
+	public Stream<Document> streamTemplateQuery(String templateName, Map<String, ?> params, MongoQueryOptions options)
+			throws StorageException {
+		MongoQueryTemplate template = requireQueryTemplate(templateName);
+		return streamAggregate(template.getCollection(), template.bind(params), options);
+	}
+
+	private MongoQueryTemplate requireQueryTemplate(String name) throws StorageException {
+		MongoQueryTemplate template = queryTemplates.get(name);
+		if (template == null) {
+			throw new StorageException("No query template named '" + name + "'");
+		}
+		return template;
+	}
+
+	/**
+	 * Keyword search over the tfpackages of a record collection, best matches
+	 * first. Needs the text index, see 'storage.mongo.textIndex.fields';
+	 * collections other than the default one need the same index created
+	 * separately.
+	 *
+	 * @param collection
+	 *            - the record collection searched
+	 * @param terms
+	 *            - words, "quoted phrases" and -excluded words
+	 * @param startIndex
+	 * @param rows
+	 * @param fields
+	 *            - tfpackage fields returned, null or empty for whole
+	 *            tfpackages
+	 * @return 'numFound' (capped, see {@link MongoCounter.Mode#CAPPED}) and
+	 *         the page as 'docs', each with its 'redboxOid' and relevance
+	 *         'score'
+	 * @throws StorageException
+	 *             if no text index is configured
+	 * @throws IOException
+	 */
+	public JsonSimple search(String collection, String terms, int startIndex, int rows, List<String> fields)
+			throws StorageException, IOException {
+		return search(collection, terms, startIndex, rows, fields, null);
+	}
+
+	/**
+	 * Runs a keyword search, both its page and its count, under the time
+	 * limit and cancellation handle of the options.
+	 *
+	 * @param collection
+	 * @param terms
+	 * @param startIndex
+	 * @param rows
+	 * @param fields
+	 * @param options
+	 *            - time limit and handle, may be null
+	 * @return 'numFound' and the page as 'docs'
+	 * @throws StorageException
+	 *             if no text index is configured
+	 * @throws IOException
+	 * @throws MongoQueryRejectedException
+	 *             if too many queries are running
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the handle cancelled the query
+	 */
+	public JsonSimple search(String collection, String terms, int startIndex, int rows, List<String> fields,
+			MongoQueryOptions options) throws StorageException, IOException {
+		if (textSearch == null) {
+			throw new StorageException("Text search needs 'storage.mongo.textIndex.fields' to be configured");
+		}
+		List<Document> docs = new ArrayList<Document>();
+		MongoCounter.Result count;
+		queryGuard.checkCancelled(options);
+		queryGuard.acquire();
+		try {
+			if (rows > 0) {
+				AggregateIterable<Document> aggregate = sessions.aggregate(getQueryCollection(collection),
+						queryGuard.tagPipeline(textSearch.getPipeline(terms, startIndex, rows, fields), options));
+				queryGuard.drain(queryGuard.apply(aggregate, options), docs, options);
+			}
+			count = counter.count(collection, textSearch.getFilter(terms), MongoCounter.Mode.CAPPED, options);
+		} finally {
+			queryGuard.release();
+		}
+		Document response = new Document("numFound", toJsonNumber(count.getCount()))
+				.append("countMode", count.getMode().name()).append("docs", docs);
+		if (count.isCapped()) {
+			response.append("numFoundCapped", true);
+		}
+		return new JsonSimple(response.toJson());
+	}
+
+	/**
+	 * Counts the values of the facet fields among the metadata documents
+	 * matching the filter, with the first page of matches, in one
+	 * aggregation. Conditions on 'metaMetadata.brandId', 'metaMetadata.type'
+	 * and 'workflow.stage' are served by the 'metaViewIndex'.
+	 *
+	 * @param packageType
+	 *            - searches that package type's view, or metadataDocuments if
+	 *            null
+	 * @param filterString
+	 *            - the JSON filter
+	 * @param facetFields
+	 *            - field paths to count
+	 * @param startIndex
+	 * @param rows
+	 *            - page size, 0 for counts only
+	 * @param sort
+	 *            - sort fields as in pagedQuery, may be null
+	 * @return 'numFound', the page as 'docs', and 'facets' mapping each facet
+	 *         field to its 'value' and 'count' pairs, most frequent first
+	 * @throws IOException
+	 */
+	public JsonSimple facetQuery(String packageType, String filterString, List<String> facetFields, int startIndex,
+			int rows, String sort) throws IOException {
+		return facetQuery(packageType, filterString, facetFields, startIndex, rows, sort, null);
+	}
+
+	/**
+	 * See {@link #facetQuery(String, String, List, int, int, String)}; the
+	 * options' time limit and handle cover the whole aggregation, counts and
+	 * page alike.
+	 *
+	 * @param options
+	 *            - time limit and handle, may be null
+	 * @throws MongoQueryRejectedException
+	 *             if too many queries are running
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the handle cancelled the query
+	 */
+	@SuppressWarnings("unchecked")
+	public JsonSimple facetQuery(String packageType, String filterString, List<String> facetFields, int startIndex,
+			int rows, String sort, MongoQueryOptions options) throws IOException {
+		BsonDocument sortDoc = MongoSort.toBson(sort);
+		Document result;
+		queryGuard.checkCancelled(options);
+		queryGuard.acquire();
+		try {
+			result = queryGuard.first(metadataDocuments.facet(packageType, BsonDocument.parse(filterString),
+					facetFields, sortDoc, startIndex, rows, options), options);
+		} finally {
+			queryGuard.release();
+		}
+		List<Document> count = result == null ? null : (List<Document>) result.get("count");
+		Document response = new Document("numFound",
+				count == null || count.isEmpty() ? 0 : count.get(0).getInteger("numFound"));
+		List<Document> docs = result == null ? null : (List<Document>) result.get("docs");
+		response.append("docs", docs == null ? new ArrayList<Document>() : docs);
+		Document facets = new Document();
+		for (int i = 0; i < facetFields.size(); i++) {
+			List<Document> values = new ArrayList<Document>();
+			List<Document> counts = result == null ? null : (List<Document>) result.get("facet_" + i);
+			if (counts != null) {
+				for (Document valueCount : counts) {
+					values.add(new Document("value", valueCount.get("_id")).append("count", valueCount.get("count")));
+				}
+			}
+			facets.append(facetFields.get(i), values);
+		}
+		response.append("facets", facets);
+		return new JsonSimple(response.toJson());
+	}
+
 	public FindIterable<Document> query(String collection, String filterString) {
-		BsonDocument filter = BsonDocument.parse(filterString);
-		return this.mongoDb.getCollection(collection).find(filter);
+		return query(collection, filterString, (MongoQueryOptions) null);
+	}
+
+	/**
+	 * @param collection
+	 * @param filterString
+	 * @param fields
+	 *            - field paths to return along with 'redboxOid', null or empty
+	 *            for whole documents
+	 * @return the matching documents
+	 */
+	public FindIterable<Document> query(String collection, String filterString, List<String> fields) {
+		return query(collection, filterString, new MongoQueryOptions().fields(fields));
+	}
+
+	/**
+	 * @param collection
+	 * @param filterString
+	 * @param options
+	 *            - fields, batch size, time limit (else the configured
+	 *            default) and handle; may be null
+	 * @return the matching documents, whose cursors the handle can cancel
+	 */
+	public FindIterable<Document> query(String collection, String filterString, MongoQueryOptions options) {
+		BsonDocument filter = queryGuard.tag(BsonDocument.parse(filterString), options);
+		return new MongoGuardedFindIterable<Document>(
+				queryGuard.apply(sessions.find(getQueryCollection(collection), filter), options), queryGuard, options);
+	}
+
+	/**
+	 * Streams the documents matching the filter from a cursor, so results of
+	 * any size are processed in constant memory. The stream holds the cursor
+	 * open until it's exhausted or closed, so use it in a try-with-resources
+	 * block.
+	 *
+	 * @param collection
+	 * @param filterString
+	 *            - the JSON filter
+	 * @param options
+	 *            - batch size, fields and time limit; may be null
+	 * @return the matching documents
+	 */
+	public Stream<Document> streamQuery(String collection, String filterString, MongoQueryOptions options) {
+		return toStream(query(collection, filterString, options).iterator());
+	}
+
+	/**
+	 * Streams the output of an aggregation pipeline, see
+	 * {@link #streamQuery(String, String, MongoQueryOptions)}. The fields of
+	 * the options are projected after the last stage.
+	 *
+	 * @param collection
+	 * @param pipeline
+	 * @param options
+	 *            - may be null
+	 * @return the pipeline's output documents
+	 */
+	public Stream<Document> streamAggregate(String collection, List<? extends Bson> pipeline,
+			MongoQueryOptions options) {
+		List<Bson> stages = new ArrayList<Bson>(pipeline);
+		if (options != null && options.getProjectStage() != null) {
+			stages.add(options.getProjectStage());
+		}
+		AggregateIterable<Document> aggregate = sessions.aggregate(getQueryCollection(collection),
+				queryGuard.tagPipeline(stages, options)).allowDiskUse(true);
+		return toStream(queryGuard.open(queryGuard.apply(aggregate, options), options));
+	}
+
+	/**
+	 * Streams one page of the documents matching the filter, see
+	 * {@link #streamQuery(String, String, MongoQueryOptions)}. Unlike
+	 * {@link #pagedQuery(String, String, int, int, String)} this doesn't count
+	 * the matches, so the documents never have to be gathered into a single
+	 * result.
+	 *
+	 * @param collection
+	 * @param filterString
+	 * @param startIndex
+	 * @param rows
+	 *            - page size, 0 or less streams every match from startIndex
+	 * @param sort
+	 *            - sort fields as in pagedQuery, may be null
+	 * @param options
+	 *            - may be null
+	 * @return the documents of the page
+	 */
+	public Stream<Document> streamPagedQuery(String collection, String filterString, int startIndex, int rows,
+			String sort, MongoQueryOptions options) {
+		List<Bson> pipeline = new ArrayList<Bson>();
+		pipeline.add(Aggregates.match(BsonDocument.parse(filterString)));
+		BsonDocument sortDoc = MongoSort.toBson(sort);
+		if (sortDoc != null) {
+			pipeline.add(Aggregates.sort(sortDoc));
+		}
+		if (startIndex > 0) {
+			pipeline.add(Aggregates.skip(startIndex));
+		}
+		if (rows > 0) {
+			pipeline.add(Aggregates.limit(rows));
+		}
+		return streamAggregate(collection, pipeline, options);
+	}
+
+	static <T> Stream<T> toStream(final MongoCursor<T> cursor) {
+		Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(cursor,
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				cursor.close();
+			}
+		});
 	}
 
 	/**
@@ -352,7 +1248,51 @@ public class MongoStorage implements JsonStorage {
 	 * @return
 	 */
 	public AggregateIterable<Document> aggregate(String collection, List<BsonDocument> pipeline) {
-		return this.mongoDb.getCollection(collection).aggregate(pipeline);
+		return aggregate(collection, pipeline, null);
+	}
+
+	/**
+	 * Calls Mongo's aggregate function with the batch size, time limit (else
+	 * the configured default) and handle of the options
+	 *
+	 * @param collection
+	 * @param pipeline
+	 * @param options
+	 *            - may be null
+	 * @return
+	 */
+	public AggregateIterable<Document> aggregate(String collection, List<? extends Bson> pipeline,
+			MongoQueryOptions options) {
+		AggregateIterable<Document> aggregate = sessions.aggregate(getQueryCollection(collection),
+				queryGuard.tagPipeline(pipeline, options));
+		return queryGuard.apply(aggregate, options);
+	}
+
+	/**
+	 * Begins a unit of work on the calling thread: with
+	 * 'storage.mongo.client.causalConsistency' on, its queries see its earlier
+	 * writes, including those of the asynchronous operations it started once
+	 * they complete. Nested calls join the enclosing unit.
+	 *
+	 * @return the scope, to be closed when the work is done
+	 */
+	public MongoSessions.Scope beginSession() {
+		return sessions.begin();
+	}
+
+	/**
+	 * @return the time limits and admission control of queries, e.g. to see
+	 *         the free permits
+	 */
+	public MongoQueryGuard getQueryGuard() {
+		return queryGuard;
+	}
+
+	/**
+	 * @return the shared client this instance holds, null once shut down
+	 */
+	MongoClient getClient() {
+		return mongoClient;
 	}
 
 }
@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * Settings shared by the storage, its objects and their payloads. Read once
+ * from the 'storage.mongo' block of the system configuration.
+ */
+public class MongoStorageConfig {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoStorageConfig.class);
+
+    /**
+     * Largest inline threshold, so several inline payloads still fit in a
+     * record within MongoDB's 16MB document limit
+     */
+    static int MAX_INLINE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Most bytes of inline payloads in one record; further payloads go to the
+     * payload backend however small, leaving the rest of the 16MB for the
+     * record's metadata
+     */
+    static long MAX_INLINE_RECORD_BYTES = 8 * 1024 * 1024;
+
+    static List<String> DEFAULT_DENORMALIZED_FIELDS = Arrays.asList(
+            "packageType", "date_object_created", "date_object_modified");
+
+    protected MongoDigitalObject.PayloadBackend payloadBackend;
+    protected File filesystemRoot;
+    protected int inlineThreshold;
+    protected boolean tieringEnabled;
+    protected File archiveRoot;
+    protected int tieringColdAfterDays;
+    protected int tieringIntervalMinutes;
+    protected int tieringBatchSize;
+    protected int tieringAccessFlushSeconds;
+    protected MongoPayloadCompression compression;
+    protected MongoMetadataDocuments.Mode recordMetadataMode;
+    protected List<String> denormalizedFields;
+    protected boolean queryCacheEnabled;
+    protected int queryCacheTtlSeconds;
+    protected long queryCacheMaxBytes;
+    protected int countCacheTtlSeconds;
+    protected int countCap;
+    protected List<String> textIndexFields;
+    protected String textIndexLanguage;
+    protected long queryMaxTimeMS;
+    protected int queryMaxConcurrent;
+    protected long queryAcquireTimeoutMS;
+    protected int asyncThreads;
+    protected boolean asyncVirtualThreads;
+    protected int versionMergeRetries;
+
+    public MongoStorageConfig() {
+        payloadBackend = MongoDigitalObject.PayloadBackend.MONGO;
+        tieringColdAfterDays = 90;
+        tieringIntervalMinutes = 60;
+        tieringBatchSize = 100;
+        tieringAccessFlushSeconds = 60;
+        compression = new MongoPayloadCompression();
+        recordMetadataMode = MongoMetadataDocuments.Mode.VIEW;
+        denormalizedFields = DEFAULT_DENORMALIZED_FIELDS;
+        queryCacheTtlSeconds = 60;
+        queryCacheMaxBytes = 32L * 1024 * 1024;
+        countCacheTtlSeconds = 300;
+        countCap = 10000;
+        textIndexFields = new ArrayList<String>();
+        textIndexLanguage = "english";
+        asyncThreads = 8;
+        asyncVirtualThreads = false;
+    }
+
+    public MongoStorageConfig(JsonSimple config) throws StorageException {
+        String payloadBackendName = config.getString("MONGO", "storage",
+                "mongo", "payload_backend");
+        payloadBackend = MongoDigitalObject.PayloadBackend
+                .valueOf(payloadBackendName);
+        String root = config.getString(null, "storage", "mongo",
+                "filesystem", "root");
+        if (root != null) {
+            filesystemRoot = new File(root);
+        }
+        setInlineThreshold(config
+                .getInteger(0, "storage", "mongo", "inline", "threshold")
+                .intValue());
+        if (payloadBackend == MongoDigitalObject.PayloadBackend.FILESYSTEM
+                && filesystemRoot == null) {
+            throw new StorageException(
+                    "The FILESYSTEM payload backend requires 'storage.mongo.filesystem.root'");
+        }
+        tieringEnabled = config.getBoolean(false, "storage", "mongo",
+                "tiering", "enabled");
+        String archive = config.getString(null, "storage", "mongo",
+                "tiering", "archiveRoot");
+        if (archive != null) {
+            archiveRoot = new File(archive);
+        }
+        tieringColdAfterDays = config
+                .getInteger(90, "storage", "mongo", "tiering", "coldAfterDays")
+                .intValue();
+        tieringIntervalMinutes = config.getInteger(60, "storage", "mongo",
+                "tiering", "intervalMinutes").intValue();
+        tieringBatchSize = config
+                .getInteger(100, "storage", "mongo", "tiering", "batchSize")
+                .intValue();
+        tieringAccessFlushSeconds = config.getInteger(60, "storage", "mongo",
+                "tiering", "accessFlushSeconds").intValue();
+        if (tieringEnabled && archiveRoot == null) {
+            throw new StorageException(
+                    "Payload tiering requires 'storage.mongo.tiering.archiveRoot'");
+        }
+        compression = new MongoPayloadCompression(config);
+        recordMetadataMode = MongoMetadataDocuments.Mode
+                .valueOf(config.getString("VIEW", "storage", "mongo",
+                        "recordMetadataMode").toUpperCase());
+        List<String> fields = config.getStringList("storage", "mongo",
+                "denormalizedFields");
+        denormalizedFields = fields == null || fields.isEmpty()
+                ? DEFAULT_DENORMALIZED_FIELDS
+                : new ArrayList<String>(fields);
+        queryCacheEnabled = config.getBoolean(false, "storage", "mongo",
+                "queryCache", "enabled");
+        queryCacheTtlSeconds = config.getInteger(60, "storage", "mongo",
+                "queryCache", "ttlSeconds").intValue();
+        queryCacheMaxBytes = config.getInteger(32, "storage", "mongo",
+                "queryCache", "maxMegabytes").longValue() * 1024 * 1024;
+        countCacheTtlSeconds = config.getInteger(300, "storage", "mongo",
+                "count", "cacheTtlSeconds").intValue();
+        countCap = config.getInteger(10000, "storage", "mongo", "count",
+                "cap").intValue();
+        List<String> textFields = config.getStringList("storage", "mongo",
+                "textIndex", "fields");
+        textIndexFields = textFields == null ? new ArrayList<String>()
+                : new ArrayList<String>(textFields);
+        textIndexLanguage = config.getString("english", "storage", "mongo",
+                "textIndex", "language");
+        queryMaxTimeMS = config
+                .getInteger(0, "storage", "mongo", "query", "maxTimeMS")
+                .longValue();
+        queryMaxConcurrent = config.getInteger(0, "storage", "mongo", "query",
+                "maxConcurrent").intValue();
+        queryAcquireTimeoutMS = config.getInteger(0, "storage", "mongo",
+                "query", "acquireTimeoutMS").longValue();
+        asyncThreads = config
+                .getInteger(8, "storage", "mongo", "async", "threads")
+                .intValue();
+        asyncVirtualThreads = config.getBoolean(false, "storage", "mongo",
+                "async", "virtualThreads");
+        versionMergeRetries = config.getInteger(0, "storage", "mongo",
+                "version", "mergeRetries").intValue();
+    }
+
+    public MongoDigitalObject.PayloadBackend getPayloadBackend() {
+        return payloadBackend;
+    }
+
+    public void setPayloadBackend(
+            MongoDigitalObject.PayloadBackend payloadBackend) {
+        this.payloadBackend = payloadBackend;
+    }
+
+    public File getFilesystemRoot() {
+        return filesystemRoot;
+    }
+
+    public void setFilesystemRoot(File filesystemRoot) {
+        this.filesystemRoot = filesystemRoot;
+    }
+
+    /**
+     * @return the largest payload, in bytes, stored inline in the record; 0
+     *         disables inlining
+     */
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    /**
+     * @param inlineThreshold - capped at {@link #MAX_INLINE_THRESHOLD}
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        if (inlineThreshold > MAX_INLINE_THRESHOLD) {
+            log.warn("Inline threshold " + inlineThreshold
+                    + " is too large, using " + MAX_INLINE_THRESHOLD);
+            inlineThreshold = MAX_INLINE_THRESHOLD;
+        }
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * @return true if payload reads are tracked and cold payloads are demoted
+     *         to the archive
+     */
+    public boolean isTieringEnabled() {
+        return tieringEnabled;
+    }
+
+    public void setTieringEnabled(boolean tieringEnabled) {
+        this.tieringEnabled = tieringEnabled;
+    }
+
+    public File getArchiveRoot() {
+        return archiveRoot;
+    }
+
+    public void setArchiveRoot(File archiveRoot) {
+        this.archiveRoot = archiveRoot;
+    }
+
+    /**
+     * @return how long a payload can go unread before it's demoted
+     */
+    public int getTieringColdAfterDays() {
+        return tieringColdAfterDays;
+    }
+
+    public void setTieringColdAfterDays(int tieringColdAfterDays) {
+        this.tieringColdAfterDays = tieringColdAfterDays;
+    }
+
+    public int getTieringIntervalMinutes() {
+        return tieringIntervalMinutes;
+    }
+
+    public void setTieringIntervalMinutes(int tieringIntervalMinutes) {
+        this.tieringIntervalMinutes = tieringIntervalMinutes;
+    }
+
+    /**
+     * @return the most records examined in a single tiering run
+     */
+    public int getTieringBatchSize() {
+        return tieringBatchSize;
+    }
+
+    public void setTieringBatchSize(int tieringBatchSize) {
+        this.tieringBatchSize = tieringBatchSize;
+    }
+
+    /**
+     * @return the delay between writes of the buffered payload reads
+     */
+    public int getTieringAccessFlushSeconds() {
+        return tieringAccessFlushSeconds;
+    }
+
+    public void setTieringAccessFlushSeconds(int tieringAccessFlushSeconds) {
+        this.tieringAccessFlushSeconds = tieringAccessFlushSeconds;
+    }
+
+    public MongoPayloadCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(MongoPayloadCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return whether 'metadataDocuments' is a view or a materialized
+     *         collection
+     */
+    public MongoMetadataDocuments.Mode getRecordMetadataMode() {
+        return recordMetadataMode;
+    }
+
+    public void setRecordMetadataMode(
+            MongoMetadataDocuments.Mode recordMetadataMode) {
+        this.recordMetadataMode = recordMetadataMode;
+    }
+
+    /**
+     * @return the object metadata fields copied into each record
+     */
+    public List<String> getDenormalizedFields() {
+        return denormalizedFields;
+    }
+
+    public void setDenormalizedFields(List<String> denormalizedFields) {
+        this.denormalizedFields = denormalizedFields;
+    }
+
+    /**
+     * @return true if pagedQuery results are cached
+     */
+    public boolean isQueryCacheEnabled() {
+        return queryCacheEnabled;
+    }
+
+    public void setQueryCacheEnabled(boolean queryCacheEnabled) {
+        this.queryCacheEnabled = queryCacheEnabled;
+    }
+
+    public int getQueryCacheTtlSeconds() {
+        return queryCacheTtlSeconds;
+    }
+
+    public void setQueryCacheTtlSeconds(int queryCacheTtlSeconds) {
+        this.queryCacheTtlSeconds = queryCacheTtlSeconds;
+    }
+
+    /**
+     * @return approximate memory budget of the query cache
+     */
+    public long getQueryCacheMaxBytes() {
+        return queryCacheMaxBytes;
+    }
+
+    public void setQueryCacheMaxBytes(long queryCacheMaxBytes) {
+        this.queryCacheMaxBytes = queryCacheMaxBytes;
+    }
+
+    /**
+     * @return how long a CACHED count is reused
+     */
+    public int getCountCacheTtlSeconds() {
+        return countCacheTtlSeconds;
+    }
+
+    public void setCountCacheTtlSeconds(int countCacheTtlSeconds) {
+        this.countCacheTtlSeconds = countCacheTtlSeconds;
+    }
+
+    /**
+     * @return the most matches a CAPPED count counts
+     */
+    public int getCountCap() {
+        return countCap;
+    }
+
+    public void setCountCap(int countCap) {
+        this.countCap = countCap;
+    }
+
+    /**
+     * @return tfpackage fields covered by the text index, none for no index
+     */
+    public List<String> getTextIndexFields() {
+        return textIndexFields;
+    }
+
+    public void setTextIndexFields(List<String> textIndexFields) {
+        this.textIndexFields = textIndexFields;
+    }
+
+    public String getTextIndexLanguage() {
+        return textIndexLanguage;
+    }
+
+    public void setTextIndexLanguage(String textIndexLanguage) {
+        this.textIndexLanguage = textIndexLanguage;
+    }
+
+    /**
+     * @return time limit of queries that don't set their own, 0 for none
+     */
+    public long getQueryMaxTimeMS() {
+        return queryMaxTimeMS;
+    }
+
+    public void setQueryMaxTimeMS(long queryMaxTimeMS) {
+        this.queryMaxTimeMS = queryMaxTimeMS;
+    }
+
+    /**
+     * @return most paged, facet and search queries running at once, 0 for
+     *         no limit
+     */
+    public int getQueryMaxConcurrent() {
+        return queryMaxConcurrent;
+    }
+
+    public void setQueryMaxConcurrent(int queryMaxConcurrent) {
+        this.queryMaxConcurrent = queryMaxConcurrent;
+    }
+
+    /**
+     * @return how long a query waits for a free slot before it's rejected
+     */
+    public long getQueryAcquireTimeoutMS() {
+        return queryAcquireTimeoutMS;
+    }
+
+    public void setQueryAcquireTimeoutMS(long queryAcquireTimeoutMS) {
+        this.queryAcquireTimeoutMS = queryAcquireTimeoutMS;
+    }
+
+    /**
+     * @return threads running the asynchronous operations, when they don't
+     *         run on virtual threads
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public void setAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    /**
+     * @return true to run the asynchronous operations on virtual threads,
+     *         where the JDK has them; 'asyncThreads' then no longer bounds
+     *         them
+     */
+    public boolean isAsyncVirtualThreads() {
+        return asyncVirtualThreads;
+    }
+
+    public void setAsyncVirtualThreads(boolean asyncVirtualThreads) {
+        this.asyncVirtualThreads = asyncVirtualThreads;
+    }
+
+    /**
+     * @return how many times a save conflicting with another is merged and
+     *         retried before failing, 0 to fail straight away
+     */
+    public int getVersionMergeRetries() {
+        return versionMergeRetries;
+    }
+
+    public void setVersionMergeRetries(int versionMergeRetries) {
+        this.versionMergeRetries = versionMergeRetries;
+    }
+
+}
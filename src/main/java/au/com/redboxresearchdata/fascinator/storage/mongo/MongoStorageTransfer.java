@@ -0,0 +1,399 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.JsonDigitalObject;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Streams whole objects, including payload data, to and from a gzipped
+ * NDJSON stream. Each object is an 'object' line holding its object metadata
+ * and record documents, followed for each externally stored payload by a
+ * 'payload' line, its data as base64 'chunk' lines and an 'end' line.
+ *
+ * Export loads objects with {@link MongoParallelScan} and streams payload
+ * data chunk by chunk, so memory use is bounded by the scan queue and the
+ * chunk size. Import upserts documents with batched bulk writes, writes
+ * payload data as it's read, and records its progress in a checkpoint file
+ * so an interrupted import can be resumed.
+ */
+public class MongoStorageTransfer {
+
+    private static Logger log = LoggerFactory
+            .getLogger(MongoStorageTransfer.class);
+
+    static int CHUNK_SIZE = 255 * 1024;
+    static int BATCH_SIZE = 500;
+    static int QUEUE_SIZE = 64;
+
+    static List<String> EXTERNAL_BACKENDS = Arrays.asList(
+            MongoPayloadBackendGridFs.TYPE, MongoPayloadBackendFileSystem.TYPE,
+            MongoPayloadBackendArchive.TYPE);
+
+    protected MongoStorage storage;
+    protected MongoDatabase mongoDb;
+    protected String objectMetadataCollectionName;
+    protected MongoStorageConfig config;
+
+    public MongoStorageTransfer(MongoStorage storage, MongoDatabase mongoDb,
+            String objectMetadataCollectionName, MongoStorageConfig config) {
+        this.storage = storage;
+        this.mongoDb = mongoDb;
+        this.objectMetadataCollectionName = objectMetadataCollectionName;
+        this.config = config;
+    }
+
+    /**
+     * @param out - receives the gzipped NDJSON, left open
+     * @param partitions - number of concurrent loaders
+     * @return number of objects exported
+     * @throws StorageException
+     */
+    public long exportTo(OutputStream out, int partitions)
+            throws StorageException {
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            final Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(gzip, StandardCharsets.UTF_8));
+            long count = storage.parallelScan(partitions, QUEUE_SIZE,
+                    new MongoObjectConsumer() {
+                        @Override
+                        public void accept(JsonDigitalObject obj)
+                                throws Exception {
+                            writeObject((MongoDigitalObject) obj, writer);
+                        }
+                    });
+            writer.flush();
+            gzip.finish();
+            log.info("Exported " + count + " object(s).");
+            return count;
+        } catch (IOException e) {
+            throw new StorageException("Export failed", e);
+        }
+    }
+
+    private void writeObject(MongoDigitalObject obj, Writer writer)
+            throws IOException, StorageException {
+        Document objectMetadata = obj
+                .getEscapedDoc(new Document(obj.getObjectMetadata()));
+        Document record = obj
+                .getEscapedDoc(new Document(obj.getRecordMetadata()));
+        // ids are local to the database, objects are matched on OID
+        objectMetadata.remove("_id");
+        record.remove("_id");
+        writeLine(writer, new Document("type", "object")
+                .append("oid", obj.getId())
+                .append("collectionName", obj.collectionName)
+                .append("objectMetadata", objectMetadata)
+                .append("record", record));
+        List<Map<String, Object>> files = obj.getFileList();
+        if (files == null) {
+            return;
+        }
+        for (Map<String, Object> fileInfo : files) {
+            String backendType = (String) fileInfo.get("backend_type");
+            if (!EXTERNAL_BACKENDS.contains(backendType)) {
+                // embedded payloads travel with the record
+                continue;
+            }
+            String pid = (String) fileInfo.get("pid");
+            writeLine(writer, new Document("type", "payload")
+                    .append("oid", obj.getId()).append("pid", pid)
+                    .append("backend_type", backendType)
+                    .append("payloadId", fileInfo.get("payloadId")));
+            MongoPayload payload = (MongoPayload) obj.getPayload(pid);
+            InputStream in = payload.openStored();
+            try {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = IOUtils.read(in, buffer)) > 0) {
+                    writer.write("{\"type\":\"chunk\",\"data\":\"");
+                    writer.write(Base64.getEncoder().encodeToString(
+                            read == buffer.length ? buffer
+                                    : Arrays.copyOf(buffer, read)));
+                    writer.write("\"}\n");
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            writeLine(writer, new Document("type", "end"));
+        }
+    }
+
+    private void writeLine(Writer writer, Document line) throws IOException {
+        writer.write(line.toJson());
+        writer.write('\n');
+    }
+
+    /**
+     * @param in - the gzipped NDJSON of a previous export
+     * @param checkpoint - file recording progress, an import given an
+     *            existing checkpoint skips what it already imported. May be
+     *            null.
+     * @return number of objects imported
+     * @throws StorageException if the stream can't be read or has a
+     *             malformed line, naming the line and the checkpoint to
+     *             resume from
+     */
+    public long importFrom(InputStream in, File checkpoint)
+            throws StorageException {
+        long resumeAfter = readCheckpoint(checkpoint);
+        Map<String, List<WriteModel<Document>>> batches = new HashMap<String, List<WriteModel<Document>>>();
+        int pending = 0;
+        long imported = 0;
+        long lineNo = 0;
+        long checkpointed = resumeAfter;
+        OutputStream payloadOut = null;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(in), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (lineNo <= resumeAfter || line.isEmpty()) {
+                    continue;
+                }
+                Document doc = Document.parse(line);
+                String type = getRequired(doc, "type");
+                if ("object".equals(type)) {
+                    checkOutsidePayload(payloadOut, type);
+                    // the previous object is complete, a safe point to flush
+                    if (pending >= BATCH_SIZE) {
+                        flush(batches);
+                        pending = 0;
+                        writeCheckpoint(checkpoint, lineNo - 1);
+                        checkpointed = lineNo - 1;
+                    }
+                    addObject(doc, batches);
+                    pending++;
+                    imported++;
+                } else if ("payload".equals(type)) {
+                    checkOutsidePayload(payloadOut, type);
+                    payloadOut = openPayload(doc);
+                } else if ("chunk".equals(type)) {
+                    checkInsidePayload(payloadOut, type);
+                    payloadOut.write(Base64.getDecoder()
+                            .decode(getRequired(doc, "data")));
+                } else if ("end".equals(type)) {
+                    checkInsidePayload(payloadOut, type);
+                    payloadOut.close();
+                    payloadOut = null;
+                } else {
+                    throw new IllegalArgumentException(
+                            "unknown line type '" + type + "'");
+                }
+            }
+            if (payloadOut != null) {
+                throw new IllegalArgumentException(
+                        "the stream ends inside payload data");
+            }
+            flush(batches);
+            writeCheckpoint(checkpoint, lineNo);
+        } catch (IOException e) {
+            throw importFailure(lineNo, checkpoint, checkpointed, e);
+        } catch (RuntimeException e) {
+            // malformed JSON, missing fields and rejected writes
+            throw importFailure(lineNo, checkpoint, checkpointed, e);
+        } finally {
+            IOUtils.closeQuietly(payloadOut);
+        }
+        if (config.getRecordMetadataMode() == MongoMetadataDocuments.Mode.MATERIALIZED) {
+            storage.rebuildMetadataDocuments();
+        }
+        log.info("Imported " + imported + " object(s).");
+        return imported;
+    }
+
+    private StorageException importFailure(long lineNo, File checkpoint,
+            long checkpointed, Exception cause) {
+        String message = "Import failed at line " + lineNo + ": "
+                + cause.getMessage();
+        if (checkpoint != null) {
+            message += " (" + checkpoint + " resumes after line "
+                    + checkpointed + ")";
+        }
+        return new StorageException(message, cause);
+    }
+
+    private String getRequired(Document doc, String field) {
+        Object value = doc.get(field);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new IllegalArgumentException(
+                    "missing '" + field + "' string");
+        }
+        return (String) value;
+    }
+
+    private Document getRequiredDocument(Document doc, String field) {
+        Object value = doc.get(field);
+        if (!(value instanceof Document)) {
+            throw new IllegalArgumentException(
+                    "missing '" + field + "' document");
+        }
+        return (Document) value;
+    }
+
+    private void checkInsidePayload(OutputStream payloadOut, String type) {
+        if (payloadOut == null) {
+            throw new IllegalArgumentException(
+                    "'" + type + "' line without a 'payload' line");
+        }
+    }
+
+    private void checkOutsidePayload(OutputStream payloadOut, String type) {
+        if (payloadOut != null) {
+            throw new IllegalArgumentException("'" + type
+                    + "' line before the previous payload's 'end' line");
+        }
+    }
+
+    private void addObject(Document doc,
+            Map<String, List<WriteModel<Document>>> batches) {
+        String oid = getRequired(doc, "oid");
+        String collectionName = getRequired(doc, "collectionName");
+        Document objectMetadata = getRequiredDocument(doc, "objectMetadata");
+        Document record = getRequiredDocument(doc, "record");
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        getBatch(batches, objectMetadataCollectionName)
+                .add(new ReplaceOneModel<Document>(eq("redboxOid", oid),
+                        objectMetadata, upsert));
+        getBatch(batches, collectionName)
+                .add(new ReplaceOneModel<Document>(eq("redboxOid", oid),
+                        record, upsert));
+    }
+
+    private List<WriteModel<Document>> getBatch(
+            Map<String, List<WriteModel<Document>>> batches,
+            String collectionName) {
+        List<WriteModel<Document>> batch = batches.get(collectionName);
+        if (batch == null) {
+            batch = new ArrayList<WriteModel<Document>>();
+            batches.put(collectionName, batch);
+        }
+        return batch;
+    }
+
+    private void flush(Map<String, List<WriteModel<Document>>> batches) {
+        for (Map.Entry<String, List<WriteModel<Document>>> entry : batches
+                .entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                mongoDb.getCollection(entry.getKey())
+                        .bulkWrite(entry.getValue());
+                entry.getValue().clear();
+            }
+        }
+    }
+
+    /**
+     * Opens the destination of a payload's data, replacing any copy left by
+     * an earlier, interrupted import.
+     */
+    private OutputStream openPayload(Document doc) throws IOException {
+        String backendType = getRequired(doc, "backend_type");
+        String payloadId = getRequired(doc, "payloadId");
+        String oid = getRequired(doc, "oid");
+        getRequired(doc, "pid");
+        if (!EXTERNAL_BACKENDS.contains(backendType)) {
+            throw new IllegalArgumentException(
+                    "unknown payload backend '" + backendType + "'");
+        }
+        if (MongoPayloadBackendGridFs.TYPE.equals(backendType)) {
+            GridFSBucket bucket = GridFSBuckets.create(mongoDb);
+            BsonObjectId id = new BsonObjectId(new ObjectId(payloadId));
+            try {
+                bucket.delete(id);
+            } catch (MongoGridFSException e) {
+                // not there yet
+            }
+            return bucket.openUploadStream(id,
+                    oid + "/" + doc.getString("pid"));
+        }
+        File root = MongoPayloadBackendArchive.TYPE.equals(backendType)
+                ? config.getArchiveRoot()
+                : config.getFilesystemRoot();
+        if (root == null) {
+            throw new IOException("No root directory configured for "
+                    + backendType + " payloads");
+        }
+        // the ID comes from the stream, so it mustn't lead out of the root
+        Path target = MongoPayloadBackendFileSystem.resolve(root, oid,
+                payloadId);
+        Files.createDirectories(target.getParent());
+        return Files.newOutputStream(target);
+    }
+
+    private long readCheckpoint(File checkpoint) throws StorageException {
+        if (checkpoint == null || !checkpoint.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(
+                    Files.readAllBytes(checkpoint.toPath()),
+                    StandardCharsets.UTF_8).trim());
+        } catch (Exception e) {
+            throw new StorageException(
+                    "Unreadable import checkpoint: " + checkpoint, e);
+        }
+    }
+
+    private void writeCheckpoint(File checkpoint, long lineNo)
+            throws IOException {
+        if (checkpoint != null) {
+            Files.write(checkpoint.toPath(), String.valueOf(lineNo)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+}
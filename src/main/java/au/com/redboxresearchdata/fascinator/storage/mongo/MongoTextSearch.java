@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Projections.elemMatch;
+import static com.mongodb.client.model.Updates.set;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Keyword search over the tfpackages of a record collection, served by a
+ * MongoDB text index on selected tfpackage fields.
+ *
+ * A text index on the file list would cover the same fields of every
+ * payload, so the records carry a copy of the tfpackage's indexed fields in
+ * {@link MongoDigitalObject#TEXT_FIELD} and the index is on that copy.
+ *
+ * A collection has at most one text index, so a change to the configured
+ * fields replaces it. Views can't use text indexes, so searches run on the
+ * records and reshape the hits into metadata documents afterwards.
+ */
+public class MongoTextSearch {
+
+    private static Logger log = LoggerFactory.getLogger(MongoTextSearch.class);
+
+    static String INDEX_NAME = "tfpackageTextIndex";
+    /**
+     * A field no tfpackage has, so a tfpackage's own 'language' field isn't
+     * taken as the language of the index entry
+     */
+    static String LANGUAGE_OVERRIDE = "textIndexLanguage";
+    static String SCORE_FIELD = "score";
+    /** Error codes of an existing index with other options or keys */
+    static List<Integer> INDEX_CONFLICT_CODES = Arrays.asList(85, 86);
+    static int BACKFILL_BATCH_SIZE = 500;
+
+    protected MongoDatabase mongoDb;
+    protected List<String> fields;
+    protected String language;
+
+    /**
+     * @param fields - tfpackage field paths to index
+     * @param language - default language of the index, 'none' disables
+     *            stemming and stop words
+     */
+    public MongoTextSearch(MongoDatabase mongoDb, List<String> fields,
+            String language) {
+        this.mongoDb = mongoDb;
+        this.fields = fields;
+        this.language = language;
+    }
+
+    /**
+     * Creates the text index on the collection, replacing a text index over
+     * other fields, and copies the indexed fields into the records saved
+     * without them, or into every record when the fields changed.
+     */
+    public void createIndex(String collectionName) {
+        MongoCollection<Document> collection = mongoDb
+                .getCollection(collectionName);
+        List<Bson> keys = new ArrayList<Bson>();
+        for (String field : fields) {
+            keys.add(Indexes.text(MongoDigitalObject.TEXT_FIELD + "." + field));
+        }
+        Bson index = Indexes.compoundIndex(keys);
+        IndexOptions options = new IndexOptions().name(INDEX_NAME)
+                .background(true).defaultLanguage(language)
+                .languageOverride(LANGUAGE_OVERRIDE);
+        boolean replaced = false;
+        try {
+            collection.createIndex(index, options);
+        } catch (MongoCommandException e) {
+            if (!INDEX_CONFLICT_CODES.contains(e.getErrorCode())) {
+                throw e;
+            }
+            log.info("Replacing the text index of '" + collectionName
+                    + "' to cover: " + fields);
+            dropTextIndexes(collection);
+            collection.createIndex(index, options);
+            replaced = true;
+        }
+        backfill(collection, !replaced);
+    }
+
+    /**
+     * @param missingOnly - only update records without the copy
+     */
+    private void backfill(MongoCollection<Document> collection,
+            boolean missingOnly) {
+        Bson filter = eq("files.pid", MongoMetadataDocuments.TFPACKAGE_PID);
+        if (missingOnly) {
+            filter = and(filter,
+                    exists(MongoDigitalObject.TEXT_FIELD, false));
+        }
+        MongoCursor<Document> cursor = collection.find(filter)
+                .projection(elemMatch("files",
+                        eq("pid", MongoMetadataDocuments.TFPACKAGE_PID)))
+                .iterator();
+        List<WriteModel<Document>> batch = new ArrayList<WriteModel<Document>>();
+        long updated = 0;
+        try {
+            while (cursor.hasNext()) {
+                Document record = cursor.next();
+                @SuppressWarnings("unchecked")
+                List<Map<String, Object>> files = (List<Map<String, Object>>) record
+                        .get("files");
+                batch.add(new UpdateOneModel<Document>(
+                        eq("_id", record.get("_id")),
+                        set(MongoDigitalObject.TEXT_FIELD,
+                                getText(files.get(0), fields))));
+                if (batch.size() >= BACKFILL_BATCH_SIZE) {
+                    updated += collection.bulkWrite(batch).getModifiedCount();
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                updated += collection.bulkWrite(batch).getModifiedCount();
+            }
+        } finally {
+            cursor.close();
+        }
+        if (updated > 0) {
+            log.info("Copied the text indexed tfpackage fields into "
+                    + updated + " record(s).");
+        }
+    }
+
+    /**
+     * @param tfpackage - the tfpackage's entry in a file list, may be null
+     * @param fields - the indexed field paths
+     * @return the top level tfpackage fields holding the indexed ones, or
+     *         null if there's no tfpackage
+     */
+    @SuppressWarnings("unchecked")
+    static Document getText(Map<String, Object> tfpackage,
+            List<String> fields) {
+        if (tfpackage == null) {
+            return null;
+        }
+        Document text = new Document();
+        Map<String, Object> source = (Map<String, Object>) tfpackage
+                .get(MongoPayloadBackendCollection.SOURCE_FIELD);
+        Map<String, Object> payload = source == null ? null
+                : (Map<String, Object>) source
+                        .get(MongoPayloadBackendCollection.PAYLOAD_FIELD);
+        if (payload != null) {
+            for (String field : fields) {
+                String key = field.split("\\.", 2)[0];
+                if (payload.containsKey(key)) {
+                    text.put(key, payload.get(key));
+                }
+            }
+        }
+        return text;
+    }
+
+    private void dropTextIndexes(MongoCollection<Document> collection) {
+        for (Document info : collection.listIndexes()) {
+            Document key = (Document) info.get("key");
+            if (key != null && key.containsKey("_fts")) {
+                collection.dropIndex(info.getString("name"));
+            }
+        }
+    }
+
+    /**
+     * @param terms - the search, in $text syntax: words, "phrases" and
+     *            -negations
+     * @return the $match selecting the records with tfpackages matching the
+     *         terms
+     */
+    public BsonDocument getFilter(String terms) {
+        return new BsonDocument("$text",
+                new BsonDocument("$search", new BsonString(terms)))
+                        .append("files.pid", new BsonString(
+                                MongoMetadataDocuments.TFPACKAGE_PID));
+    }
+
+    /**
+     * @param terms - the search
+     * @param startIndex - first hit of the page
+     * @param rows - size of the page
+     * @param resultFields - tfpackage fields returned, null or empty for the
+     *            whole tfpackage
+     * @return the pipeline returning the page of hits, best first, each the
+     *         tfpackage with its 'redboxOid' and relevance 'score'
+     */
+    public List<BsonDocument> getPipeline(String terms, int startIndex,
+            int rows, List<String> resultFields) {
+        List<BsonDocument> pipeline = new ArrayList<BsonDocument>();
+        pipeline.add(new BsonDocument("$match", getFilter(terms)));
+        pipeline.add(new BsonDocument("$sort", new BsonDocument(SCORE_FIELD,
+                new BsonDocument("$meta", new BsonString("textScore")))));
+        if (startIndex > 0) {
+            pipeline.add(new BsonDocument("$skip", new BsonInt32(startIndex)));
+        }
+        pipeline.add(new BsonDocument("$limit", new BsonInt32(rows)));
+        // only the page's records are reshaped
+        pipeline.add(BsonDocument.parse("{ $project: { 'redboxOid': 1, '"
+                + SCORE_FIELD + "': { $meta: 'textScore' }, "
+                + "'tfpackage': { $filter: { input: '$files', as: 'file', "
+                + "cond: { $eq: ['$$file.pid', '"
+                + MongoMetadataDocuments.TFPACKAGE_PID + "'] }}}}}"));
+        pipeline.add(BsonDocument.parse("{ $unwind: '$tfpackage' }"));
+        String payload = "tfpackage."
+                + MongoPayloadBackendCollection.SOURCE_FIELD + "."
+                + MongoPayloadBackendCollection.PAYLOAD_FIELD;
+        if (resultFields == null || resultFields.isEmpty()) {
+            pipeline.add(new BsonDocument("$addFields",
+                    new BsonDocument(payload + ".redboxOid",
+                            new BsonString("$redboxOid")).append(
+                                    payload + "." + SCORE_FIELD,
+                                    new BsonString("$" + SCORE_FIELD))));
+            pipeline.add(new BsonDocument("$replaceRoot", new BsonDocument(
+                    "newRoot", new BsonString("$" + payload))));
+        } else {
+            BsonDocument project = new BsonDocument("_id", new BsonInt32(0))
+                    .append("redboxOid", new BsonInt32(1))
+                    .append(SCORE_FIELD, new BsonInt32(1));
+            for (String field : resultFields) {
+                project.put(field, new BsonString("$" + payload + "." + field));
+            }
+            pipeline.add(new BsonDocument("$project", project));
+        }
+        return pipeline;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (C) 2018 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ ******************************************************************************/
+package au.com.redboxresearchdata.fascinator.storage.mongo;
+
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Thrown when an object is saved after another save of it, possibly on
+ * another node, since it was loaded, and the changes couldn't be merged.
+ * The caller should load the object again and redo its changes.
+ */
+public class MongoVersionConflictException extends StorageException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String oid;
+    private final Long expectedVersion;
+    private final Long actualVersion;
+
+    /**
+     * @param expectedVersion - the version loaded, null if it had none
+     * @param actualVersion - the version stored, null if the object is gone
+     */
+    public MongoVersionConflictException(String oid, Long expectedVersion,
+            Long actualVersion) {
+        super("Object with OID: " + oid + " was changed by another save"
+                + " (loaded version " + expectedVersion + ", now "
+                + (actualVersion == null ? "removed" : actualVersion) + ")");
+        this.oid = oid;
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    public String getOid() {
+        return oid;
+    }
+
+    public Long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public Long getActualVersion() {
+        return actualVersion;
+    }
+
+}
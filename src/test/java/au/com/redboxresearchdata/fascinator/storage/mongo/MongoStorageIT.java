@@ -18,27 +18,57 @@
  */
 package au.com.redboxresearchdata.fascinator.storage.mongo;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.mail.event.FolderAdapter;
 
 import org.apache.commons.io.IOUtils;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.joda.time.format.ISODateTimeFormat;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.JsonDigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.PayloadType;
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.JsonSimple;
+import com.mongodb.MongoClient;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
 
 import junit.framework.Assert;
 import com.google.gson.Gson;
@@ -515,6 +545,220 @@ public class MongoStorageIT {
         sizeTest(0);
     }
 
+    /**
+     * Test direct transfer of payload data to streams and channels
+     *
+     * @throws Exception
+     */
+    @Test
+    public void payloadTransfer() throws Exception {
+        System.out.println("\n==========\n TEST => payloadTransfer()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        Payload source = object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        Payload image = object.createStoredPayload("testPayload4.png",
+                in("testPayload4.png"));
+
+        // 1) Embedded source payload
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((MongoPayload) source).transferTo(out);
+        Assert.assertEquals(testFieldStr1, out.toString("UTF-8"));
+
+        // 2) GridFS payload, via stream and channel
+        byte[] expected = IOUtils.toByteArray(image.open());
+        out = new ByteArrayOutputStream();
+        long written = ((MongoPayload) image).transferTo(out);
+        Assert.assertEquals(expected.length, written);
+        Assert.assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        out = new ByteArrayOutputStream();
+        ((MongoPayload) image).transferTo(Channels.newChannel(out));
+        Assert.assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test the FILESYSTEM payload backend: payloads are written to sharded
+     * paths under the root, whatever their pid, read back directly and
+     * through a FileChannel, and deleted with their payload
+     *
+     * @throws Exception
+     */
+    @Test
+    public void filesystemPayloadTest() throws Exception {
+        System.out.println("\n==========\n TEST => filesystemPayloadTest()\n");
+        File root = Files.createTempDirectory("payloads").toFile();
+        restart("{\"payload_backend\": \"FILESYSTEM\", \"filesystem\": {\"root\": \""
+                + root.getAbsolutePath().replace("\\", "\\\\") + "\"}}");
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        byte[] expected = IOUtils.toByteArray(in("testPayload4.png"));
+        String[] pids = { "testPayload4.png", "images/testPayload4.png",
+                ".testPayload4.png", "../testPayload4.png" };
+        for (String pid : pids) {
+            object.createStoredPayload(pid, in("testPayload4.png"));
+        }
+
+        // 1) Sharded by a hash of the object ID, one file per pid
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        StringBuilder hash = new StringBuilder();
+        for (byte b : sha1.digest("testObject1".getBytes("UTF-8"))) {
+            hash.append(String.format("%02x", b));
+        }
+        String shard = hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/"
+                + hash + "/";
+        File objectDir = new File(root, shard);
+        Set<String> fileIds = new HashSet<String>();
+        object = (MongoDigitalObject) storage.getObject("testObject1");
+        for (String pid : pids) {
+            Map<String, Object> info = object.getPayloadMeta(pid);
+            Assert.assertEquals(MongoPayloadBackendFileSystem.TYPE,
+                    info.get("backend_type"));
+            String fileId = (String) info.get("payloadId");
+            Assert.assertTrue(fileId.startsWith(shard));
+            File file = new File(root, fileId);
+            // pids with separators or a leading '.' stay a single file name
+            Assert.assertEquals(objectDir.getCanonicalFile(),
+                    file.getCanonicalFile().getParentFile());
+            Assert.assertFalse(file.getName().startsWith("."));
+            Assert.assertTrue(Arrays.equals(expected,
+                    Files.readAllBytes(file.toPath())));
+            fileIds.add(fileId);
+        }
+        Assert.assertEquals(pids.length, fileIds.size());
+        Assert.assertEquals(pids.length, objectDir.list().length);
+
+        // 2) Read back, directly and through a FileChannel
+        for (String pid : pids) {
+            Payload payload = object.getPayload(pid);
+            Assert.assertTrue(Arrays.equals(expected,
+                    IOUtils.toByteArray(payload.open())));
+            File copy = File.createTempFile("payload", null);
+            FileChannel channel = FileChannel.open(copy.toPath(),
+                    StandardOpenOption.WRITE);
+            try {
+                Assert.assertEquals(expected.length,
+                        ((MongoPayload) payload).transferTo(channel));
+            } finally {
+                channel.close();
+            }
+            Assert.assertTrue(
+                    Arrays.equals(expected, Files.readAllBytes(copy.toPath())));
+            copy.delete();
+        }
+
+        // 3) Removal deletes the file
+        String removedId = (String) object.getPayloadMeta("../testPayload4.png")
+                .get("payloadId");
+        object.removePayload("../testPayload4.png");
+        Assert.assertFalse(new File(root, removedId).exists());
+        Assert.assertEquals(pids.length - 1, objectDir.list().length);
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that binary payloads up to the inline threshold are kept in the
+     * record, and larger ones in the payload backend
+     *
+     * @throws Exception
+     */
+    @Test
+    public void inlinePayloadTest() throws Exception {
+        System.out.println("\n==========\n TEST => inlinePayloadTest()\n");
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.getStorageConfig().setInlineThreshold(1024);
+        object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        object.createStoredPayload("testPayload3", in("testPayload3"));
+        object.createStoredPayload("testPayload4.png", in("testPayload4.png"));
+        Assert.assertEquals(MongoPayloadBackendInline.TYPE,
+                object.getPayloadMeta("testPayload3").get("backend_type"));
+        Assert.assertEquals(MongoPayloadBackendGridFs.TYPE,
+                object.getPayloadMeta("testPayload4.png").get("backend_type"));
+
+        // both read back intact after a reload
+        object = (MongoDigitalObject) storage.getObject("testObject1");
+        Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in("testPayload3")),
+                IOUtils.toByteArray(object.getPayload("testPayload3").open())));
+        Assert.assertTrue(Arrays.equals(
+                IOUtils.toByteArray(in("testPayload4.png")), IOUtils
+                        .toByteArray(object.getPayload("testPayload4.png").open())));
+
+        // once the record's inline budget is used, small payloads go to GridFS
+        long budget = MongoStorageConfig.MAX_INLINE_RECORD_BYTES;
+        MongoStorageConfig.MAX_INLINE_RECORD_BYTES = 6;
+        try {
+            object.createStoredPayload("testPayload3.copy", in("testPayload3"));
+            Assert.assertEquals(MongoPayloadBackendGridFs.TYPE, object
+                    .getPayloadMeta("testPayload3.copy").get("backend_type"));
+            // a payload's own inline bytes don't count against it
+            object.updatePayload("testPayload3", in("testPayload3"));
+            Assert.assertEquals(MongoPayloadBackendInline.TYPE,
+                    object.getPayloadMeta("testPayload3").get("backend_type"));
+        } finally {
+            MongoStorageConfig.MAX_INLINE_RECORD_BYTES = budget;
+        }
+
+        // thresholds beyond the cap are capped
+        object.getStorageConfig().setInlineThreshold(Integer.MAX_VALUE);
+        Assert.assertEquals(MongoStorageConfig.MAX_INLINE_THRESHOLD,
+                object.getStorageConfig().getInlineThreshold());
+
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that matching payloads are stored compressed and read back as
+     * written, and that codec settings reach the codec
+     *
+     * @throws Exception
+     */
+    @Test
+    public void compressionTest() throws Exception {
+        System.out.println("\n==========\n TEST => compressionTest()\n");
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.getStorageConfig().getCompression().setEnabled(true);
+        object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        Payload xml = object.createStoredPayload("testPayload2.xml",
+                in("testPayload2.xml"));
+        Payload image = object.createStoredPayload("testPayload4.png",
+                in("testPayload4.png"));
+        Assert.assertEquals(MongoPayloadCodecDeflate.NAME,
+                object.getPayloadMeta("testPayload2.xml").get("codec"));
+        Assert.assertNull(
+                object.getPayloadMeta("testPayload4.png").get("codec"));
+        sizeTest(xml, 67);
+
+        object = (MongoDigitalObject) storage.getObject("testObject1");
+        Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in("testPayload2.xml")),
+                IOUtils.toByteArray(object.getPayload("testPayload2.xml").open())));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((MongoPayload) object.getPayload("testPayload2.xml")).transferTo(out);
+        Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(in("testPayload2.xml")),
+                out.toByteArray()));
+
+        // settings of a configured codec are passed to it
+        MongoPayloadCompression compression = new MongoPayloadCompression(
+                new JsonSimple("{\"storage\": {\"mongo\": {\"compression\": {"
+                        + "\"enabled\": true, \"codecs\": {\"deflate\": {\"level\": 9}}}}}}"));
+        Assert.assertEquals(9, ((MongoPayloadCodecDeflate) compression
+                .getCodec(MongoPayloadCodecDeflate.NAME)).getLevel());
+
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
     /**
      * Test all Payload methods
      *
@@ -686,6 +930,607 @@ public class MongoStorageIT {
         storage.removeObject("testObject1");
     }
 
+    /**
+     * Saves of a stale copy of an object conflict, unless they changed other
+     * payloads and merging is enabled.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void versionTest() throws Exception {
+        System.out.println("\n==========\n TEST => versionTest()\n");
+        storage.createObject("testObject1");
+        DigitalObject first = storage.getObject("testObject1");
+        DigitalObject second = storage.getObject("testObject1");
+        first.getMetadata().setProperty("test", "first");
+        first.close();
+        second.getMetadata().setProperty("test", "second");
+        try {
+            second.close();
+            Assert.fail("Saving a stale copy should conflict");
+        } catch (MongoVersionConflictException e) {
+            Assert.assertEquals(Long.valueOf(1), e.getExpectedVersion());
+            Assert.assertEquals(Long.valueOf(2), e.getActualVersion());
+        }
+        Assert.assertFalse(((MongoDigitalObject) second).isCurrent());
+
+        // changes to different payloads merge
+        ((MongoDigitalObject) first).getStorageConfig()
+                .setVersionMergeRetries(1);
+        first = storage.getObject("testObject1");
+        second = storage.getObject("testObject1");
+        first.createStoredPayload("first.json", in("testPayload1.json"));
+        first.close();
+        second.createStoredPayload("second.json", in("testPayload1.json"));
+        second.close();
+        MongoDigitalObject merged = (MongoDigitalObject) storage
+                .getObject("testObject1");
+        sizeTest(merged, 2);
+        Assert.assertTrue(merged.isCurrent());
+        storage.removeObject("testObject1");
+    }
+
+    /**
+     * Merged saves keep the properties changed by either side, and conflict
+     * when both sides changed them.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void objectMetadataMergeTest() throws Exception {
+        System.out.println("\n==========\n TEST => objectMetadataMergeTest()\n");
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.getStorageConfig().setVersionMergeRetries(1);
+
+        // 1) A payload added on one side keeps a property changed on the other
+        DigitalObject first = storage.getObject("testObject1");
+        DigitalObject second = storage.getObject("testObject1");
+        second.getMetadata().setProperty("test", "second");
+        second.close();
+        first.createStoredPayload("first.json", in("testPayload1.json"));
+        first.close();
+        Assert.assertEquals("second",
+                first.getMetadata().getProperty("test"));
+        MongoDigitalObject merged = (MongoDigitalObject) storage
+                .getObject("testObject1");
+        Assert.assertEquals("second",
+                merged.getMetadata().getProperty("test"));
+        Assert.assertTrue(merged.getPayloadIdList().contains("first.json"));
+
+        // 2) ...in either order
+        first = storage.getObject("testObject1");
+        second = storage.getObject("testObject1");
+        first.createStoredPayload("second.json", in("testPayload1.json"));
+        first.close();
+        second.getMetadata().setProperty("test", "again");
+        second.close();
+        merged = (MongoDigitalObject) storage.getObject("testObject1");
+        Assert.assertEquals("again", merged.getMetadata().getProperty("test"));
+        sizeTest(merged, 2);
+
+        // 3) Both sides changing the properties conflict, even when only
+        // one side added a payload
+        first = storage.getObject("testObject1");
+        second = storage.getObject("testObject1");
+        first.getMetadata().setProperty("test", "first");
+        first.createStoredPayload("third.json", in("testPayload1.json"));
+        first.close();
+        second.getMetadata().setProperty("test2", "second");
+        try {
+            second.close();
+            Assert.fail("Changing properties on both sides should conflict");
+        } catch (MongoVersionConflictException e) {
+            // expected
+        }
+        merged = (MongoDigitalObject) storage.getObject("testObject1");
+        Assert.assertEquals("first", merged.getMetadata().getProperty("test"));
+        Assert.assertNull(merged.getMetadata().getProperty("test2"));
+
+        // Cleanup
+        object.getStorageConfig().setVersionMergeRetries(0);
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Writes to the payloads of a shared object from several threads, some to
+     * the same payload, alongside reads and property saves, all land, and
+     * no payload locks are left behind.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void lockingTest() throws Exception {
+        System.out.println("\n==========\n TEST => lockingTest()\n");
+        final MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        final byte[] expected = IOUtils.toByteArray(in("testPayload1.json"));
+        final int writers = 4;
+        final int writes = 5;
+        for (int i = 0; i < writers; i++) {
+            object.createStoredPayload("payload" + i + ".txt",
+                    new ByteArrayInputStream("0".getBytes("UTF-8")));
+        }
+
+        // 1) Two writers per payload, a reader and a saver, side by side
+        final List<Throwable> failures = Collections
+                .synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < writers * 2; i++) {
+            final String pid = "payload" + (i % writers) + ".txt";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 1; j <= writes; j++) {
+                            object.updatePayload(pid, new ByteArrayInputStream(
+                                    String.valueOf(j).getBytes("UTF-8")));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int j = 0; j < writes * 2; j++) {
+                        InputStream data = object
+                                .getPayload("testPayload1.json").open();
+                        try {
+                            Assert.assertTrue(Arrays.equals(expected,
+                                    IOUtils.toByteArray(data)));
+                        } finally {
+                            data.close();
+                        }
+                        Assert.assertEquals(writers + 1,
+                                object.getFileList().size());
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        }));
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int j = 1; j <= writes; j++) {
+                        object.getMetadata().setProperty("test",
+                                String.valueOf(j));
+                        object.close();
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+        Assert.assertEquals(0, object.getPayloadLockCount());
+
+        // 2) Every write was saved
+        MongoDigitalObject loaded = (MongoDigitalObject) storage
+                .getObject("testObject1");
+        Assert.assertEquals(object.getVersion(), loaded.getVersion());
+        Assert.assertEquals(String.valueOf(writes),
+                loaded.getMetadata().getProperty("test"));
+        sizeTest(loaded, writers + 1);
+        for (int i = 0; i < writers; i++) {
+            InputStream data = loaded.getPayload("payload" + i + ".txt")
+                    .open();
+            try {
+                Assert.assertEquals(String.valueOf(writes),
+                        IOUtils.toString(data, "UTF-8"));
+            } finally {
+                data.close();
+            }
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Moving a payload to the archive tier only updates its location, and a
+     * save of a copy loaded before the move keeps the new location.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void tieringTest() throws Exception {
+        System.out.println("\n==========\n TEST => tieringTest()\n");
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.getStorageConfig().setArchiveRoot(
+                Files.createTempDirectory("archive").toFile());
+        object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        object.createStoredPayload("testPayload4.png", in("testPayload4.png"));
+        MongoDigitalObject stale = (MongoDigitalObject) storage
+                .getObject("testObject1");
+        Long version = stale.getVersion();
+        Object modified = stale.getObjectMetadata()
+                .get("date_object_modified");
+
+        // 1) The move isn't a modification
+        MongoDigitalObject mover = (MongoDigitalObject) storage
+                .getObject("testObject1");
+        ((MongoPayload) mover.getPayload("testPayload4.png"))
+                .migrate(MongoPayloadBackendArchive.TYPE);
+        Assert.assertTrue(stale.isCurrent());
+        MongoDigitalObject moved = (MongoDigitalObject) storage
+                .getObject("testObject1");
+        Assert.assertEquals(version, moved.getVersion());
+        Assert.assertEquals(modified,
+                moved.getObjectMetadata().get("date_object_modified"));
+        Assert.assertEquals(MongoPayloadBackendArchive.TYPE,
+                moved.getPayloadMeta("testPayload4.png").get("backend_type"));
+
+        // 2) A stale copy's save doesn't point it back at the removed copy
+        stale.getMetadata().setProperty("test", "stale");
+        stale.close();
+        moved = (MongoDigitalObject) storage.getObject("testObject1");
+        Assert.assertEquals(MongoPayloadBackendArchive.TYPE,
+                moved.getPayloadMeta("testPayload4.png").get("backend_type"));
+        Assert.assertTrue(Arrays.equals(
+                IOUtils.toByteArray(in("testPayload4.png")), IOUtils.toByteArray(
+                        moved.getPayload("testPayload4.png").open())));
+
+        // 3) Reads through two copies of the payload restore it once, and are
+        // only counted in the record once flushed
+        object.getStorageConfig().setTieringEnabled(true);
+        try {
+            MongoDigitalObject reader = (MongoDigitalObject) storage
+                    .getObject("testObject1");
+            Payload first = reader.getPayload("testPayload4.png");
+            Payload second = reader.getPayload("testPayload4.png");
+            IOUtils.toByteArray(first.open());
+            Assert.assertTrue(Arrays.equals(
+                    IOUtils.toByteArray(in("testPayload4.png")),
+                    IOUtils.toByteArray(second.open())));
+            moved = (MongoDigitalObject) storage.getObject("testObject1");
+            Assert.assertEquals(MongoPayloadBackendGridFs.TYPE, moved
+                    .getPayloadMeta("testPayload4.png").get("backend_type"));
+            Assert.assertNull(moved.getPayloadMeta("testPayload4.png")
+                    .get("accessCount"));
+            Assert.assertEquals(1, storage.flushPayloadAccesses());
+            moved = (MongoDigitalObject) storage.getObject("testObject1");
+            Assert.assertEquals(2L, ((Number) moved
+                    .getPayloadMeta("testPayload4.png").get("accessCount"))
+                            .longValue());
+            Assert.assertEquals(0, storage.flushPayloadAccesses());
+        } finally {
+            object.getStorageConfig().setTieringEnabled(false);
+        }
+
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that an asynchronous load combines the object metadata and the
+     * record, that asynchronous saves and payload reads complete, and that a
+     * missing object or payload fails the future with a StorageException
+     *
+     * @throws Exception
+     */
+    @Test
+    public void asyncTest() throws Exception {
+        System.out.println("\n==========\n TEST => asyncTest()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("testPayload1.json",
+                in("testPayload1.json"));
+        object.getMetadata().setProperty("test", "loaded");
+        object.close();
+
+        // 1) Both halves of the object are loaded
+        JsonDigitalObject loaded = storage.getObjectAsync("testObject1").get();
+        Assert.assertEquals("testObject1", loaded.getId());
+        Assert.assertEquals("loaded",
+                loaded.getMetadata().getProperty("test"));
+        Assert.assertTrue(
+                loaded.getPayloadIdList().contains("testPayload1.json"));
+        Assert.assertNotNull(((MongoDigitalObject) loaded).getVersion());
+        Assert.assertTrue(((MongoDigitalObject) loaded).isCurrent());
+
+        // 2) Saves and payload reads
+        loaded.getMetadata().setProperty("test", "saved");
+        storage.saveAsync(loaded).get();
+        Assert.assertEquals("saved", storage.getObject("testObject1")
+                .getMetadata().getProperty("test"));
+        InputStream data = storage
+                .openPayloadAsync("testObject1", "testPayload1.json").get();
+        try {
+            Assert.assertTrue(Arrays.equals(
+                    IOUtils.toByteArray(in("testPayload1.json")),
+                    IOUtils.toByteArray(data)));
+        } finally {
+            data.close();
+        }
+
+        // 3) Failures
+        try {
+            storage.getObjectAsync("testObject2").get();
+            Assert.fail("Loading a missing object should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+        try {
+            storage.openPayloadAsync("testObject2", "testPayload1.json").get();
+            Assert.fail("Opening a payload of a missing object should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+        try {
+            storage.openPayloadAsync("testObject1", "testPayload2.json").get();
+            Assert.fail("Opening a missing payload should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that forEachPayload reads every payload with no more than the
+     * given number open at once, and stops at the first failure
+     *
+     * @throws Exception
+     */
+    @Test
+    public void forEachPayloadTest() throws Exception {
+        System.out.println("\n==========\n TEST => forEachPayloadTest()\n");
+        int payloadLimit = 6;
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        for (int i = 0; i < payloadLimit; i++) {
+            object.createStoredPayload("testPayload" + i + ".png",
+                    in("testPayload4.png"));
+        }
+        final byte[] expected = IOUtils.toByteArray(in("testPayload4.png"));
+
+        // 1) Bounded parallelism
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+        final Set<String> read = Collections
+                .synchronizedSet(new HashSet<String>());
+        int count = object.forEachPayload(2, new MongoPayloadConsumer() {
+            @Override
+            public void accept(Payload payload, InputStream in)
+                    throws Exception {
+                int now = open.incrementAndGet();
+                try {
+                    synchronized (maxOpen) {
+                        maxOpen.set(Math.max(maxOpen.get(), now));
+                    }
+                    Assert.assertTrue(
+                            Arrays.equals(expected, IOUtils.toByteArray(in)));
+                    Thread.sleep(100);
+                    read.add(payload.getId());
+                } finally {
+                    open.decrementAndGet();
+                }
+            }
+        });
+        Assert.assertEquals(payloadLimit, count);
+        Assert.assertEquals(payloadLimit, read.size());
+        Assert.assertTrue("At most 2 payloads should be open at once",
+                maxOpen.get() <= 2);
+
+        // 2) A failure aborts the payloads not yet started
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            object.forEachPayload(1, new MongoPayloadConsumer() {
+                @Override
+                public void accept(Payload payload, InputStream in)
+                        throws Exception {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("Consumer failed");
+                }
+            });
+            Assert.fail("The consumer's failure should be reported");
+        } catch (StorageException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(1, calls.get());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that a unit of work runs in one session, joined by nested units
+     * and not shared with other threads, and that it moves past the writes
+     * of the asynchronous operations it started. Needs a replica set (a
+     * single host will do) of MongoDB 3.6 or later, and is skipped otherwise.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void sessionTest() throws Exception {
+        System.out.println("\n==========\n TEST => sessionTest()\n");
+        Document isMaster = storage
+                .getDatabase(MongoClientConfig.Operation.OBJECTS)
+                .runCommand(new Document("isMaster", 1));
+        String setName = isMaster.getString("setName");
+        Assume.assumeTrue("Sessions need a replica set of MongoDB 3.6+",
+                setName != null && isMaster.getInteger("maxWireVersion", 0) >= 6);
+        restart("{\"client\": {\"causalConsistency\": true,"
+                + " \"replicaSet\": \"" + setName + "\"}}");
+
+        final MongoSessions.Scope scope = storage.beginSession();
+        final ClientSession session = scope.getSession();
+        try {
+            Assert.assertNotNull(session);
+
+            // 1) Nested units join, other threads have their own
+            MongoSessions.Scope nested = storage.beginSession();
+            Assert.assertSame(session, nested.getSession());
+            nested.close();
+            final List<ClientSession> other = new ArrayList<ClientSession>();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    MongoSessions.Scope otherScope = storage.beginSession();
+                    try {
+                        other.add(otherScope.getSession());
+                    } finally {
+                        otherScope.close();
+                    }
+                }
+            });
+            thread.start();
+            thread.join();
+            Assert.assertNotNull(other.get(0));
+            Assert.assertNotSame(session, other.get(0));
+
+            // 2) Writes of the unit and of its asynchronous saves
+            DigitalObject object = storage.createObject("testObject1");
+            BsonTimestamp created = session.getOperationTime();
+            Assert.assertNotNull(created);
+            object.getMetadata().setProperty("test", "async");
+            storage.saveAsync((JsonDigitalObject) object).get();
+            Assert.assertTrue(
+                    scope.getSession().getOperationTime().compareTo(created) > 0);
+            Assert.assertEquals("1",
+                    numFound("tf_obj_meta", "{\"test\": \"async\"}"));
+            Assert.assertEquals("async", storage.getObjectAsync("testObject1")
+                    .get().getMetadata().getProperty("test"));
+        } finally {
+            scope.close();
+        }
+
+        // 3) A closed unit's session isn't reused
+        MongoSessions.Scope next = storage.beginSession();
+        try {
+            Assert.assertNotSame(session, next.getSession());
+        } finally {
+            next.close();
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that MATERIALIZED mode populates the metadataDocuments collection
+     * on its first start, keeps it up to date on saves and removals, and
+     * rebuilds it on demand
+     *
+     * @throws Exception
+     */
+    @Test
+    public void materializedTest() throws Exception {
+        System.out.println("\n==========\n TEST => materializedTest()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("metadata.tfpackage",
+                in("testPayload1.json"));
+
+        // 1) First materialization
+        restart("{\"recordMetadataMode\": \"MATERIALIZED\"}");
+        Assert.assertEquals("1", numFound("metadataDocuments",
+                "{\"test\": \"field\", \"redboxOid\": \"testObject1\"}"));
+
+        // 2) Saves and removals
+        object = storage.getObject("testObject1");
+        object.updatePayload("metadata.tfpackage", in("testPayload4.json"));
+        Assert.assertEquals("0",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        Assert.assertEquals("1",
+                numFound("metadataDocuments", "{\"test\": \"field2\"}"));
+        storage.createObject("testObject2").createStoredPayload(
+                "metadata.tfpackage", in("testPayload1.json"));
+        Assert.assertEquals("1",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        storage.removeObject("testObject2");
+        Assert.assertEquals("0",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+
+        // 3) Rebuild
+        Assert.assertEquals(1, storage.rebuildMetadataDocuments());
+        Assert.assertEquals("1",
+                numFound("metadataDocuments", "{\"test\": \"field2\"}"));
+
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that records saved before denormalization are backfilled on the
+     * first start only, with ISO string dates copied as dates, and that the
+     * metadataDocuments view keeps the object metadata fields as lists
+     *
+     * @throws Exception
+     */
+    @Test
+    public void backfillTest() throws Exception {
+        System.out.println("\n==========\n TEST => backfillTest()\n");
+        MongoDigitalObject object = (MongoDigitalObject) storage
+                .createObject("testObject1");
+        object.createStoredPayload("metadata.tfpackage",
+                in("testPayload1.json"));
+        Date created = (Date) object.getObjectMetadata()
+                .get("date_object_created");
+        // saved by an earlier version
+        MongoDatabase db = storage
+                .getDatabase(MongoClientConfig.Operation.OBJECTS);
+        db.getCollection("tf_obj_meta").updateOne(
+                Filters.eq("redboxOid", "testObject1"),
+                Updates.set("date_object_created", ISODateTimeFormat
+                        .dateTime().print(created.getTime())));
+        db.getCollection("default").updateOne(
+                Filters.eq("redboxOid", "testObject1"),
+                Updates.unset(MongoDigitalObject.DENORMALIZED_FIELD));
+        db.getCollection(MongoMetadataDocuments.MIGRATIONS_COLLECTION).drop();
+
+        // 1) Backfilled on start, the date as a date
+        restart("{}");
+        db = storage.getDatabase(MongoClientConfig.Operation.OBJECTS);
+        Document copy = (Document) db.getCollection("default")
+                .find(Filters.eq("redboxOid", "testObject1")).first()
+                .get(MongoDigitalObject.DENORMALIZED_FIELD);
+        Assert.assertEquals(created, copy.get("date_object_created"));
+
+        // 2) The view keeps the lists of the object metadata $lookup
+        Document doc = db.getCollection("metadataDocuments")
+                .find(Filters.eq("redboxOid", "testObject1")).first();
+        Assert.assertEquals(Arrays.asList(created),
+                doc.get("date_object_created"));
+        Assert.assertEquals(Collections.emptyList(), doc.get("packageType"));
+
+        // 3) Later starts don't look for records to backfill, the explicit
+        // backfill still does
+        db.getCollection("default").updateOne(
+                Filters.eq("redboxOid", "testObject1"),
+                Updates.unset(MongoDigitalObject.DENORMALIZED_FIELD));
+        restart("{}");
+        db = storage.getDatabase(MongoClientConfig.Operation.OBJECTS);
+        Assert.assertNull(db.getCollection("default")
+                .find(Filters.eq("redboxOid", "testObject1")).first()
+                .get(MongoDigitalObject.DENORMALIZED_FIELD));
+        Assert.assertEquals(1, storage.backfillDenormalizedFields());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
     @Test
     public void queryTest() throws Exception {
     	DigitalObject object = storage.createObject("testObject1");
@@ -703,6 +1548,867 @@ public class MongoStorageIT {
         Assert.assertEquals(resultObject.getString("", "numFound"), "1");
         Assert.assertEquals(resultObject.getArray("docs").size(), 1);
     }
+
+    /**
+     * Test that paged queries and queries given fields return only those
+     * fields and the OID
+     *
+     * @throws Exception
+     */
+    @Test
+    public void projectionTest() throws Exception {
+        System.out.println("\n==========\n TEST => projectionTest()\n");
+        storage.createObject("testObject1").createStoredPayload(
+                "metadata.tfpackage",
+                json("{\"title\": \"Ocean\", \"description\": \"Deep\"}"));
+        List<String> fields = Arrays.asList("title");
+
+        // 1) Paged query, whatever the count mode
+        for (MongoCounter.Mode mode : MongoCounter.Mode.values()) {
+            JsonSimple result = storage.pagedQuery("metadataDocuments", "{}",
+                    0, 10, null, fields, mode);
+            Assert.assertEquals("1", result.getString(null, "numFound"));
+            JsonSimple doc = result.getJsonSimpleList("docs").get(0);
+            Assert.assertEquals("Ocean", doc.getString(null, "title"));
+            Assert.assertEquals("testObject1",
+                    doc.getString(null, "redboxOid"));
+            Assert.assertFalse(
+                    doc.getJsonObject().containsKey("description"));
+            Assert.assertFalse(
+                    doc.getJsonObject().containsKey("date_object_created"));
+        }
+
+        // 2) Query
+        Document doc = storage.query("metadataDocuments", "{}", fields)
+                .first();
+        Assert.assertEquals("Ocean", doc.getString("title"));
+        Assert.assertEquals("testObject1", doc.getString("redboxOid"));
+        Assert.assertFalse(doc.containsKey("description"));
+        Assert.assertFalse(doc.containsKey("date_object_created"));
+
+        // 3) No fields, whole documents
+        doc = storage.query("metadataDocuments", "{}", (List<String>) null)
+                .first();
+        Assert.assertEquals("Deep", doc.getString("description"));
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that a facet query counts each value of the facet fields among the
+     * matching metadata documents, most frequent first, alongside the page
+     *
+     * @throws Exception
+     */
+    @Test
+    public void facetQueryTest() throws Exception {
+        System.out.println("\n==========\n TEST => facetQueryTest()\n");
+        storage.createObject("testObject1").createStoredPayload(
+                "metadata.tfpackage", in("testPayload1.json"));
+        storage.createObject("testObject2").createStoredPayload(
+                "metadata.tfpackage", in("testPayload1.json"));
+        storage.createObject("testObject3").createStoredPayload(
+                "metadata.tfpackage", in("testPayload4.json"));
+        // no tfpackage, so no metadata document
+        storage.createObject("testObject4");
+
+        // 1) Counts and the first page
+        JsonSimple result = storage.facetQuery(null, "{}",
+                Arrays.asList("test"), 0, 2, "\"redboxOid\": 1");
+        Assert.assertEquals("3", result.getString("", "numFound"));
+        Assert.assertEquals(2, result.getArray("docs").size());
+        Assert.assertEquals("testObject1",
+                result.getJsonSimpleList("docs").get(0).getString(null,
+                        "redboxOid"));
+        List<JsonSimple> values = result.getJsonSimpleList("facets", "test");
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("field", values.get(0).getString(null, "value"));
+        Assert.assertEquals("2", values.get(0).getString(null, "count"));
+        Assert.assertEquals("field2", values.get(1).getString(null, "value"));
+        Assert.assertEquals("1", values.get(1).getString(null, "count"));
+
+        // 2) Counts only, restricted by the filter
+        result = storage.facetQuery(null, "{\"test\": \"field2\"}",
+                Arrays.asList("test", "redboxOid"), 0, 0, null);
+        Assert.assertEquals("1", result.getString("", "numFound"));
+        Assert.assertEquals(0, result.getArray("docs").size());
+        values = result.getJsonSimpleList("facets", "redboxOid");
+        Assert.assertEquals(1, values.size());
+        Assert.assertEquals("testObject3",
+                values.get(0).getString(null, "value"));
+
+        // 3) No matches
+        result = storage.facetQuery(null, "{\"test\": \"none\"}",
+                Arrays.asList("test"), 0, 10, null);
+        Assert.assertEquals("0", result.getString("", "numFound"));
+        Assert.assertTrue(result.getJsonSimpleList("facets", "test").isEmpty());
+
+        // Cleanup
+        for (int i = 1; i <= 4; i++) {
+            storage.removeObject("testObject" + i);
+        }
+        sizeTest(0);
+    }
+
+    /**
+     * Test that the query cache serves a repeated paged query, drops the
+     * entries over a collection, and the views built on it, when an object in
+     * it is saved, and drops entries once they expire
+     *
+     * @throws Exception
+     */
+    @Test
+    public void queryCacheTest() throws Exception {
+        System.out.println("\n==========\n TEST => queryCacheTest()\n");
+        restart("{\"queryCache\": {\"enabled\": true, \"ttlSeconds\": 1}}");
+        MongoQueryCache cache = storage.getQueryCache();
+        Assert.assertNotNull(cache);
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("metadata.tfpackage",
+                in("testPayload1.json"));
+
+        // 1) A repeated query is a hit
+        Assert.assertEquals("1", numFound("default", "{}"));
+        Assert.assertEquals("1",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals("1", numFound("default", "{}"));
+        Assert.assertEquals("1",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        Assert.assertEquals(2, cache.getHits());
+
+        // 2) A save makes the collection's and the view's entries stale
+        object = storage.getObject("testObject1");
+        object.updatePayload("metadata.tfpackage", in("testPayload4.json"));
+        storage.createObject("testObject2");
+        Assert.assertEquals("2", numFound("default", "{}"));
+        Assert.assertEquals("0",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals("0",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        Assert.assertEquals(3, cache.getHits());
+
+        // 3) Entries expire
+        Thread.sleep(1500);
+        long misses = cache.getMisses();
+        Assert.assertEquals("0",
+                numFound("metadataDocuments", "{\"test\": \"field\"}"));
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(misses + 1, cache.getMisses());
+
+        // 4) Template queries are cached per template and values
+        storage.addQueryTemplate(new MongoQueryTemplate("byOid", "default",
+                "[{ \"$match\": { \"redboxOid\": { \"$param\": \"oid\", \"type\": \"string\" }}}]"));
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("oid", "testObject1");
+        Assert.assertEquals("1", storage.pagedTemplateQuery("byOid", params, 0,
+                10).getString("", "numFound"));
+        Assert.assertEquals("1", storage.pagedTemplateQuery("byOid", params, 0,
+                10).getString("", "numFound"));
+        Assert.assertEquals(4, cache.getHits());
+        params.put("oid", "testObject3");
+        Assert.assertEquals("0", storage.pagedTemplateQuery("byOid", params, 0,
+                10).getString("", "numFound"));
+        Assert.assertEquals(4, cache.getHits());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        sizeTest(0);
+    }
+
+    /**
+     * Test the count modes of a paged query, and that the response names the
+     * mode used and flags a count stopped at the cap
+     *
+     * @throws Exception
+     */
+    @Test
+    public void countModeTest() throws Exception {
+        System.out.println("\n==========\n TEST => countModeTest()\n");
+        restart("{\"count\": {\"cap\": 2}}");
+        for (int i = 1; i <= 3; i++) {
+            storage.createObject("testObject" + i);
+        }
+        String oneObject = "{\"redboxOid\": \"testObject1\"}";
+
+        // 1) EXACT
+        JsonSimple result = count("{}", MongoCounter.Mode.EXACT);
+        Assert.assertEquals("3", result.getString("", "numFound"));
+        Assert.assertEquals("EXACT", result.getString("", "countMode"));
+        Assert.assertNull(result.getString(null, "numFoundCapped"));
+
+        // 2) CAPPED
+        result = count("{}", MongoCounter.Mode.CAPPED);
+        Assert.assertEquals("2", result.getString("", "numFound"));
+        Assert.assertEquals("CAPPED", result.getString("", "countMode"));
+        Assert.assertTrue(result.getBoolean(false, "numFoundCapped"));
+        Assert.assertEquals(2, result.getArray("docs").size());
+        result = count(oneObject, MongoCounter.Mode.CAPPED);
+        Assert.assertEquals("1", result.getString("", "numFound"));
+        Assert.assertNull(result.getString(null, "numFoundCapped"));
+
+        // 3) CACHED reuses the count while the page is current
+        result = count("{}", MongoCounter.Mode.CACHED);
+        Assert.assertEquals("3", result.getString("", "numFound"));
+        Assert.assertEquals("CACHED", result.getString("", "countMode"));
+        storage.createObject("testObject4");
+        result = count("{}", MongoCounter.Mode.CACHED);
+        Assert.assertEquals("3", result.getString("", "numFound"));
+        Assert.assertEquals(3, result.getArray("docs").size());
+        Assert.assertEquals("4",
+                count("{}", MongoCounter.Mode.EXACT).getString("",
+                        "numFound"));
+
+        // 4) ESTIMATED, falling back to CACHED for a filter or a view
+        result = count("{}", MongoCounter.Mode.ESTIMATED);
+        Assert.assertEquals("4", result.getString("", "numFound"));
+        Assert.assertEquals("ESTIMATED", result.getString("", "countMode"));
+        result = count(oneObject, MongoCounter.Mode.ESTIMATED);
+        Assert.assertEquals("1", result.getString("", "numFound"));
+        Assert.assertEquals("CACHED", result.getString("", "countMode"));
+        result = storage.pagedQuery("metadataDocuments", "{}", 0, 10, null,
+                null, MongoCounter.Mode.ESTIMATED);
+        Assert.assertEquals("CACHED", result.getString("", "countMode"));
+
+        // Cleanup
+        for (int i = 1; i <= 4; i++) {
+            storage.removeObject("testObject" + i);
+        }
+        sizeTest(0);
+    }
+
+    /**
+     * Test that a text search finds records by their tfpackage only, best
+     * matches first, including records saved before the index was set up
+     *
+     * @throws Exception
+     */
+    @Test
+    public void searchTest() throws Exception {
+        System.out.println("\n==========\n TEST => searchTest()\n");
+        DigitalObject object = storage.createObject("testObject1");
+        object.createStoredPayload("metadata.tfpackage",
+                json("{\"title\": \"Ocean currents of the ocean floor\"}"));
+        // the source payload has the indexed field, the tfpackage doesn't
+        // match
+        DigitalObject other = storage.createObject("testObject2");
+        other.createStoredPayload("other.json",
+                json("{\"title\": \"Ocean\"}"));
+        storage.createObject("testObject3").createStoredPayload(
+                "metadata.tfpackage", json("{\"title\": \"Ocean views\"}"));
+
+        // 1) Records saved before the index are backfilled
+        restart("{\"textIndex\": {\"fields\": [\"title\"]}}");
+        JsonSimple result = storage.search("default", "ocean", 0, 10, null);
+        Assert.assertEquals("2", result.getString("", "numFound"));
+        List<JsonSimple> docs = result.getJsonSimpleList("docs");
+        Assert.assertEquals(2, docs.size());
+        Assert.assertEquals("testObject1", docs.get(0).getString(null,
+                "redboxOid"));
+        Assert.assertEquals("Ocean currents of the ocean floor",
+                docs.get(0).getString(null, "title"));
+        Assert.assertEquals("testObject3", docs.get(1).getString(null,
+                "redboxOid"));
+
+        // 2) Saves update the copy the index covers
+        object = storage.getObject("testObject1");
+        object.updatePayload("metadata.tfpackage",
+                json("{\"title\": \"Rivers\"}"));
+        result = storage.search("default", "ocean", 0, 10,
+                Arrays.asList("title"));
+        Assert.assertEquals("1", result.getString("", "numFound"));
+        Assert.assertEquals("testObject3", result.getJsonSimpleList("docs")
+                .get(0).getString(null, "redboxOid"));
+        Assert.assertEquals("1",
+                storage.search("default", "river", 0, 0, null).getString("",
+                        "numFound"));
+
+        // Cleanup
+        for (int i = 1; i <= 3; i++) {
+            storage.removeObject("testObject" + i);
+        }
+        sizeTest(0);
+    }
+
+    /**
+     * Test that paged queries, facet queries and searches are rejected when
+     * no permit frees up in time, and that cancelling a query's handle stops
+     * its count as well as its page, without keeping a permit
+     *
+     * @throws Exception
+     */
+    @Test
+    public void queryGuardTest() throws Exception {
+        System.out.println("\n==========\n TEST => queryGuardTest()\n");
+        restart("{\"query\": {\"maxConcurrent\": 1, \"acquireTimeoutMS\": 50},"
+                + " \"textIndex\": {\"fields\": [\"title\"]}}");
+        storage.createObject("testObject1").createStoredPayload(
+                "metadata.tfpackage", json("{\"title\": \"Ocean\"}"));
+        storage.createObject("testObject2");
+        MongoQueryGuard guard = storage.getQueryGuard();
+
+        // 1) Rejection while the only permit is taken
+        guard.acquire();
+        try {
+            storage.pagedQuery("default", "{}", 0, 10, null, null,
+                    MongoCounter.Mode.CAPPED);
+            Assert.fail("The query should be rejected");
+        } catch (MongoQueryRejectedException e) {
+            // This is what should occur
+        }
+        try {
+            storage.search("default", "ocean", 0, 10, null);
+            Assert.fail("The search should be rejected");
+        } catch (MongoQueryRejectedException e) {
+            // This is what should occur
+        }
+        try {
+            storage.facetQuery(null, "{}", Arrays.asList("title"), 0, 10,
+                    null);
+            Assert.fail("The facet query should be rejected");
+        } catch (MongoQueryRejectedException e) {
+            // This is what should occur
+        }
+        guard.release();
+        Assert.assertEquals("2", count("{}", MongoCounter.Mode.CAPPED)
+                .getString("", "numFound"));
+        Assert.assertEquals(1, guard.getAvailablePermits());
+
+        // 2) Cancellation, of the counts too
+        MongoQueryHandle handle = new MongoQueryHandle();
+        handle.cancel();
+        MongoQueryOptions cancelled = new MongoQueryOptions().handle(handle);
+        for (MongoCounter.Mode mode : MongoCounter.Mode.values()) {
+            try {
+                storage.pagedQuery("default", "{}", 0, 0, null, null, mode,
+                        cancelled);
+                Assert.fail("The query should be cancelled");
+            } catch (CancellationException e) {
+                // This is what should occur
+            }
+        }
+        try {
+            storage.search("default", "ocean", 0, 0, null, cancelled);
+            Assert.fail("The search should be cancelled");
+        } catch (CancellationException e) {
+            // This is what should occur
+        }
+        try {
+            storage.facetQuery(null, "{}", Arrays.asList("title"), 0, 10,
+                    null, cancelled);
+            Assert.fail("The facet query should be cancelled");
+        } catch (CancellationException e) {
+            // This is what should occur
+        }
+        Assert.assertEquals("1", storage.facetQuery(null, "{}",
+                Arrays.asList("title"), 0, 10, null,
+                new MongoQueryOptions().handle(new MongoQueryHandle())
+                        .maxTimeMS(5000)).getString("", "numFound"));
+        MongoCounter counter = new MongoCounter(
+                storage.getDatabase(MongoClientConfig.Operation.QUERY), guard,
+                60000, 10);
+        try {
+            counter.count("default", new BsonDocument(),
+                    MongoCounter.Mode.CAPPED, cancelled);
+            Assert.fail("The count should be cancelled");
+        } catch (CancellationException e) {
+            // This is what should occur
+        }
+        Assert.assertEquals(2, counter.count("default", new BsonDocument(),
+                MongoCounter.Mode.CAPPED,
+                new MongoQueryOptions().handle(new MongoQueryHandle())
+                        .maxTimeMS(5000)).getCount());
+        Assert.assertEquals(1, guard.getAvailablePermits());
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that cancelling a query from another thread while its first batch
+     * runs on the server kills the operation there
+     *
+     * @throws Exception
+     */
+    @Test
+    public void runningCancelTest() throws Exception {
+        System.out.println("\n==========\n TEST => runningCancelTest()\n");
+        for (int i = 0; i < 20; i++) {
+            storage.createObject("testObject" + i);
+        }
+
+        // 1) A slow find
+        cancelWhileRunning(new QueryRun() {
+            @Override
+            public void run(MongoQueryOptions options) throws Exception {
+                storage.query("default",
+                        "{\"$where\": \"sleep(500) && false\"}", options)
+                        .first();
+            }
+        });
+
+        // 2) A slow paged aggregation, needing $function (4.4+)
+        @SuppressWarnings("unchecked")
+        List<Integer> version = (List<Integer>) storage.getQueryGuard().adminDb
+                .runCommand(new Document("buildInfo", 1)).get("versionArray");
+        if (version.get(0) > 4 || (version.get(0) == 4 && version.get(1) >= 4)) {
+            cancelWhileRunning(new QueryRun() {
+                @Override
+                public void run(MongoQueryOptions options) throws Exception {
+                    storage.pagedQuery("default",
+                            "{\"$expr\": {\"$function\": {\"body\":"
+                                    + " \"function() { sleep(500); return false; }\","
+                                    + " \"args\": [], \"lang\": \"js\"}}}",
+                            0, 10, null, null, MongoCounter.Mode.EXACT,
+                            options);
+                }
+            });
+        } else {
+            System.out.println("No $function before 4.4, skipping the"
+                    + " aggregation");
+        }
+
+        // Cleanup
+        for (int i = 0; i < 20; i++) {
+            storage.removeObject("testObject" + i);
+        }
+        sizeTest(0);
+    }
+
+    private interface QueryRun {
+        void run(MongoQueryOptions options) throws Exception;
+    }
+
+    /**
+     * Runs the query on another thread, cancels it once the server runs it
+     * and checks it fails and is gone from the server.
+     */
+    private void cancelWhileRunning(final QueryRun query) throws Exception {
+        final MongoQueryHandle handle = new MongoQueryHandle();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    query.run(new MongoQueryOptions().handle(handle)
+                            .maxTimeMS(60000));
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!isRunning(handle)) {
+            Assert.assertTrue("The query never started",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        handle.cancel();
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(1, failures.size());
+        Assert.assertTrue(failures.get(0).toString(),
+                failures.get(0) instanceof CancellationException);
+        deadline = System.currentTimeMillis() + 5000;
+        while (isRunning(handle)) {
+            Assert.assertTrue("The query is still running on the server",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * @return true if the server lists an operation tagged by the handle
+     */
+    @SuppressWarnings("unchecked")
+    private boolean isRunning(MongoQueryHandle handle) {
+        Document ops = storage.getQueryGuard().adminDb
+                .runCommand(new Document("currentOp", 1).append("$all", true));
+        for (Document op : (List<Document>) ops.get("inprog")) {
+            if (op.toJson().contains(handle.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Test that prepared query templates bind their parameters as values and
+     * reject values of the wrong type
+     *
+     * @throws Exception
+     */
+    @Test
+    public void templateQueryTest() throws Exception {
+        System.out.println("\n==========\n TEST => templateQueryTest()\n");
+        storage.createObject("testObject1");
+        storage.createObject("testObject2");
+        storage.addQueryTemplate(new MongoQueryTemplate("byOid", "tf_obj_meta",
+                "[{ \"$match\": { \"redboxOid\": { \"$param\": \"oid\", \"type\": \"string\" }}}]"));
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("oid", "testObject2");
+        JsonSimple resultObject = storage.pagedTemplateQuery("byOid", params, 0, 10);
+        Assert.assertEquals("1", resultObject.getString("", "numFound"));
+
+        // values are bound as BSON, never parsed as query text
+        params.put("oid", "{ \"$ne\": null }");
+        resultObject = storage.pagedTemplateQuery("byOid", params, 0, 10);
+        Assert.assertEquals("0", resultObject.getString("", "numFound"));
+
+        params.put("oid", 1);
+        try {
+            storage.pagedTemplateQuery("byOid", params, 0, 10);
+            Assert.fail("A value of the wrong type should be rejected");
+        } catch (StorageException e) {
+            // This is what should occur
+        }
+
+        // sorts name fields and directions, nothing else
+        resultObject = storage.pagedQuery("tf_obj_meta", "{}", 0, 10,
+                "\"redboxOid\": -1");
+        Assert.assertEquals("testObject2",
+                resultObject.getString(null, "docs", 0, "redboxOid"));
+        String[] invalidSorts = { "redboxOid: 1}, {\"$where\": \"true\"",
+                "$natural: 1", "redboxOid: {\"$meta\": \"textScore\"}",
+                "redboxOid: 2", "redboxOid: 1," };
+        for (String sort : invalidSorts) {
+            try {
+                storage.pagedQuery("tf_obj_meta", "{}", 0, 10, sort);
+                Assert.fail("An invalid sort should be rejected: " + sort);
+            } catch (IllegalArgumentException e) {
+                // This is what should occur
+            }
+            try {
+                storage.streamPagedQuery("tf_obj_meta", "{}", 0, 10, sort,
+                        null);
+                Assert.fail("An invalid sort should be rejected: " + sort);
+            } catch (IllegalArgumentException e) {
+                // This is what should occur
+            }
+        }
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that the streaming queries return every document across several
+     * batches, in order where sorted, and that their cursors are closed once
+     * exhausted or when a stream ending early is closed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamTest() throws Exception {
+        System.out.println("\n==========\n TEST => streamTest()\n");
+        int total = 25;
+        for (int i = 0; i < total; i++) {
+            storage.createObject(String.format("testObject%02d", i));
+        }
+        storage.addQueryTemplate(new MongoQueryTemplate("allBut", "tf_obj_meta",
+                "[{ \"$match\": { \"redboxOid\": { \"$ne\": { \"$param\": \"oid\", \"type\": \"string\" }}}},"
+                        + " { \"$sort\": { \"redboxOid\": 1 }}]"));
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("oid", "testObject00");
+        MongoQueryOptions options = new MongoQueryOptions().batchSize(10);
+        long cursors = openCursors();
+
+        // 1) Every document, over three batches
+        Stream<Document> stream = storage.streamQuery("tf_obj_meta", "{}",
+                options);
+        Set<String> oids = new HashSet<String>();
+        try {
+            Iterator<Document> docs = stream.iterator();
+            while (docs.hasNext()) {
+                oids.add(docs.next().getString("redboxOid"));
+            }
+        } finally {
+            stream.close();
+        }
+        Assert.assertEquals(total, oids.size());
+        Assert.assertEquals(cursors, openCursors());
+
+        List<BsonDocument> pipeline = Arrays.asList(
+                BsonDocument.parse("{ \"$sort\": { \"redboxOid\": 1 }}"));
+        assertOids(storage.streamAggregate("tf_obj_meta", pipeline, options),
+                0, total);
+        assertOids(storage.streamPagedQuery("tf_obj_meta", "{}", 3, 15,
+                "redboxOid: 1", options), 3, 15);
+        assertOids(storage.streamPagedQuery("tf_obj_meta", "{}", 20, 0,
+                "redboxOid: 1", options), 20, total - 20);
+        assertOids(storage.streamTemplateQuery("allBut", params, options), 1,
+                total - 1);
+        Assert.assertEquals(cursors, openCursors());
+
+        // 2) Ending early keeps the cursor open until the stream is closed
+        List<Stream<Document>> partial = Arrays.asList(
+                storage.streamQuery("tf_obj_meta", "{}", options),
+                storage.streamAggregate("tf_obj_meta", pipeline, options),
+                storage.streamPagedQuery("tf_obj_meta", "{}", 0, 0,
+                        "redboxOid: 1", options),
+                storage.streamTemplateQuery("allBut", params, options));
+        for (Stream<Document> first : partial) {
+            Assert.assertEquals(3, first.limit(3).count());
+        }
+        Assert.assertEquals(cursors + partial.size(), openCursors());
+        for (Stream<Document> first : partial) {
+            first.close();
+        }
+        Assert.assertEquals(cursors, openCursors());
+
+        // Cleanup
+        for (int i = 0; i < total; i++) {
+            storage.removeObject(String.format("testObject%02d", i));
+        }
+        sizeTest(0);
+    }
+
+    /**
+     * Reads a sorted stream to its end, checking it holds the objects from
+     * the first index on, then closes it
+     */
+    private void assertOids(Stream<Document> stream, int first, int count) {
+        List<String> oids = new ArrayList<String>();
+        try {
+            Iterator<Document> docs = stream.iterator();
+            while (docs.hasNext()) {
+                oids.add(docs.next().getString("redboxOid"));
+            }
+        } finally {
+            stream.close();
+        }
+        Assert.assertEquals(count, oids.size());
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(String.format("testObject%02d", first + i),
+                    oids.get(i));
+        }
+    }
+
+    /**
+     * @return the cursors open on the server
+     */
+    private long openCursors() {
+        Document status = storage
+                .getDatabase(MongoClientConfig.Operation.QUERY)
+                .runCommand(new Document("serverStatus", 1));
+        Document open = (Document) ((Document) ((Document) status
+                .get("metrics")).get("cursor")).get("open");
+        return ((Number) open.get("total")).longValue();
+    }
+
+    /**
+     * Test that storage instances with the same servers and credentials share
+     * one client, which is closed only when the last of them shuts down
+     *
+     * @throws Exception
+     */
+    @Test
+    public void sharedClientTest() throws Exception {
+        System.out.println("\n==========\n TEST => sharedClientTest()\n");
+        MongoClient client = storage.getClient();
+        Assert.assertEquals(1, MongoClientRegistry.getReferences(client));
+
+        // 1) A second instance shares the client
+        MongoStorage second = new MongoStorage();
+        second.init(
+                new File(getClass().getResource("/mongo-config.json").toURI()));
+        try {
+            Assert.assertSame(client, second.getClient());
+            Assert.assertEquals(2, MongoClientRegistry.getReferences(client));
+            second.createObject("testObject1");
+            sizeTest(1);
+
+            // 2) Other settings get a client of their own
+            JsonSimple config = new JsonSimple(new File(
+                    getClass().getResource("/mongo-config.json").toURI()));
+            config.writeObject("storage", "mongo", "client")
+                    .put("applicationName", "sharedClientTest");
+            MongoStorage other = new MongoStorage();
+            other.init(config.toString());
+            Assert.assertNotSame(client, other.getClient());
+            other.shutdown();
+            Assert.assertEquals(2, MongoClientRegistry.getReferences(client));
+        } finally {
+            // 3) The first shutdown keeps the client open for the other
+            second.shutdown();
+        }
+        Assert.assertNull(second.getClient());
+        Assert.assertEquals(1, MongoClientRegistry.getReferences(client));
+        Assert.assertNotNull(storage.getObject("testObject1"));
+
+        // 4) The last shutdown closes it
+        storage.removeObject("testObject1");
+        sizeTest(0);
+        storage.shutdown();
+        Assert.assertEquals(0, MongoClientRegistry.getReferences(client));
+        try {
+            client.getDatabase("admin").runCommand(new Document("ping", 1));
+            Assert.fail("The client should be closed");
+        } catch (IllegalStateException e) {
+            // This is what should occur
+        }
+        storage = new MongoStorage();
+        storage.init(
+                new File(getClass().getResource("/mongo-config.json").toURI()));
+    }
+
+    /**
+     * Test the lookup of objects modified since a date, which relies on the
+     * timestamps being stored as dates
+     *
+     * @throws Exception
+     */
+    @Test
+    public void modifiedSinceTest() throws Exception {
+        System.out.println("\n==========\n TEST => modifiedSinceTest()\n");
+        Date before = new Date(System.currentTimeMillis() - 1000);
+        storage.createObject("testObject1");
+        DigitalObject object = storage.createObject("testObject2");
+        Date after = new Date(System.currentTimeMillis() + 1000);
+
+        List<String> oids = storage.getObjectIdsModifiedSince(before)
+                .into(new ArrayList<String>());
+        Assert.assertEquals(2, oids.size());
+        Assert.assertTrue(storage.getObjectIdsModifiedSince(after)
+                .into(new ArrayList<String>()).isEmpty());
+
+        // the ISO form is still available through the properties
+        Assert.assertNotNull(
+                object.getMetadata().getProperty("date_object_created"));
+
+        // Cleanup
+        storage.removeObject("testObject1");
+        storage.removeObject("testObject2");
+        sizeTest(0);
+    }
+
+    /**
+     * Test that a partitioned scan hands every object to the consumer once
+     *
+     * @throws Exception
+     */
+    @Test
+    public void parallelScanTest() throws Exception {
+        System.out.println("\n==========\n TEST => parallelScanTest()\n");
+        int objectLimit = 10;
+        for (int i = 0; i < objectLimit; i++) {
+            storage.createObject("testObject" + i);
+        }
+        // the consumer runs on the partitions' threads
+        final Set<String> seen = Collections
+                .synchronizedSet(new HashSet<String>());
+        long consumed = storage.parallelScan(3, 2, new MongoObjectConsumer() {
+            @Override
+            public void accept(JsonDigitalObject obj) throws Exception {
+                seen.add(obj.getId());
+            }
+        });
+        Assert.assertEquals(objectLimit, consumed);
+        Assert.assertEquals(objectLimit, seen.size());
+
+        // Cleanup
+        for (int i = 0; i < objectLimit; i++) {
+            storage.removeObject("testObject" + i);
+        }
+        sizeTest(0);
+    }
+
+    /**
+     * Test that an export imports back into an empty database intact, and
+     * that a malformed import line is reported with its line number
+     *
+     * @throws Exception
+     */
+    @Test
+    public void transferTest() throws Exception {
+        System.out.println("\n==========\n TEST => transferTest()\n");
+        for (int i = 0; i < 3; i++) {
+            DigitalObject object = storage.createObject("testObject" + i);
+            object.createStoredPayload("testPayload1.json",
+                    in("testPayload1.json"));
+            object.createStoredPayload("testPayload4.png",
+                    in("testPayload4.png"));
+            object.getMetadata().setProperty("objectId", "testObject" + i);
+            object.close();
+        }
+
+        // 1) Round trip
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(3, storage.exportTo(out, 2));
+        nukeStorage();
+        sizeTest(0);
+        File checkpoint = File.createTempFile("import", ".checkpoint");
+        checkpoint.delete();
+        Assert.assertEquals(3, storage.importFrom(
+                new ByteArrayInputStream(out.toByteArray()), checkpoint));
+        sizeTest(3);
+        for (int i = 0; i < 3; i++) {
+            DigitalObject object = storage.getObject("testObject" + i);
+            sizeTest(object, 2);
+            Assert.assertEquals("testObject" + i,
+                    object.getMetadata().getProperty("objectId"));
+            StringWriter writer = new StringWriter();
+            IOUtils.copy(object.getPayload("testPayload1.json").open(), writer,
+                    "UTF-8");
+            Assert.assertEquals(testFieldStr1, writer.toString());
+            Assert.assertTrue(Arrays.equals(
+                    IOUtils.toByteArray(in("testPayload4.png")),
+                    IOUtils.toByteArray(
+                            object.getPayload("testPayload4.png").open())));
+        }
+
+        // 2) Malformed lines, and payload IDs leading out of the root or
+        // the object's directory
+        File archive = Files.createTempDirectory("archive").toFile();
+        ((MongoDigitalObject) storage.getObject("testObject0"))
+                .getStorageConfig().setArchiveRoot(archive);
+        String shard = new MongoPayloadBackendArchive(archive, "x", "p", null)
+                .getShardedPath().replaceFirst("p$", "");
+        String payload = "{\"type\": \"payload\", \"oid\": \"x\","
+                + " \"pid\": \"p\", \"backend_type\": \"ARCHIVE\","
+                + " \"payloadId\": ";
+        String[] malformed = { "{\"type\": \"object\", \"oid\": \"x\"}",
+                "{\"type\": \"chunk\", \"data\": \"AA==\"}",
+                "{\"type\": \"object\"",
+                payload + "\"../../../../escaped\"}",
+                payload + "\"" + shard + "../../../../escaped\"}",
+                payload + "\"" + shard + "..\"}",
+                payload + "\"00/00/0000000000000000000000000000000000000000/p\"}" };
+        for (String line : malformed) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+            gzip.write(("\n" + line + "\n").getBytes("UTF-8"));
+            gzip.close();
+            try {
+                storage.importFrom(
+                        new ByteArrayInputStream(gzipped.toByteArray()), null);
+                Assert.fail("A malformed line should be rejected: " + line);
+            } catch (StorageException e) {
+                Assert.assertTrue(e.getMessage(),
+                        e.getMessage().startsWith("Import failed at line 2"));
+            }
+        }
+        Assert.assertFalse(new File(archive.getParentFile(), "escaped").exists());
+        Assert.assertFalse(new File(archive, "escaped").exists());
+
+        // Cleanup
+        checkpoint.delete();
+        for (int i = 0; i < 3; i++) {
+            storage.removeObject("testObject" + i);
+        }
+        sizeTest(0);
+    }
+
     /**
      * Bash away at storage with a significant object and payload usage load.
      * Run a slew of assertions against each object afterwards.
@@ -827,6 +2533,51 @@ public class MongoStorageIT {
         sizeTest(0);
     }
 
+    /**
+     * Restarts the storage with settings added to the test configuration,
+     * e.g. to switch on a feature that's read at init.
+     *
+     * @param settings JSON object merged into the 'storage.mongo' block
+     * @throws Exception
+     */
+    private void restart(String settings) throws Exception {
+        storage.shutdown();
+        JsonSimple config = new JsonSimple(
+                new File(getClass().getResource("/mongo-config.json").toURI()));
+        config.writeObject("storage", "mongo")
+                .putAll(new JsonSimple(settings).getJsonObject());
+        storage = new MongoStorage();
+        storage.init(config.toString());
+    }
+
+    /**
+     * Wrapper for a pagedQuery's 'numFound'
+     *
+     * @throws Exception
+     */
+    private String numFound(String collection, String filter)
+            throws Exception {
+        return storage.pagedQuery(collection, filter).getString("",
+                "numFound");
+    }
+
+    /**
+     * Wrapper for a paged query of the records with a count mode
+     *
+     * @throws Exception
+     */
+    private JsonSimple count(String filter, MongoCounter.Mode mode)
+            throws Exception {
+        return storage.pagedQuery("default", filter, 0, 10, null, null, mode);
+    }
+
+    /**
+     * Wrapper for JSON text as an InputStream
+     */
+    private InputStream json(String text) throws Exception {
+        return new ByteArrayInputStream(text.getBytes("UTF-8"));
+    }
+
     /**
      * Wrapper for resource retrieval as InputStreams, simply to reduce call
      * complexity to just 'in("file.name")',